@@ -0,0 +1,149 @@
+package com.iwobanas.screenrecorder;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adjusts video encoder bitrate while recording based on what happens to encoded samples.
+ * Bitrate is lowered when samples back up between the encoder and storage (slow writes, muxer stalls)
+ * or when the encoder falls behind producing big frames at low cadence, and it's raised again when
+ * the pipeline keeps up. Additive increase / multiplicative decrease within [floor, ceiling].
+ * Not thread safe, all methods should be called on the muxer writer thread.
+ */
+public class AdaptiveBitrateController {
+
+    private static final String TAG = "scr_BitrateController";
+    private static final long WINDOW_NS = 1000000000l;
+    private static final long MAX_QUEUE_DELAY_NS = 300000000l;
+    private static final long MAX_AVERAGE_WRITE_LATENCY_NS = 40000000l;
+    private static final int HEALTHY_WINDOWS_BEFORE_INCREASE = 3;
+    private static final int MAX_LOGGED_DECISIONS = 100;
+
+    private final int floor;
+    private final int ceiling;
+    private final int frameRate;
+    private int bitrate;
+    private int minBitrate;
+    private int changes;
+    private final List<String> decisions = new ArrayList<String>();
+    private final long startNs = System.nanoTime();
+
+    private long windowStartNs = -1;
+    private int frames;
+    private long videoBytes;
+    private int backlogSamples;
+    private long maxQueueDelayNs;
+    private long writeLatencyNs;
+    private int writes;
+    private int healthyWindows;
+
+    public AdaptiveBitrateController(int bitrate, int floor, int frameRate) {
+        this.bitrate = bitrate;
+        this.minBitrate = bitrate;
+        this.ceiling = bitrate;
+        this.floor = Math.min(floor, bitrate);
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Called after each sample is handed to the muxer.
+     * @param queueDelayNs time the sample spent in queue between encoder and muxer
+     * @param writeLatencyNs time spent in muxer write or 0 if not measured
+     * @param backlog true if more than half of the sample queue was occupied
+     * @return new bitrate to be set on the encoder or 0 if bitrate shouldn't change
+     */
+    public int onSampleWritten(boolean video, int size, long queueDelayNs, long writeLatencyNs, boolean backlog) {
+        long now = System.nanoTime();
+        if (windowStartNs < 0) {
+            windowStartNs = now;
+        }
+        if (video) {
+            frames++;
+            videoBytes += size;
+        }
+        if (backlog) {
+            backlogSamples++;
+        }
+        if (queueDelayNs > maxQueueDelayNs) {
+            maxQueueDelayNs = queueDelayNs;
+        }
+        if (writeLatencyNs > 0) {
+            this.writeLatencyNs += writeLatencyNs;
+            writes++;
+        }
+        if (now - windowStartNs < WINDOW_NS) {
+            return 0;
+        }
+        if (frames == 0) {
+            // static screen or paused capture, audio samples alone don't tell how video pipeline performs
+            resetWindow(now);
+            return 0;
+        }
+
+        long windowNs = now - windowStartNs;
+        String reason = null;
+        if (maxQueueDelayNs > MAX_QUEUE_DELAY_NS) {
+            reason = "queue delay " + maxQueueDelayNs / 1000000 + "ms";
+        } else if (writes > 0 && this.writeLatencyNs / writes > MAX_AVERAGE_WRITE_LATENCY_NS) {
+            reason = "write latency " + this.writeLatencyNs / writes / 1000000 + "ms";
+        } else if (backlogSamples > 0 && backlogSamples >= frames / 2) {
+            reason = "backlog " + backlogSamples + " samples";
+        } else if (frames * WINDOW_NS < frameRate * windowNs / 2 && videoBytes * 8 * WINDOW_NS > bitrate * windowNs) {
+            // low frame rate alone is normal for static screen, with frames over budget it means encoder is behind
+            reason = "encoder behind " + frames + " frames " + videoBytes / 1024 + "kB";
+        }
+
+        int newBitrate = bitrate;
+        if (reason != null) {
+            healthyWindows = 0;
+            newBitrate = Math.max(floor, bitrate * 3 / 4);
+        } else if (++healthyWindows >= HEALTHY_WINDOWS_BEFORE_INCREASE && bitrate < ceiling) {
+            healthyWindows = 0;
+            newBitrate = Math.min(ceiling, bitrate + ceiling / 10);
+            reason = "recovered";
+        }
+
+        resetWindow(now);
+
+        if (newBitrate == bitrate) {
+            return 0;
+        }
+        String decision = (now - startNs) / 1000000 + "ms " + bitrate + "->" + newBitrate + " " + reason;
+        Log.i(TAG, decision);
+        if (decisions.size() < MAX_LOGGED_DECISIONS) {
+            decisions.add(decision);
+        }
+        changes++;
+        bitrate = newBitrate;
+        minBitrate = Math.min(minBitrate, bitrate);
+        return bitrate;
+    }
+
+    private void resetWindow(long now) {
+        windowStartNs = now;
+        frames = 0;
+        videoBytes = 0;
+        backlogSamples = 0;
+        maxQueueDelayNs = 0;
+        writeLatencyNs = 0;
+        writes = 0;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getMinBitrate() {
+        return minBitrate;
+    }
+
+    public int getChanges() {
+        return changes;
+    }
+
+    public List<String> getDecisions() {
+        return decisions;
+    }
+}
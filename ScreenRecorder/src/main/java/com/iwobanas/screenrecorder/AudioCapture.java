@@ -0,0 +1,250 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Captures PCM audio from a single AudioRecord on a dedicated thread into a {@link PcmRingBuffer}
+ * so that encoding never stalls capture. Captured frames are timestamped with {@link AvTimestampEngine}.
+ */
+public class AudioCapture implements Runnable {
+
+    private static final String TAG = "scr_AudioCapture";
+    private static final int CHUNKS_PER_SECOND = 50;
+    private static final long UNDERRUN_THRESHOLD_NS = 100000000;
+
+    // AudioAttributes usages captured from other apps, constants from API 29 AudioPlaybackCaptureConfiguration docs
+    private static final int[] PLAYBACK_CAPTURE_USAGES = {0 /* UNKNOWN */, 1 /* MEDIA */, 14 /* GAME */};
+
+    private final String name;
+    private final AudioRecord audioRecord;
+    private final Listener listener;
+    private final int sampleRate;
+    private final int channels;
+    private final int frameSize;
+    private final int bytesPerSecond;
+    private final PcmRingBuffer ringBuffer;
+    private final AvTimestampEngine timestampEngine;
+    private final AudioLevelMeter levelMeter;
+    private Method getTimestampMethod;
+    private AudioTimestamp audioTimestamp;
+    private Thread thread;
+    private volatile boolean stopped;
+    private volatile long wakeups;
+    private boolean released;
+
+    public AudioCapture(String name, AudioRecord audioRecord, Listener listener) {
+        this.name = name;
+        this.audioRecord = audioRecord;
+        this.listener = listener;
+        sampleRate = audioRecord.getSampleRate();
+        channels = audioRecord.getChannelCount();
+        frameSize = 2 * channels;
+        bytesPerSecond = sampleRate * frameSize;
+        // power of two chunk divides ring capacity and holds whole frames
+        int chunkSize = Integer.highestOneBit(bytesPerSecond / CHUNKS_PER_SECOND);
+        ringBuffer = new PcmRingBuffer(Integer.highestOneBit(bytesPerSecond) * 2, chunkSize, UNDERRUN_THRESHOLD_NS);
+        timestampEngine = new AvTimestampEngine(AvTimestampEngine.SYSTEM_CLOCK, sampleRate);
+        levelMeter = new AudioLevelMeter(name, sampleRate, channels);
+        ringBuffer.setLevelMeter(levelMeter);
+        if (Build.VERSION.SDK_INT >= 24) {
+            try {
+                getTimestampMethod = AudioRecord.class.getMethod("getTimestamp", AudioTimestamp.class, int.class);
+                audioTimestamp = new AudioTimestamp();
+            } catch (NoSuchMethodException e) {
+                Log.w(TAG, "AudioRecord timestamps not available");
+            }
+        }
+    }
+
+    public static AudioRecord createMicRecord(int sampleRate, boolean stereo) {
+        int channelConfig = stereo ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        return new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, 4 * minBufferSize);
+    }
+
+    /**
+     * Capture audio played by other apps with AudioPlaybackCaptureConfiguration available since Android 10.
+     * Classes are accessed through reflection as they are newer than compile SDK.
+     */
+    public static AudioRecord createPlaybackCaptureRecord(MediaProjection mediaProjection, int sampleRate, boolean stereo) throws Exception {
+        Class<?> configBuilderClass = Class.forName("android.media.AudioPlaybackCaptureConfiguration$Builder");
+        Object configBuilder = configBuilderClass.getConstructor(MediaProjection.class).newInstance(mediaProjection);
+        Method addMatchingUsage = configBuilderClass.getMethod("addMatchingUsage", int.class);
+        for (int usage : PLAYBACK_CAPTURE_USAGES) {
+            addMatchingUsage.invoke(configBuilder, usage);
+        }
+        Object config = configBuilderClass.getMethod("build").invoke(configBuilder);
+
+        int channelConfig = stereo ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        AudioFormat format = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(sampleRate)
+                .setChannelMask(channelConfig)
+                .build();
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+
+        Class<?> recordBuilderClass = Class.forName("android.media.AudioRecord$Builder");
+        Object recordBuilder = recordBuilderClass.getConstructor().newInstance();
+        recordBuilderClass.getMethod("setAudioFormat", AudioFormat.class).invoke(recordBuilder, format);
+        recordBuilderClass.getMethod("setBufferSizeInBytes", int.class).invoke(recordBuilder, 4 * minBufferSize);
+        recordBuilderClass.getMethod("setAudioPlaybackCaptureConfig", config.getClass()).invoke(recordBuilder, config);
+        return (AudioRecord) recordBuilderClass.getMethod("build").invoke(recordBuilder);
+    }
+
+    public void start() {
+        thread = new Thread(this, name + "Capture");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            try {
+                audioRecord.startRecording();
+            } catch (Exception e) {
+                listener.onCaptureError(this, RecordingProcessState.MICROPHONE_BUSY_ERROR, 506, e);
+                return;
+            }
+            listener.onCaptureStarted(this);
+            while (!stopped) {
+                int read = ringBuffer.readFrom(audioRecord);
+                if (read < 0) {
+                    if (read == AudioRecord.ERROR_INVALID_OPERATION) {
+                        listener.onCaptureError(this, RecordingProcessState.MICROPHONE_BUSY_ERROR, 528, null);
+                    } else {
+                        listener.onCaptureError(this, RecordingProcessState.UNKNOWN_RECORDING_ERROR, 529, null);
+                    }
+                    return;
+                }
+                wakeups++;
+                long frames = ringBuffer.getWritePosition() / frameSize;
+                updateInputLatency(frames);
+                timestampEngine.onAudioCaptured(frames);
+                listener.onDataAvailable(this);
+            }
+        } catch (Exception e) {
+            listener.onCaptureError(this, RecordingProcessState.UNKNOWN_RECORDING_ERROR, 511, e);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Measure input latency with AudioRecord.getTimestamp() available since Android 7.0.
+     */
+    private void updateInputLatency(long frames) {
+        if (getTimestampMethod == null) {
+            return;
+        }
+        try {
+            // AudioTimestamp.TIMEBASE_MONOTONIC matches System.nanoTime() and surface timestamps
+            Object result = getTimestampMethod.invoke(audioRecord, audioTimestamp, 0);
+            if (Integer.valueOf(AudioRecord.SUCCESS).equals(result)) {
+                timestampEngine.onAudioTimestamp(frames, audioTimestamp.framePosition, audioTimestamp.nanoTime);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Can't get AudioRecord timestamp", e);
+            getTimestampMethod = null;
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Wait for the capture thread to finish. AudioRecord is released even if capture was never started.
+     */
+    public void join() {
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignore) {
+            }
+        } else {
+            release();
+        }
+    }
+
+    public void interrupt() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private synchronized void release() {
+        if (released) return;
+        released = true;
+        try {
+            audioRecord.stop();
+        } catch (IllegalStateException ignore) {
+            // recording was never started
+        }
+        audioRecord.release();
+    }
+
+    /**
+     * @return time when given frame was captured in monotonic clock microseconds
+     */
+    public long getFrameTimeUs(long frame) {
+        return timestampEngine.getAudioTimeUs(frame);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PcmRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    public AvTimestampEngine getTimestampEngine() {
+        return timestampEngine;
+    }
+
+    public AudioLevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    public interface Listener {
+        void onCaptureStarted(AudioCapture capture);
+
+        /**
+         * Called on capture thread after each chunk of data is stored in the ring buffer.
+         */
+        void onDataAvailable(AudioCapture capture);
+
+        void onCaptureError(AudioCapture capture, RecordingProcessState state, int errorCode, Throwable throwable);
+    }
+}
@@ -0,0 +1,162 @@
+package com.iwobanas.screenrecorder;
+
+/**
+ * Measures RMS and peak level of 16 bit little endian PCM in blocks as they are captured and keeps
+ * statistics of silent periods. Blocks quieter than {@value #SILENCE_THRESHOLD_DB}dBFS are considered silent.
+ * {@link #process} is called on the capture thread for each chunk read from AudioRecord and only does
+ * a single pass over the samples, {@link Listener} is notified from the same thread at most once per interval.
+ * Summary getters may be called from any thread after capture is finished.
+ */
+public class AudioLevelMeter {
+
+    public static final float SILENCE_THRESHOLD_DB = -60f;
+    public static final float MIN_LEVEL_DB = -96f;
+    private static final long MIN_SILENT_RUN_MS = 1000;
+    private static final double FULL_SCALE_SQUARED = 32768.0 * 32768.0;
+
+    private final String name;
+    private final int samplesPerSecond;
+    private volatile Listener listener;
+    private volatile long listenerIntervalSamples;
+
+    // level since the last listener notification
+    private double intervalSquares;
+    private long intervalSamples;
+    private int intervalPeak;
+    private boolean intervalSilent = true;
+
+    private double totalSquares;
+    private long totalSamples;
+    private int maxPeak;
+    private long clippedSamples;
+    private long silentSamples;
+    private long silentRunSamples;
+    private long longestSilentRunSamples;
+    private int silentRuns;
+
+    public AudioLevelMeter(String name, int sampleRate, int channels) {
+        this.name = name;
+        samplesPerSecond = sampleRate * channels;
+    }
+
+    /**
+     * @param intervalMs minimum time between notifications measured in captured audio
+     */
+    public void setListener(Listener listener, long intervalMs) {
+        listenerIntervalSamples = intervalMs * samplesPerSecond / 1000;
+        this.listener = listener;
+    }
+
+    /**
+     * Measure a block of captured PCM data.
+     */
+    public void process(byte[] data, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return;
+        }
+        long squares = 0;
+        int peak = 0;
+        int clipped = 0;
+        for (int i = offset, end = offset + samples * 2; i < end; i += 2) {
+            int sample = (short) ((data[i] & 0xff) | (data[i + 1] << 8));
+            squares += sample * sample;
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            if (magnitude >= Short.MAX_VALUE) {
+                clipped++;
+            }
+        }
+
+        boolean silent = toDecibel(squares / (double) samples) < SILENCE_THRESHOLD_DB;
+        if (silent) {
+            silentSamples += samples;
+            silentRunSamples += samples;
+        } else {
+            endSilentRun();
+        }
+        totalSquares += squares;
+        totalSamples += samples;
+        clippedSamples += clipped;
+        if (peak > maxPeak) {
+            maxPeak = peak;
+        }
+
+        Listener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        intervalSquares += squares;
+        intervalSamples += samples;
+        intervalPeak = Math.max(intervalPeak, peak);
+        intervalSilent &= silent;
+        if (intervalSamples >= listenerIntervalSamples) {
+            listener.onAudioLevel(name, toDecibel(intervalSquares / intervalSamples),
+                    toDecibel((double) intervalPeak * intervalPeak), intervalSilent);
+            intervalSquares = 0;
+            intervalSamples = 0;
+            intervalPeak = 0;
+            intervalSilent = true;
+        }
+    }
+
+    private void endSilentRun() {
+        if (silentRunSamples * 1000 >= MIN_SILENT_RUN_MS * samplesPerSecond) {
+            silentRuns++;
+        }
+        longestSilentRunSamples = Math.max(longestSilentRunSamples, silentRunSamples);
+        silentRunSamples = 0;
+    }
+
+    private static float toDecibel(double meanSquare) {
+        if (meanSquare <= 0) {
+            return MIN_LEVEL_DB;
+        }
+        return (float) Math.max(MIN_LEVEL_DB, 10 * Math.log10(meanSquare / FULL_SCALE_SQUARED));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return RMS level of the whole capture in dBFS
+     */
+    public float getAverageRmsDb() {
+        return totalSamples == 0 ? MIN_LEVEL_DB : toDecibel(totalSquares / totalSamples);
+    }
+
+    public float getMaxPeakDb() {
+        return toDecibel((double) maxPeak * maxPeak);
+    }
+
+    public long getClippedSamples() {
+        return clippedSamples;
+    }
+
+    public long getSilenceMs() {
+        return silentSamples * 1000 / samplesPerSecond;
+    }
+
+    public long getLongestSilenceMs() {
+        return Math.max(longestSilentRunSamples, silentRunSamples) * 1000 / samplesPerSecond;
+    }
+
+    /**
+     * @return number of silent periods longer than {@value #MIN_SILENT_RUN_MS}ms
+     */
+    public int getSilentRuns() {
+        return silentRuns + (silentRunSamples * 1000 >= MIN_SILENT_RUN_MS * samplesPerSecond ? 1 : 0);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the capture thread with levels measured since the previous call.
+         * @param source name of the capture
+         * @param silent true if all blocks in the interval were silent
+         */
+        void onAudioLevel(String source, float rmsDb, float peakDb, boolean silent);
+    }
+}
@@ -0,0 +1,266 @@
+package com.iwobanas.screenrecorder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mixes 16 bit little endian PCM from several {@link PcmRingBuffer}s captured at the same sampling rate.
+ * The first source is the master, mixing advances as its data arrives and output frame positions follow it
+ * so timestamps can be taken from its clock. Other sources missing data after they started are padded with silence
+ * which is skipped once the late data arrives, and data they accumulate beyond maximum lag is dropped,
+ * so capture stalls and slow clock drift between devices don't build up latency.
+ * Each source has its own gain and is up/downmixed to output channel count.
+ * Mix is passed through a peak limiter with instant attack so loud sources don't clip.
+ * No memory is allocated after sources are added. Not thread safe, call from the encoder input thread only.
+ */
+public class AudioMixer {
+
+    private static final float LIMITER_THRESHOLD = 0.9f * Short.MAX_VALUE;
+    private static final long LIMITER_RELEASE_US = 100000;
+    private static final long MAX_LAG_US = 100000;
+    private static final int BUDGET_PERCENT = 10;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int frameSize;
+    private final int maxBlockFrames;
+    private final float[] mix;
+    private final float releaseCoefficient;
+    private final long maxLagFrames;
+    private final List<Source> sources = new ArrayList<Source>();
+    private float limiterGain = 1.0f;
+    private long readFrames;
+
+    private long blocks;
+    private long blockTimeNs;
+    private long maxBlockTimeNs;
+    private int budgetOverruns;
+    private long limitedFrames;
+
+    public AudioMixer(int sampleRate, int channels, int maxBlockFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.maxBlockFrames = maxBlockFrames;
+        frameSize = 2 * channels;
+        mix = new float[maxBlockFrames * channels];
+        releaseCoefficient = (float) (1.0 - Math.exp(-1000000.0 / (LIMITER_RELEASE_US * sampleRate)));
+        maxLagFrames = MAX_LAG_US * sampleRate / 1000000;
+    }
+
+    /**
+     * @param channels number of channels in source data, 1 or 2
+     * @return index of the source to be used with {@link #setGain(int, float)}
+     */
+    public int addSource(PcmRingBuffer ringBuffer, int channels, float gain) {
+        if (channels != 1 && channels != 2) {
+            throw new IllegalArgumentException("Unsupported channel count " + channels);
+        }
+        sources.add(new Source(ringBuffer, channels, gain, maxBlockFrames));
+        return sources.size() - 1;
+    }
+
+    public void setGain(int source, float gain) {
+        sources.get(source).gain = gain;
+    }
+
+    /**
+     * @return number of output bytes that can be mixed now
+     */
+    public int available() {
+        return sources.get(0).ringBuffer.available() / sources.get(0).frameSize * frameSize;
+    }
+
+    /**
+     * Mix as much data as the master source has available and target can hold.
+     * @return number of bytes written to target
+     */
+    public int mix(ByteBuffer target) {
+        int written = 0;
+        while (true) {
+            int frames = Math.min(maxBlockFrames, Math.min(available(), target.remaining()) / frameSize);
+            if (frames == 0) {
+                return written;
+            }
+            long startNs = System.nanoTime();
+            mixBlock(frames, target);
+            long elapsedNs = System.nanoTime() - startNs;
+            blocks++;
+            blockTimeNs += elapsedNs;
+            if (elapsedNs > maxBlockTimeNs) {
+                maxBlockTimeNs = elapsedNs;
+            }
+            if (elapsedNs * 100 > frames * 1000000000L / sampleRate * BUDGET_PERCENT) {
+                budgetOverruns++;
+            }
+            written += frames * frameSize;
+            readFrames += frames;
+        }
+    }
+
+    private void mixBlock(int frames, ByteBuffer target) {
+        int samples = frames * channels;
+        for (int i = 0; i < samples; i++) {
+            mix[i] = 0;
+        }
+        for (int s = 0; s < sources.size(); s++) {
+            Source source = sources.get(s);
+            // master always has enough data, mixing is driven by it
+            source.read(frames, s == 0 ? Long.MAX_VALUE : maxLagFrames);
+            accumulate(source, frames);
+        }
+
+        for (int f = 0; f < frames; f++) {
+            int offset = f * channels;
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(mix[offset + c]));
+            }
+            float targetGain = peak > LIMITER_THRESHOLD ? LIMITER_THRESHOLD / peak : 1.0f;
+            if (targetGain < limiterGain) {
+                limiterGain = targetGain;
+            } else {
+                limiterGain += (targetGain - limiterGain) * releaseCoefficient;
+            }
+            if (limiterGain < 0.999f) {
+                limitedFrames++;
+            }
+            for (int c = 0; c < channels; c++) {
+                int sample = Math.round(mix[offset + c] * limiterGain);
+                if (sample > Short.MAX_VALUE) {
+                    sample = Short.MAX_VALUE;
+                } else if (sample < Short.MIN_VALUE) {
+                    sample = Short.MIN_VALUE;
+                }
+                target.put((byte) sample);
+                target.put((byte) (sample >> 8));
+            }
+        }
+    }
+
+    private void accumulate(Source source, int frames) {
+        ByteBuffer data = source.scratch;
+        float gain = source.gain;
+        for (int f = 0; f < frames; f++) {
+            int position = f * source.frameSize;
+            float left = (short) ((data.get(position) & 0xff) | (data.get(position + 1) << 8)) * gain;
+            if (source.channels == 1) {
+                for (int c = 0; c < channels; c++) {
+                    mix[f * channels + c] += left;
+                }
+            } else {
+                float right = (short) ((data.get(position + 2) & 0xff) | (data.get(position + 3) << 8)) * gain;
+                if (channels == 1) {
+                    mix[f] += (left + right) * 0.5f;
+                } else {
+                    mix[f * 2] += left;
+                    mix[f * 2 + 1] += right;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of master source frames mixed so far
+     */
+    public long getReadFrames() {
+        return readFrames;
+    }
+
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    public long getAverageBlockTimeNs() {
+        return blocks == 0 ? 0 : blockTimeNs / blocks;
+    }
+
+    public long getMaxBlockTimeNs() {
+        return maxBlockTimeNs;
+    }
+
+    /**
+     * @return number of blocks which took more than {@value #BUDGET_PERCENT}% of their duration to mix
+     */
+    public int getBudgetOverruns() {
+        return budgetOverruns;
+    }
+
+    public long getLimitedFrames() {
+        return limitedFrames;
+    }
+
+    /**
+     * @return number of frames padded with silence because a source had no data, summed over sources
+     */
+    public long getStarvedFrames() {
+        long frames = 0;
+        for (Source source : sources) {
+            frames += source.starvedFrames;
+        }
+        return frames;
+    }
+
+    /**
+     * @return number of frames dropped because a source was too far ahead of the master, summed over sources
+     */
+    public long getDroppedFrames() {
+        long frames = 0;
+        for (Source source : sources) {
+            frames += source.droppedFrames;
+        }
+        return frames;
+    }
+
+    private static class Source {
+        final PcmRingBuffer ringBuffer;
+        final int channels;
+        final int frameSize;
+        final ByteBuffer scratch;
+        volatile float gain;
+        boolean started;
+        long debtFrames; // silence already mixed in place of data which didn't arrive in time
+        long starvedFrames;
+        long droppedFrames;
+
+        Source(PcmRingBuffer ringBuffer, int channels, float gain, int maxBlockFrames) {
+            this.ringBuffer = ringBuffer;
+            this.channels = channels;
+            this.gain = gain;
+            frameSize = 2 * channels;
+            scratch = ByteBuffer.allocate(maxBlockFrames * frameSize);
+        }
+
+        /**
+         * Read frames into scratch buffer padding missing data with silence.
+         */
+        void read(int frames, long maxLagFrames) {
+            long availableFrames = ringBuffer.available() / frameSize;
+            long skipFrames = Math.min(debtFrames, availableFrames);
+            if (availableFrames - skipFrames - frames > maxLagFrames) {
+                long excess = availableFrames - skipFrames - frames - maxLagFrames / 2;
+                droppedFrames += excess;
+                skipFrames += excess;
+            }
+            if (skipFrames > 0) {
+                ringBuffer.skip((int) (skipFrames * frameSize));
+                debtFrames = Math.max(0, debtFrames - skipFrames);
+            }
+            scratch.clear();
+            scratch.limit(frames * frameSize);
+            int read = ringBuffer.read(scratch) / frameSize;
+            if (read > 0) {
+                started = true;
+            }
+            if (read < frames) {
+                if (started) {
+                    starvedFrames += frames - read;
+                    debtFrames = Math.min(debtFrames + frames - read, maxLagFrames);
+                }
+                while (scratch.hasRemaining()) {
+                    scratch.put((byte) 0);
+                }
+            }
+        }
+    }
+}
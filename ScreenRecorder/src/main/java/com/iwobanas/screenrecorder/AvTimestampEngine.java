@@ -0,0 +1,173 @@
+package com.iwobanas.screenrecorder;
+
+/**
+ * Derives audio timestamps from the number of captured samples instead of the time they are handed to the encoder.
+ * Sample clock of the audio device is compared with the monotonic clock used by video frames after every captured chunk.
+ * The lower envelope of the difference (scheduling delays only make reads late) is tracked in one second windows
+ * and the audio timeline is slewed towards it so that audio doesn't drift against video in long recordings.
+ * Data lost before reaching the app (overruns, capture stalls) shows up as a persistent jump and is corrected at once.
+ * Timestamps are in microseconds of the {@link Clock} time base.
+ */
+public class AvTimestampEngine {
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final long WINDOW_US = 1000000;
+    private static final long MAX_SLEW_PPM = 1000;
+    private static final long MAX_DRIFT_PPM = 2000;
+    private static final long DISCONTINUITY_US = 20000;
+    private static final double DRIFT_SMOOTHING = 0.2;
+
+    private final Clock clock;
+    private final int sampleRate;
+
+    private long anchorUs = -1; // monotonic time of the first captured frame
+    private long inputLatencyUs;
+    private boolean inputLatencyMeasured;
+    private long windowMinLatencyUs = Long.MAX_VALUE;
+    private long correctionUs;
+    private long windowStartUs;
+    private long windowMinErrorUs = Long.MAX_VALUE;
+    private long lastWindowUs;
+    private long lastWindowErrorUs;
+    private boolean hasLastWindow;
+    private double driftPpm;
+    private long residualUs;
+    private int discontinuities;
+
+    public AvTimestampEngine(Clock clock, int sampleRate) {
+        this.clock = clock;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Report position of the audio device clock, e.g. from AudioRecord.getTimestamp().
+     * Time between capturing a frame and the app reading it is used as input latency,
+     * the lowest value in each window is taken as reads may be delayed by scheduling.
+     * @param frames number of frames read so far
+     * @param framePosition frame presented to the device at timeNs
+     */
+    public synchronized void onAudioTimestamp(long frames, long framePosition, long timeNs) {
+        long capturedUs = timeNs / 1000 + framesToUs(frames - framePosition);
+        long latencyUs = clock.nanoTime() / 1000 - capturedUs;
+        if (latencyUs < 0) {
+            return;
+        }
+        if (!inputLatencyMeasured) {
+            inputLatencyUs = latencyUs;
+            inputLatencyMeasured = true;
+        }
+        if (latencyUs < windowMinLatencyUs) {
+            windowMinLatencyUs = latencyUs;
+        }
+    }
+
+    /**
+     * Called right after each chunk of audio is read.
+     * @param frames number of frames read so far
+     */
+    public synchronized void onAudioCaptured(long frames) {
+        long nowUs = clock.nanoTime() / 1000;
+        long capturedUs = nowUs - inputLatencyUs;
+        if (anchorUs < 0) {
+            anchorUs = capturedUs - framesToUs(frames);
+            windowStartUs = nowUs;
+            return;
+        }
+        long errorUs = capturedUs - anchorUs - framesToUs(frames);
+        if (errorUs < windowMinErrorUs) {
+            windowMinErrorUs = errorUs;
+        }
+        if (nowUs - windowStartUs >= WINDOW_US) {
+            updateCorrection(nowUs);
+        }
+    }
+
+    private void updateCorrection(long nowUs) {
+        long targetUs = windowMinErrorUs;
+        if (hasLastWindow) {
+            double slopePpm = (targetUs - lastWindowErrorUs) * 1000000.0 / (nowUs - lastWindowUs);
+            // slopes over discontinuities are not drift
+            if (Math.abs(slopePpm) < MAX_DRIFT_PPM) {
+                driftPpm += (slopePpm - driftPpm) * DRIFT_SMOOTHING;
+            }
+        }
+        long deltaUs = targetUs - correctionUs;
+        if (deltaUs > DISCONTINUITY_US) {
+            correctionUs = targetUs;
+            discontinuities++;
+        } else {
+            // slew gradually so that timestamps stay monotonic
+            long maxStepUs = (nowUs - windowStartUs) * MAX_SLEW_PPM / 1000000;
+            correctionUs += Math.max(-maxStepUs, Math.min(maxStepUs, deltaUs));
+        }
+        residualUs = targetUs - correctionUs;
+        lastWindowUs = nowUs;
+        lastWindowErrorUs = targetUs;
+        hasLastWindow = true;
+        windowStartUs = nowUs;
+        windowMinErrorUs = Long.MAX_VALUE;
+        // latency changes only between windows so that errors within a window are comparable
+        if (windowMinLatencyUs != Long.MAX_VALUE) {
+            inputLatencyUs = windowMinLatencyUs;
+            windowMinLatencyUs = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @param frame index of the first frame of encoder input buffer
+     * @return capture time of the frame in monotonic clock microseconds
+     */
+    public synchronized long getAudioTimeUs(long frame) {
+        if (anchorUs < 0) {
+            return clock.nanoTime() / 1000 - inputLatencyUs;
+        }
+        return anchorUs + framesToUs(frame) + correctionUs;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000 / sampleRate;
+    }
+
+    /**
+     * @return estimated drift of audio sample clock against monotonic clock, positive if audio clock is slow
+     */
+    public synchronized double getDriftPpm() {
+        return driftPpm;
+    }
+
+    /**
+     * @return total correction applied to sample count based timestamps
+     */
+    public synchronized long getCorrectionUs() {
+        return correctionUs;
+    }
+
+    /**
+     * @return remaining offset between audio and video timeline measured in the last window
+     */
+    public synchronized long getOffsetUs() {
+        return residualUs;
+    }
+
+    public synchronized long getInputLatencyUs() {
+        return inputLatencyUs;
+    }
+
+    public synchronized boolean isInputLatencyMeasured() {
+        return inputLatencyMeasured;
+    }
+
+    public synchronized int getDiscontinuities() {
+        return discontinuities;
+    }
+}
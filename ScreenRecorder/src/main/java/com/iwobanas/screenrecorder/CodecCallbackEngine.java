@@ -0,0 +1,156 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a single encoder in asynchronous mode on a dedicated {@link HandlerThread}.
+ * The thread sleeps until the codec signals available input or output buffers instead of polling
+ * dequeueInputBuffer/dequeueOutputBuffer with timeouts.
+ * Output is passed to an {@link EncoderDrainer} so the muxer side is shared with the polling engine.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CodecCallbackEngine {
+
+    private static final String TAG = "scr_CodecCallbackEngine";
+    private static final long WAIT_TIMEOUT_MS = 3000;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private volatile long wakeups;
+
+    public CodecCallbackEngine(String name) {
+        thread = new HandlerThread(name, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Codec callbacks are delivered on the looper of the thread which created the codec
+     * so the codec is created on the engine thread.
+     */
+    public MediaCodec createEncoder(final String mime) throws IOException {
+        final MediaCodec[] codec = new MediaCodec[1];
+        final IOException[] exception = new IOException[1];
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codec[0] = MediaCodec.createEncoderByType(mime);
+                } catch (IOException e) {
+                    exception[0] = e;
+                }
+            }
+        });
+        if (exception[0] != null) {
+            throw exception[0];
+        }
+        if (codec[0] == null) {
+            throw new IOException("Codec not created in time");
+        }
+        return codec[0];
+    }
+
+    /**
+     * Must be called before the codec is configured.
+     * @param inputFeeder source of input buffers or null if codec is fed through an input surface
+     */
+    public void setCallback(MediaCodec codec, final EncoderDrainer drainer, final InputFeeder inputFeeder) {
+        codec.setCallback(new MediaCodec.Callback() {
+            private boolean failed;
+
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                wakeups++;
+                if (inputFeeder != null && !failed) {
+                    inputFeeder.onInputBufferAvailable(codec, index);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                wakeups++;
+                if (failed) return;
+                try {
+                    failed = !drainer.onOutputBufferAvailable(index, info);
+                } catch (Exception e) {
+                    failed = true;
+                    drainer.onCodecError(e);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                wakeups++;
+                if (failed) return;
+                failed = true;
+                drainer.onCodecError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                wakeups++;
+                if (failed) return;
+                failed = !drainer.onOutputFormatChanged(format);
+            }
+        });
+    }
+
+    public void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * Execute runnable on the engine thread and wait until it's completed.
+     */
+    public void runAndWait(final Runnable runnable) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        boolean posted = handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            Log.w(TAG, "Engine thread not running " + thread.getName());
+            return;
+        }
+        try {
+            if (!latch.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timeout waiting for " + thread.getName());
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for " + thread.getName());
+        }
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    public void quit() {
+        thread.quitSafely();
+        try {
+            thread.join(WAIT_TIMEOUT_MS);
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    public interface InputFeeder {
+        void onInputBufferAvailable(MediaCodec codec, int index);
+    }
+}
@@ -0,0 +1,259 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains output of a single encoder on a dedicated thread and hands encoded samples to a {@link SampleQueue}.
+ * Each encoder gets its own drainer so that a slow dequeue or a muxer stall on one track doesn't delay the other.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class EncoderDrainer implements Runnable {
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+    public static final int TRACK_MIC_AUDIO = 2;
+    public static final int TRACK_COUNT = 3;
+
+    private static final String TAG = "scr_EncoderDrainer";
+    private static final long DEQUEUE_TIMEOUT_US = 100000;
+    private static final long QUEUE_FULL_PARK_NS = 1000000;
+
+    // error codes reported for video and audio tracks respectively, both audio tracks report the same codes
+    private static final int[] DEQUEUE_ERROR = {522, 516, 516};
+    private static final int[] FORMAT_ERROR = {523, 517, 517};
+    private static final int[] FORMAT_CHANGED_TWICE_ERROR = {502, 508, 508};
+    private static final int[] BUFFER_ERROR = {525, 519, 519};
+    private static final int[] NULL_BUFFER_ERROR = {503, 509, 509};
+    private static final int[] RELEASE_ERROR = {527, 521, 521};
+    private static final int[] END_OF_STREAM_ERROR = {503, 510, 510};
+
+    private final MediaCodec codec;
+    private final SampleQueue queue;
+    private final Callback callback;
+    private final int trackType;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final Thread consumerThread;
+    private volatile SampleFilter sampleFilter;
+    private volatile SampleReplacer sampleReplacer;
+    private Thread thread;
+    private boolean formatReceived;
+    private volatile boolean stopped;
+    private int errorCode;
+    private long queueFullCount;
+    private volatile long wakeups;
+
+    /**
+     * @param consumerThread thread to be unparked whenever new sample is published
+     */
+    public EncoderDrainer(MediaCodec codec, int trackType, SampleQueue queue, Callback callback, Thread consumerThread) {
+        this.codec = codec;
+        this.trackType = trackType;
+        this.queue = queue;
+        this.callback = callback;
+        this.consumerThread = consumerThread;
+    }
+
+    /**
+     * Set before the codec is started.
+     */
+    public void setSampleFilter(SampleFilter sampleFilter) {
+        this.sampleFilter = sampleFilter;
+    }
+
+    /**
+     * Set before the codec is started.
+     */
+    public void setSampleReplacer(SampleReplacer sampleReplacer) {
+        this.sampleReplacer = sampleReplacer;
+    }
+
+    public int getTrackType() {
+        return trackType;
+    }
+
+    public SampleQueue getQueue() {
+        return queue;
+    }
+
+    public long getQueueFullCount() {
+        return queueFullCount;
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    /**
+     * Start polling the codec on a dedicated thread.
+     * Not needed if codec output is delivered through {@link CodecCallbackEngine}.
+     */
+    public void start() {
+        thread = new Thread(this, trackType == TRACK_VIDEO ? "videoDrainer" : trackType == TRACK_AUDIO ? "audioDrainer" : "micAudioDrainer");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public void interrupt() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void join() {
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException ignore) {
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                errorCode = DEQUEUE_ERROR[trackType];
+                int encoderStatus = codec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT_US);
+                wakeups++;
+                //noinspection StatementWithEmptyBody
+                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    // no output available yet
+                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (!onOutputFormatChanged(codec.getOutputFormat())) {
+                        return;
+                    }
+                } else if (encoderStatus < 0) {
+                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus + " track: " + trackType);
+                } else {
+                    if (!onOutputBufferAvailable(encoderStatus, bufferInfo)) {
+                        return;
+                    }
+                }
+            }
+        } catch (Throwable throwable) {
+            if (!stopped) {
+                callback.onError(this, errorCode, throwable);
+            }
+        }
+    }
+
+    void onCodecError(Throwable throwable) {
+        if (!stopped) {
+            callback.onError(this, errorCode, throwable);
+        }
+    }
+
+    /**
+     * @return false if draining should stop because an error was reported
+     */
+    boolean onOutputFormatChanged(MediaFormat format) {
+        errorCode = FORMAT_ERROR[trackType];
+        if (formatReceived) {
+            callback.onError(this, FORMAT_CHANGED_TWICE_ERROR[trackType], null);
+            return false;
+        }
+        formatReceived = true;
+        callback.onFormatChanged(this, format);
+        return true;
+    }
+
+    /**
+     * @return false if draining should stop because an error was reported
+     */
+    boolean onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        errorCode = BUFFER_ERROR[trackType];
+        ByteBuffer encodedData = codec.getOutputBuffer(index);
+        if (encodedData == null) {
+            callback.onError(this, NULL_BUFFER_ERROR[trackType], null);
+            return false;
+        }
+
+        if (info.size != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+                && callback.onSample(this, info)
+                && (sampleFilter == null || sampleFilter.accept(encodedData, info))) {
+            ByteBuffer replacement = sampleReplacer != null ? sampleReplacer.replace(info) : null;
+            if (replacement != null) {
+                info.set(replacement.position(), replacement.remaining(), info.presentationTimeUs, info.flags);
+                enqueue(replacement, info);
+            } else {
+                enqueue(encodedData, info);
+            }
+        }
+
+        errorCode = RELEASE_ERROR[trackType];
+        codec.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (!stopped) {
+                callback.onError(this, END_OF_STREAM_ERROR[trackType], null);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void enqueue(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        SampleQueue.Sample sample = queue.claim();
+        if (sample == null) {
+            queueFullCount++;
+            while (sample == null && !stopped) {
+                LockSupport.unpark(consumerThread);
+                LockSupport.parkNanos(this, QUEUE_FULL_PARK_NS);
+                sample = queue.claim();
+            }
+            if (sample == null) {
+                return;
+            }
+        }
+        sample.set(encodedData, info);
+        queue.publish();
+        LockSupport.unpark(consumerThread);
+    }
+
+    public interface Callback {
+        void onFormatChanged(EncoderDrainer drainer, MediaFormat format);
+
+        /**
+         * Called before each sample is queued. Implementation may adjust the presentation time.
+         * @return false if sample should be dropped
+         */
+        boolean onSample(EncoderDrainer drainer, MediaCodec.BufferInfo info);
+
+        /**
+         * @param throwable exception that caused the error or null if error was detected without exception
+         */
+        void onError(EncoderDrainer drainer, int errorCode, Throwable throwable);
+    }
+
+    /**
+     * Drops samples accepted by {@link Callback#onSample} based on their encoded data, called on the draining thread.
+     */
+    public interface SampleFilter {
+        /**
+         * @return false if sample should be dropped
+         */
+        boolean accept(ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    /**
+     * Substitutes encoded data of samples accepted by {@link Callback#onSample}, called on the draining thread.
+     */
+    public interface SampleReplacer {
+        /**
+         * @return data to be queued instead of the encoded sample or null to keep the sample unchanged
+         */
+        ByteBuffer replace(MediaCodec.BufferInfo info);
+    }
+}
@@ -0,0 +1,779 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fragmented MP4 (ISO BMFF) writer implemented on top of {@link FileChannel}.
+ * The moov box (without sample tables) is written on {@link #start()} and samples are then written
+ * as a sequence of moof + mdat fragments. Each flushed fragment is self contained so a recording
+ * interrupted by a crash or process kill remains playable up to the last complete fragment.
+ * Supports H.264 and MPEG-4 video and AAC audio as produced by MediaCodec encoders.
+ * Fragments may be written through {@link WriteBehindChannel} so that slow storage doesn't stall the caller.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class FragmentedMp4Writer implements SampleSink {
+
+    private static final String TAG = "scr_FragmentedMp4Writer";
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MAX_FRAGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final FileChannel channel;
+    private final WriteBehindChannel writeBehind;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>(2);
+    private final BoxBuilder box = new BoxBuilder();
+    private final ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+    private long position;
+    private long mehdPosition;
+    private int sequenceNumber;
+    private long startTimeUs = -1;
+    private long fragmentStartUs = -1;
+    private int fragmentSize;
+    private boolean started;
+
+    /**
+     * @param channel writable channel positioned at the beginning of an empty file, closed on {@link #release()}
+     * @param fragmentDurationUs target duration of a single fragment, this is the maximum amount of
+     *                           recording lost if the process is killed
+     */
+    public FragmentedMp4Writer(FileChannel channel, long fragmentDurationUs) {
+        this.channel = channel;
+        this.fragmentDurationUs = fragmentDurationUs;
+        writeBehind = null;
+    }
+
+    /**
+     * @param writeBehind channel for an empty file, closed on {@link #release()}
+     */
+    public FragmentedMp4Writer(WriteBehindChannel writeBehind, long fragmentDurationUs) {
+        this.writeBehind = writeBehind;
+        this.fragmentDurationUs = fragmentDurationUs;
+        channel = null;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (started) {
+            throw new IllegalStateException("Can't add track after start");
+        }
+        tracks.add(new Track(tracks.size() + 1, format));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("No tracks added");
+        }
+        box.reset();
+        writeFtyp();
+        writeMoov();
+        try {
+            write(box.flip());
+            if (writeBehind != null) {
+                // file interrupted before the first fragment is still a valid empty movie
+                writeBehind.checkpoint();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing moov", e);
+        }
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (!started) {
+            throw new IllegalStateException("Can't write, writer is not started");
+        }
+        if (startTimeUs < 0) {
+            // file timeline starts at the first sample so that segments of a longer recording start at zero
+            startTimeUs = bufferInfo.presentationTimeUs;
+        }
+        if (fragmentStartUs < 0) {
+            fragmentStartUs = bufferInfo.presentationTimeUs;
+        } else if (bufferInfo.presentationTimeUs - fragmentStartUs >= fragmentDurationUs
+                || fragmentSize > MAX_FRAGMENT_SIZE) {
+            flush(false);
+            fragmentStartUs = bufferInfo.presentationTimeUs;
+        }
+        Track track = tracks.get(trackIndex);
+        fragmentSize += track.append(byteBuf, bufferInfo, startTimeUs);
+    }
+
+    @Override
+    public void stop() {
+        if (!started) {
+            throw new IllegalStateException("Can't stop, writer is not started");
+        }
+        started = false;
+        flush(true);
+
+        long durationMs = 0;
+        for (Track track : tracks) {
+            durationMs = Math.max(durationMs, track.endDts * MOVIE_TIMESCALE / track.timescale);
+        }
+        ByteBuffer duration = ByteBuffer.allocate(8);
+        duration.putLong(0, durationMs);
+        try {
+            if (writeBehind != null) {
+                writeBehind.write(duration, mehdPosition);
+                writeBehind.drain();
+            } else {
+                while (duration.hasRemaining()) {
+                    channel.write(duration, mehdPosition + duration.position());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error updating duration", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            if (writeBehind != null) {
+                writeBehind.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing channel", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return writeBehind != null ? "FragmentedMp4Writer+WriteBehind" : "FragmentedMp4Writer";
+    }
+
+    /**
+     * Write a moof + mdat fragment with all pending samples.
+     * Unless this is the last fragment, the newest sample of each track is held back until its
+     * duration is known from the timestamp of the following sample.
+     */
+    private void flush(boolean last) {
+        int mdatSize = 8;
+        boolean empty = true;
+        for (Track track : tracks) {
+            track.flushCount = last ? track.count : Math.max(track.count - 1, 0);
+            track.flushSize = 0;
+            for (int i = 0; i < track.flushCount; i++) {
+                track.flushSize += track.sizes[i];
+            }
+            mdatSize += track.flushSize;
+            if (track.flushCount > 0) {
+                empty = false;
+            }
+        }
+        if (empty) return;
+
+        box.reset();
+        int moof = box.start("moof");
+        int mfhd = box.startFull("mfhd", 0, 0);
+        box.putInt(++sequenceNumber);
+        box.end(mfhd);
+        for (Track track : tracks) {
+            if (track.flushCount == 0) continue;
+            int traf = box.start("traf");
+
+            int tfhd = box.startFull("tfhd", 0, 0x020000); // default-base-is-moof
+            box.putInt(track.id);
+            box.end(tfhd);
+
+            int tfdt = box.startFull("tfdt", 1, 0);
+            box.putLong(track.dts[0]);
+            box.end(tfdt);
+
+            int trun = box.startFull("trun", 0, 0x000701); // data offset, duration, size and flags for each sample
+            box.putInt(track.flushCount);
+            track.dataOffsetPosition = box.position();
+            box.putInt(0);
+            for (int i = 0; i < track.flushCount; i++) {
+                box.putInt(track.getDuration(i));
+                box.putInt(track.sizes[i]);
+                box.putInt(track.flags[i]);
+            }
+            box.end(trun);
+
+            box.end(traf);
+        }
+        box.end(moof);
+
+        int dataOffset = box.position() + 8;
+        for (Track track : tracks) {
+            if (track.flushCount == 0) continue;
+            box.putInt(track.dataOffsetPosition, dataOffset);
+            dataOffset += track.flushSize;
+        }
+
+        mdatHeader.clear();
+        mdatHeader.putInt(mdatSize);
+        mdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mdatHeader.flip();
+
+        try {
+            write(box.flip());
+            write(mdatHeader);
+            for (Track track : tracks) {
+                if (track.flushCount == 0) continue;
+                ByteBuffer data = track.data.duplicate();
+                data.position(0);
+                data.limit(track.flushSize);
+                write(data);
+            }
+            if (writeBehind != null) {
+                writeBehind.checkpoint();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing fragment", e);
+        }
+
+        fragmentSize = 0;
+        for (Track track : tracks) {
+            track.removeFlushed();
+            fragmentSize += track.data.position();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (writeBehind != null) {
+            int size = buffer.remaining();
+            writeBehind.write(buffer, position);
+            position += size;
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void writeFtyp() {
+        int ftyp = box.start("ftyp");
+        box.putType("isom");
+        box.putInt(0x200);
+        box.putType("isom");
+        box.putType("iso5");
+        box.putType("avc1");
+        box.putType("mp41");
+        box.end(ftyp);
+    }
+
+    private void writeMoov() {
+        int moov = box.start("moov");
+
+        int mvhd = box.startFull("mvhd", 0, 0);
+        box.putInt(0); // creation time
+        box.putInt(0); // modification time
+        box.putInt(MOVIE_TIMESCALE);
+        box.putInt(0); // duration is specified in mehd
+        box.putInt(0x00010000); // rate
+        box.putShort(0x0100); // volume
+        box.putZeros(10);
+        for (int value : UNITY_MATRIX) {
+            box.putInt(value);
+        }
+        box.putZeros(24);
+        box.putInt(tracks.size() + 1); // next track id
+        box.end(mvhd);
+
+        for (Track track : tracks) {
+            writeTrak(track);
+        }
+
+        int mvex = box.start("mvex");
+        int mehd = box.startFull("mehd", 1, 0);
+        mehdPosition = position + box.position();
+        box.putLong(0); // updated when recording is stopped
+        box.end(mehd);
+        for (Track track : tracks) {
+            int trex = box.startFull("trex", 0, 0);
+            box.putInt(track.id);
+            box.putInt(1); // sample description index
+            box.putInt(0); // default duration
+            box.putInt(0); // default size
+            box.putInt(0); // default flags
+            box.end(trex);
+        }
+        box.end(mvex);
+
+        box.end(moov);
+    }
+
+    private void writeTrak(Track track) {
+        int trak = box.start("trak");
+
+        int tkhd = box.startFull("tkhd", 0, 0x000003); // enabled, in movie
+        box.putInt(0); // creation time
+        box.putInt(0); // modification time
+        box.putInt(track.id);
+        box.putInt(0); // reserved
+        box.putInt(0); // duration
+        box.putZeros(8);
+        box.putShort(0); // layer
+        box.putShort(0); // alternate group
+        box.putShort(track.video ? 0 : 0x0100); // volume
+        box.putShort(0);
+        for (int value : UNITY_MATRIX) {
+            box.putInt(value);
+        }
+        box.putInt(track.width << 16);
+        box.putInt(track.height << 16);
+        box.end(tkhd);
+
+        int mdia = box.start("mdia");
+
+        int mdhd = box.startFull("mdhd", 0, 0);
+        box.putInt(0); // creation time
+        box.putInt(0); // modification time
+        box.putInt(track.timescale);
+        box.putInt(0); // duration
+        box.putShort(0x55c4); // "und" language
+        box.putShort(0);
+        box.end(mdhd);
+
+        int hdlr = box.startFull("hdlr", 0, 0);
+        box.putInt(0);
+        box.putType(track.video ? "vide" : "soun");
+        box.putZeros(12);
+        String name = track.format.containsKey(KEY_TRACK_NAME) ? track.format.getString(KEY_TRACK_NAME) : null;
+        box.putString(name != null ? name : track.video ? "VideoHandle" : "SoundHandle");
+        box.end(hdlr);
+
+        int minf = box.start("minf");
+        if (track.video) {
+            int vmhd = box.startFull("vmhd", 0, 1);
+            box.putZeros(8);
+            box.end(vmhd);
+        } else {
+            int smhd = box.startFull("smhd", 0, 0);
+            box.putZeros(4);
+            box.end(smhd);
+        }
+
+        int dinf = box.start("dinf");
+        int dref = box.startFull("dref", 0, 0);
+        box.putInt(1);
+        int url = box.startFull("url ", 0, 1); // media data in the same file
+        box.end(url);
+        box.end(dref);
+        box.end(dinf);
+
+        int stbl = box.start("stbl");
+        int stsd = box.startFull("stsd", 0, 0);
+        box.putInt(1);
+        writeSampleEntry(track);
+        box.end(stsd);
+        // sample tables are empty, samples are described in fragments
+        int stts = box.startFull("stts", 0, 0);
+        box.putInt(0);
+        box.end(stts);
+        int stsc = box.startFull("stsc", 0, 0);
+        box.putInt(0);
+        box.end(stsc);
+        int stsz = box.startFull("stsz", 0, 0);
+        box.putInt(0);
+        box.putInt(0);
+        box.end(stsz);
+        int stco = box.startFull("stco", 0, 0);
+        box.putInt(0);
+        box.end(stco);
+        box.end(stbl);
+
+        box.end(minf);
+        box.end(mdia);
+        box.end(trak);
+    }
+
+    private void writeSampleEntry(Track track) {
+        if (track.video) {
+            int entry = box.start(track.avc ? "avc1" : "mp4v");
+            box.putZeros(6);
+            box.putShort(1); // data reference index
+            box.putZeros(16);
+            box.putShort(track.width);
+            box.putShort(track.height);
+            box.putInt(0x00480000); // 72 dpi
+            box.putInt(0x00480000);
+            box.putInt(0);
+            box.putShort(1); // frame count
+            box.putZeros(32); // compressor name
+            box.putShort(0x0018); // depth
+            box.putShort(-1);
+            if (track.avc) {
+                writeAvcC(track.format);
+            } else {
+                writeEsds(track.format, 0x20, 0x04);
+            }
+            box.end(entry);
+        } else {
+            int entry = box.start("mp4a");
+            box.putZeros(6);
+            box.putShort(1); // data reference index
+            box.putZeros(8);
+            box.putShort(track.format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+            box.putShort(16); // sample size
+            box.putZeros(4);
+            // 16.16 fixed point sample rate, 0 if the rate doesn't fit in 16 bits as for 88.2kHz and above
+            box.putInt(track.timescale <= 0xffff ? track.timescale << 16 : 0);
+            writeEsds(track.format, 0x40, 0x05);
+            box.end(entry);
+        }
+    }
+
+    private void writeAvcC(MediaFormat format) {
+        List<ByteBuffer> sps = new ArrayList<>(1);
+        List<ByteBuffer> pps = new ArrayList<>(1);
+        for (String key : new String[]{"csd-0", "csd-1"}) {
+            ByteBuffer csd = format.getByteBuffer(key);
+            if (csd == null) continue;
+            for (ByteBuffer nal : splitNalUnits(csd.duplicate())) {
+                int type = nal.get(nal.position()) & 0x1f;
+                if (type == 7) {
+                    sps.add(nal);
+                } else if (type == 8) {
+                    pps.add(nal);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("Missing SPS or PPS in codec config");
+        }
+        ByteBuffer firstSps = sps.get(0);
+        int avcC = box.start("avcC");
+        box.putByte(1); // version
+        box.putByte(firstSps.get(firstSps.position() + 1)); // profile
+        box.putByte(firstSps.get(firstSps.position() + 2)); // profile compatibility
+        box.putByte(firstSps.get(firstSps.position() + 3)); // level
+        box.putByte(0xff); // 4 bytes NAL length
+        box.putByte(0xe0 | sps.size());
+        for (ByteBuffer nal : sps) {
+            box.putShort(nal.remaining());
+            box.put(nal);
+        }
+        box.putByte(pps.size());
+        for (ByteBuffer nal : pps) {
+            box.putShort(nal.remaining());
+            box.put(nal);
+        }
+        box.end(avcC);
+    }
+
+    private void writeEsds(MediaFormat format, int objectType, int streamType) {
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        int csdSize = csd == null ? 0 : csd.remaining();
+        int esds = box.startFull("esds", 0, 0);
+        box.putByte(0x03); // ES descriptor
+        putDescriptorLength(3 + 5 + 13 + (csdSize > 0 ? 5 + csdSize : 0) + 5 + 1);
+        box.putShort(0); // ES id
+        box.putByte(0);
+        box.putByte(0x04); // decoder config descriptor
+        putDescriptorLength(13 + (csdSize > 0 ? 5 + csdSize : 0));
+        box.putByte(objectType);
+        box.putByte((streamType << 2) | 1);
+        box.putZeros(3); // buffer size
+        int bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        box.putInt(bitrate); // max bitrate
+        box.putInt(bitrate); // average bitrate
+        if (csdSize > 0) {
+            box.putByte(0x05); // decoder specific info
+            putDescriptorLength(csdSize);
+            box.put(csd.duplicate());
+        }
+        box.putByte(0x06); // SL config descriptor
+        putDescriptorLength(1);
+        box.putByte(0x02);
+        box.end(esds);
+    }
+
+    private void putDescriptorLength(int length) {
+        box.putByte(0x80 | (length >> 21) & 0x7f);
+        box.putByte(0x80 | (length >> 14) & 0x7f);
+        box.putByte(0x80 | (length >> 7) & 0x7f);
+        box.putByte(length & 0x7f);
+    }
+
+    /**
+     * Split Annex B byte stream into NAL units (returned buffers share content with the source).
+     */
+    private static List<ByteBuffer> splitNalUnits(ByteBuffer source) {
+        List<ByteBuffer> result = new ArrayList<>(2);
+        int end = source.limit();
+        int start = findStartCode(source, source.position(), end);
+        if (start < 0) {
+            result.add(source.slice());
+            return result;
+        }
+        int nal = start + 3;
+        while (nal < end) {
+            int next = findStartCode(source, nal, end);
+            int nalEnd = trimZeros(source, nal, next < 0 ? end : next);
+            if (nalEnd > nal) {
+                ByteBuffer unit = source.duplicate();
+                unit.limit(nalEnd);
+                unit.position(nal);
+                result.add(unit.slice());
+            }
+            if (next < 0) break;
+            nal = next + 3;
+        }
+        return result;
+    }
+
+    /**
+     * @return index of the first byte of 00 00 01 start code or -1 if not found
+     */
+    private static int findStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buffer.get(i + 2) > 1) {
+                i += 2;
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Trailing zero bytes belong to the following 4 byte start code or are cabac_zero_words and may be dropped.
+     */
+    private static int trimZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private static class Track {
+        final int id;
+        final MediaFormat format;
+        final boolean video;
+        final boolean avc;
+        final int timescale;
+        final int width;
+        final int height;
+        final int defaultDuration;
+
+        ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+        long[] dts = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int count;
+        long lastDts = -1;
+        long endDts;
+        int lastDuration;
+
+        int flushCount;
+        int flushSize;
+        int dataOffsetPosition;
+
+        Track(int id, MediaFormat format) {
+            this.id = id;
+            this.format = format;
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            video = mime.startsWith("video/");
+            avc = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime);
+            if (video) {
+                timescale = VIDEO_TIMESCALE;
+                width = format.getInteger(MediaFormat.KEY_WIDTH);
+                height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                defaultDuration = timescale / 30;
+            } else {
+                timescale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                width = 0;
+                height = 0;
+                defaultDuration = 1024; // AAC frame
+            }
+            lastDuration = defaultDuration;
+        }
+
+        /**
+         * @return number of bytes appended to fragment data
+         */
+        int append(ByteBuffer source, MediaCodec.BufferInfo info, long startTimeUs) {
+            long sampleDts = (info.presentationTimeUs - startTimeUs) * timescale / 1000000l;
+            if (sampleDts <= lastDts) {
+                sampleDts = lastDts + 1;
+            }
+            lastDts = sampleDts;
+
+            if (count == dts.length) {
+                int capacity = count * 2;
+                long[] newDts = new long[capacity];
+                int[] newSizes = new int[capacity];
+                int[] newFlags = new int[capacity];
+                System.arraycopy(dts, 0, newDts, 0, count);
+                System.arraycopy(sizes, 0, newSizes, 0, count);
+                System.arraycopy(flags, 0, newFlags, 0, count);
+                dts = newDts;
+                sizes = newSizes;
+                flags = newFlags;
+            }
+
+            int startPosition = data.position();
+            ByteBuffer sample = source.duplicate();
+            sample.limit(info.offset + info.size);
+            sample.position(info.offset);
+            if (avc) {
+                for (ByteBuffer nal : splitNalUnits(sample)) {
+                    ensureCapacity(nal.remaining() + 4);
+                    data.putInt(nal.remaining());
+                    data.put(nal);
+                }
+            } else {
+                ensureCapacity(sample.remaining());
+                data.put(sample);
+            }
+
+            int size = data.position() - startPosition;
+            dts[count] = sampleDts;
+            sizes[count] = size;
+            boolean sync = !video || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            flags[count] = sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+            count++;
+            return size;
+        }
+
+        int getDuration(int i) {
+            if (i + 1 < count) {
+                lastDuration = (int) (dts[i + 1] - dts[i]);
+            }
+            return lastDuration;
+        }
+
+        /**
+         * Drop samples written in the last fragment keeping the ones held back for the next fragment.
+         */
+        void removeFlushed() {
+            if (flushCount == 0) return;
+            endDts = dts[flushCount - 1] + lastDuration;
+            int remaining = count - flushCount;
+            System.arraycopy(dts, flushCount, dts, 0, remaining);
+            System.arraycopy(sizes, flushCount, sizes, 0, remaining);
+            System.arraycopy(flags, flushCount, flags, 0, remaining);
+            count = remaining;
+
+            data.flip();
+            data.position(flushSize);
+            data.compact();
+        }
+
+        private void ensureCapacity(int size) {
+            if (data.remaining() >= size) return;
+            ByteBuffer newData = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + size));
+            data.flip();
+            newData.put(data);
+            data = newData;
+        }
+    }
+
+    /**
+     * Growable buffer used to build boxes. Box sizes are patched in {@link #end(int)}.
+     */
+    private static class BoxBuilder {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        void reset() {
+            buffer.clear();
+        }
+
+        int position() {
+            return buffer.position();
+        }
+
+        ByteBuffer flip() {
+            buffer.flip();
+            return buffer;
+        }
+
+        int start(String type) {
+            int start = buffer.position();
+            putInt(0);
+            putType(type);
+            return start;
+        }
+
+        int startFull(String type, int version, int flags) {
+            int start = start(type);
+            putInt((version << 24) | flags);
+            return start;
+        }
+
+        void end(int start) {
+            buffer.putInt(start, buffer.position() - start);
+        }
+
+        void putType(String type) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                buffer.put((byte) type.charAt(i));
+            }
+        }
+
+        void putString(String value) {
+            ensure(value.length() + 1);
+            for (int i = 0; i < value.length(); i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+            buffer.put((byte) 0);
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putInt(int index, int value) {
+            buffer.putInt(index, value);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putZeros(int count) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        void put(ByteBuffer source) {
+            ensure(source.remaining());
+            buffer.put(source);
+        }
+
+        private void ensure(int size) {
+            if (buffer.remaining() >= size) return;
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+}
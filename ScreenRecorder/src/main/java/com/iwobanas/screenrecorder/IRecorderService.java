@@ -3,6 +3,8 @@ package com.iwobanas.screenrecorder;
 public interface IRecorderService {
     void startRecording();
     void stopRecording();
+    void pauseRecording();
+    void resumeRecording();
     void close();
 
     void showSettings();
@@ -0,0 +1,71 @@
+package com.iwobanas.screenrecorder;
+
+/**
+ * Cheap latency histogram with power of two microsecond buckets.
+ * Percentiles are reported as the upper bound of the bucket so they are accurate to a factor of two.
+ * Not thread safe, values should be added from a single thread.
+ */
+public class LatencyStats {
+
+    private static final int BUCKETS = 32;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long count;
+    private long totalNs;
+    private long maxNs;
+    private long lastNs;
+
+    public void add(long latencyNs) {
+        lastNs = latencyNs;
+        count++;
+        totalNs += latencyNs;
+        if (latencyNs > maxNs) {
+            maxNs = latencyNs;
+        }
+        long us = latencyNs / 1000;
+        int bucket = us <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(us);
+        histogram[Math.min(bucket, BUCKETS - 1)]++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getLastNs() {
+        return lastNs;
+    }
+
+    public long getMaxNs() {
+        return maxNs;
+    }
+
+    public long getAverageNs() {
+        return count == 0 ? 0 : totalNs / count;
+    }
+
+    /**
+     * @param percentile value between 0 and 100
+     * @return upper bound in microseconds of the latency below which given percent of values fall
+     */
+    public long getPercentileUs(double percentile) {
+        if (count == 0) return 0;
+        long threshold = (long) Math.ceil(count * percentile / 100.0);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += histogram[i];
+            if (cumulative >= threshold) {
+                return 1l << i;
+            }
+        }
+        return maxNs / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + count
+                + " avg: " + getAverageNs() / 1000 + "us"
+                + " p50: " + getPercentileUs(50) + "us"
+                + " p99: " + getPercentileUs(99) + "us"
+                + " max: " + maxNs / 1000 + "us";
+    }
+}
@@ -0,0 +1,64 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decorator measuring latency of each {@link #writeSampleData} call of the wrapped sink
+ * so that different sinks can be compared in the same recording pipeline.
+ */
+public class MeasuredSampleSink implements SampleSink {
+
+    private final SampleSink sink;
+    private final LatencyStats writeLatency;
+
+    public MeasuredSampleSink(SampleSink sink) {
+        this(sink, new LatencyStats());
+    }
+
+    /**
+     * @param writeLatency stats shared with other sinks e.g. all segments of a single recording
+     */
+    public MeasuredSampleSink(SampleSink sink, LatencyStats writeLatency) {
+        this.sink = sink;
+        this.writeLatency = writeLatency;
+    }
+
+    public LatencyStats getWriteLatency() {
+        return writeLatency;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return sink.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        sink.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        long start = System.nanoTime();
+        sink.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        writeLatency.add(System.nanoTime() - start);
+    }
+
+    @Override
+    public void stop() {
+        sink.stop();
+    }
+
+    @Override
+    public void release() {
+        sink.release();
+    }
+
+    @Override
+    public String toString() {
+        return sink.toString();
+    }
+}
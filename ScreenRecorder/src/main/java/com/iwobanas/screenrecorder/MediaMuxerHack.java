@@ -35,6 +35,8 @@ import java.util.Map;
  */
 final public class MediaMuxerHack {
 
+    private static final String TAG = "scr_MediaMuxerHack";
+
     /**
      * Defines the output format. These constants are used with constructor.
      */
@@ -48,137 +50,120 @@ final public class MediaMuxerHack {
         public static final int MUXER_OUTPUT_WEBM   = 1;
     };
 
-    // All the native functions are listed here.
-    private static long nativeSetup(FileDescriptor fd, int format) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeSetup", FileDescriptor.class, Integer.TYPE);
-            method.setAccessible(true);
-            return (long) method.invoke(null, fd, format);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
+    /**
+     * Pre-bound accessor to the private native methods of MediaMuxer and MediaFormat.
+     * Methods are resolved once so that a missing or changed signature is reported when the muxer is created
+     * and writing a sample only costs a {@link Method#invoke} call.
+     */
+    static class NativeBindings {
+        private static NativeBindings instance;
+        private static ReflectionHackException resolveError;
+
+        final Method setup;
+        final Method release;
+        final Method start;
+        final Method stop;
+        final Method addTrack;
+        final Method setOrientationHint;
+        final Method setLocation;
+        final Method writeSampleData;
+        final Method getMap;
+
+        static synchronized NativeBindings get() {
+            if (instance == null && resolveError == null) {
+                try {
+                    instance = new NativeBindings();
+                } catch (ReflectionHackException e) {
+                    Log.e(TAG, "Can't resolve MediaMuxer native methods", e);
+                    resolveError = e;
+                }
+            }
+            if (resolveError != null) {
+                throw resolveError;
+            }
+            return instance;
+        }
+
+        NativeBindings() {
+            Class type = android.media.MediaMuxer.class;
+            setup = resolve(type, "nativeSetup", FileDescriptor.class, Integer.TYPE);
+            release = resolve(type, "nativeRelease", Long.TYPE);
+            start = resolve(type, "nativeStart", Long.TYPE);
+            stop = resolve(type, "nativeStop", Long.TYPE);
+            addTrack = resolve(type, "nativeAddTrack", Long.TYPE, String[].class, Object[].class);
+            setOrientationHint = resolve(type, "nativeSetOrientationHint", Long.TYPE, Integer.TYPE);
+            setLocation = resolve(type, "nativeSetLocation", Long.TYPE, Integer.TYPE, Integer.TYPE);
+            writeSampleData = resolve(type, "nativeWriteSampleData", Long.TYPE, Integer.TYPE, ByteBuffer.class, Integer.TYPE, Integer.TYPE, Long.TYPE, Integer.TYPE);
+            getMap = resolve(MediaFormat.class, "getMap");
+        }
+
+        static Method resolve(Class type, String name, Class... parameterTypes) {
+            try {
+                Method method = type.getDeclaredMethod(name, parameterTypes);
+                method.setAccessible(true);
+                return method;
+            } catch (Exception e) {
+                throw new ReflectionHackException(e);
             }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
         }
-    }
 
-    private static void nativeRelease(long nativeObject) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeRelease", Long.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
+        Object invoke(Method method, Object receiver, Object... args) {
+            try {
+                return method.invoke(receiver, args);
+            } catch (InvocationTargetException e) {
+                if (e.getTargetException() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getTargetException();
+                }
+                throw new ReflectionHackException(e);
+            } catch (Exception e) {
+                throw new ReflectionHackException(e);
             }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
         }
     }
 
-    private static void nativeStart(long nativeObject) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeStart", Long.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
+    /**
+     * Resolves native methods on every call the way the original hack did. Used only to benchmark
+     * the cost of reflective lookups against {@link NativeBindings}.
+     */
+    static class UncachedNativeBindings extends NativeBindings {
+        @Override
+        Object invoke(Method method, Object receiver, Object... args) {
+            Method lookedUp = resolve(method.getDeclaringClass(), method.getName(), method.getParameterTypes());
+            return super.invoke(lookedUp, receiver, args);
         }
     }
 
-    private static void nativeStop(long nativeObject) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeStop", Long.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+    private long nativeSetup(FileDescriptor fd, int format) {
+        return (long) mBindings.invoke(mBindings.setup, null, fd, format);
     }
 
-    private static int nativeAddTrack(long nativeObject, String[] keys,
-                                      Object[] values) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeAddTrack", Long.TYPE, String[].class, Object[].class);
-            method.setAccessible(true);
-            return (int) method.invoke(null, nativeObject, keys, values);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+    private void nativeRelease(long nativeObject) {
+        mBindings.invoke(mBindings.release, null, nativeObject);
     }
 
-    private static void nativeSetOrientationHint(long nativeObject,
-                                                 int degrees) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeSetOrientationHint", Long.TYPE, Integer.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject, degrees);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+    private void nativeStart(long nativeObject) {
+        mBindings.invoke(mBindings.start, null, nativeObject);
     }
 
-    private static void nativeSetLocation(long nativeObject, int latitude, int longitude) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeSetLocation", Long.TYPE, Integer.TYPE, Integer.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject, latitude, longitude);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+    private void nativeStop(long nativeObject) {
+        mBindings.invoke(mBindings.stop, null, nativeObject);
     }
 
-    private static void nativeWriteSampleData(long nativeObject,
-                                                     int trackIndex, ByteBuffer byteBuf,
-                                                     int offset, int size, long presentationTimeUs, int flags) {
-        Class type = android.media.MediaMuxer.class;
-        try {
-            Method method = type.getDeclaredMethod("nativeWriteSampleData", Long.TYPE, Integer.TYPE, ByteBuffer.class, Integer.TYPE, Integer.TYPE, Long.TYPE, Integer.TYPE);
-            method.setAccessible(true);
-            method.invoke(null, nativeObject, trackIndex, byteBuf, offset, size, presentationTimeUs, flags);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+    private int nativeAddTrack(long nativeObject, String[] keys, Object[] values) {
+        return (int) mBindings.invoke(mBindings.addTrack, null, nativeObject, keys, values);
+    }
+
+    private void nativeSetOrientationHint(long nativeObject, int degrees) {
+        mBindings.invoke(mBindings.setOrientationHint, null, nativeObject, degrees);
+    }
+
+    private void nativeSetLocation(long nativeObject, int latitude, int longitude) {
+        mBindings.invoke(mBindings.setLocation, null, nativeObject, latitude, longitude);
+    }
+
+    private void nativeWriteSampleData(long nativeObject, int trackIndex, ByteBuffer byteBuf,
+                                       int offset, int size, long presentationTimeUs, int flags) {
+        mBindings.invoke(mBindings.writeSampleData, null, nativeObject, trackIndex, byteBuf, offset, size, presentationTimeUs, flags);
     }
 
     // Muxer internal states.
@@ -194,6 +179,8 @@ final public class MediaMuxerHack {
 
     private long mNativeObject;
 
+    private final NativeBindings mBindings;
+
     /**
      * Constructor.
      * Creates a media muxer that writes to the specified path.
@@ -210,6 +197,7 @@ final public class MediaMuxerHack {
                 format != OutputFormat.MUXER_OUTPUT_WEBM) {
             throw new IllegalArgumentException("format is invalid");
         }
+        mBindings = NativeBindings.get();
         // Use RandomAccessFile so we can open the file with RW access;
         // RW access allows the native writer to memory map the output file.
         RandomAccessFile file = null;
@@ -226,11 +214,20 @@ final public class MediaMuxerHack {
         }
     }
 
+    /**
+     * Creates a media muxer that writes to the specified file descriptor.
+     * @throws RuntimeException if native methods of MediaMuxer can't be accessed on this device
+     */
     public MediaMuxerHack(FileDescriptor fd, int format) throws IOException {
+        this(fd, format, NativeBindings.get());
+    }
+
+    MediaMuxerHack(FileDescriptor fd, int format, NativeBindings bindings) throws IOException {
         if (format != OutputFormat.MUXER_OUTPUT_MPEG_4 &&
                 format != OutputFormat.MUXER_OUTPUT_WEBM) {
             throw new IllegalArgumentException("format is invalid");
         }
+        mBindings = bindings;
         mNativeObject = nativeSetup(fd, format);
         mState = MUXER_STATE_INITIALIZED;
         //mCloseGuard.open("release");
@@ -387,19 +384,9 @@ final public class MediaMuxerHack {
         return trackIndex;
     }
 
+    @SuppressWarnings("unchecked")
     private Map<String, Object> format_getMap(MediaFormat format) {
-        try {
-            Method getMapMethod = MediaFormat.class.getDeclaredMethod("getMap");
-            getMapMethod.setAccessible(true);
-            return (Map<String, Object>) getMapMethod.invoke(format);
-        } catch (InvocationTargetException e) {
-            if (e.getTargetException() instanceof RuntimeException) {
-                throw (RuntimeException) e.getTargetException();
-            }
-            throw new ReflectionHackException(e);
-        } catch (Exception e) {
-            throw new ReflectionHackException(e);
-        }
+        return (Map<String, Object>) mBindings.invoke(mBindings.getMap, format);
     }
 
 
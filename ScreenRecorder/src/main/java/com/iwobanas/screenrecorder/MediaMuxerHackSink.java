@@ -0,0 +1,51 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MediaMuxerHackSink implements SampleSink {
+
+    private final MediaMuxerHack muxer;
+
+    public MediaMuxerHackSink(FileDescriptor fd) throws IOException {
+        muxer = new MediaMuxerHack(fd, MediaMuxerHack.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    MediaMuxerHackSink(MediaMuxerHack muxer) {
+        this.muxer = muxer;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+
+    @Override
+    public String toString() {
+        return "MediaMuxerHack";
+    }
+}
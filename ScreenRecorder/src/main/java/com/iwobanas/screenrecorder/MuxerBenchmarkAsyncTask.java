@@ -0,0 +1,98 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares per sample write cost of MediaMuxer, the original MediaMuxerHack resolving native methods
+ * on every call and MediaMuxerHack with pre-bound native methods.
+ * Started with RecorderService.BENCHMARK_MUXER_ACTION, results are logged.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MuxerBenchmarkAsyncTask extends AsyncTask<Void, Void, Void> {
+    private static final String TAG = "scr_MuxerBenchmark";
+    private static final int SAMPLES = 3000;
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int ROUNDS = 2;
+
+    private final File dir;
+
+    public MuxerBenchmarkAsyncTask(Context context) {
+        dir = context.getCacheDir();
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        // first round warms up the code paths, only the last one is reported
+        for (int round = 1; round <= ROUNDS; round++) {
+            boolean report = round == ROUNDS;
+            benchmark("MediaMuxer", report, false, false);
+            benchmark("MediaMuxerHack (lookup per call)", report, true, false);
+            benchmark("MediaMuxerHack (pre-bound)", report, true, true);
+        }
+        return null;
+    }
+
+    private void benchmark(String name, boolean report, boolean hack, boolean cached) {
+        File file = new File(dir, "muxer_benchmark.mp4");
+        RandomAccessFile randomAccessFile = null;
+        MeasuredSampleSink sink = null;
+        try {
+            if (hack) {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(0);
+                MediaMuxerHack.NativeBindings bindings = cached ? MediaMuxerHack.NativeBindings.get()
+                        : new MediaMuxerHack.UncachedNativeBindings();
+                sink = new MeasuredSampleSink(new MediaMuxerHackSink(new MediaMuxerHack(randomAccessFile.getFD(),
+                        MediaMuxerHack.OutputFormat.MUXER_OUTPUT_MPEG_4, bindings)));
+            } else {
+                sink = new MeasuredSampleSink(new MediaMuxerSink(file.getAbsolutePath()));
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 1);
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[]{0x12, 0x08}));
+            int track = sink.addTrack(format);
+            sink.start();
+
+            ByteBuffer data = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < SAMPLES; i++) {
+                info.set(0, SAMPLE_SIZE, i * 23220l, 0);
+                sink.writeSampleData(track, data, info);
+            }
+            sink.stop();
+
+            if (report) {
+                Log.i(TAG, name + ": " + sink.getWriteLatency());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, name + " failed", e);
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.release();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error releasing " + name, e);
+                }
+            }
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception ignore) {
+                }
+            }
+            if (!file.delete()) {
+                Log.w(TAG, "Can't delete " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -2,20 +2,31 @@ package com.iwobanas.screenrecorder;
 
 import android.util.Log;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs commands in the root native process. Commands from concurrent callers are pipelined over the single
+ * command pipe, each one gets its own request id and a future completed when the result with matching id is reported.
+ * Results of commands which timed out or were cancelled are logged and ignored.
+ */
 public class NativeCommands implements INativeCommands {
 
     private static final String TAG = "scr_NativeCommands";
     private static INativeCommands instance;
 
-    private INativeCommandRunner runner;
+    private volatile INativeCommandRunner runner;
     private AtomicInteger nextRequestId = new AtomicInteger(1);
-    private volatile CountDownLatch resultCountdownLatch;
-    private volatile int lastCommandRequestId;
-    private volatile int lastCommandResult;
+    // sorted by request id so that a result without valid id can be matched with the oldest command
+    private final ConcurrentSkipListMap<Integer, CommandFuture> pending = new ConcurrentSkipListMap<Integer, CommandFuture>();
 
     private NativeCommands() {
     }
@@ -43,7 +54,7 @@ public class NativeCommands implements INativeCommands {
     @Override
     public int mountAudioMaster(String path) {
         if (runner != null && runner.isExecBlocked()) {
-            return runShellCommand("su", "--mount-master",  "-c", runner.getExecutable(), "mount_audio", path);
+            return runMountMasterCommand(RootShell.quote(runner.getExecutable()) + " mount_audio " + RootShell.quote(path));
         }
         return runAsyncCommand("mount_audio_master", path, 5);
     }
@@ -61,7 +72,7 @@ public class NativeCommands implements INativeCommands {
     @Override
     public int unmountAudioMaster() {
         if (runner != null && runner.isExecBlocked()) {
-            return runShellCommand("su", "--mount-master",  "-c", runner.getExecutable(), "unmount_audio");
+            return runMountMasterCommand(RootShell.quote(runner.getExecutable()) + " unmount_audio");
         }
         return runAsyncCommand("unmount_audio_master", "", 5);
     }
@@ -84,52 +95,81 @@ public class NativeCommands implements INativeCommands {
         return runAsyncCommand("logcat", path, 30);
     }
 
-    //TODO: implement proper commands queue
     private int runAsyncCommand(String command, String args, long timeout) {
-        if (runner == null) {
-            return -30;
-        }
-
-        resultCountdownLatch = new CountDownLatch(1);
-        lastCommandRequestId = nextRequestId.getAndIncrement();
-        if (!runner.runCommand(command, lastCommandRequestId, args)) {
-            return -40;
-        }
+        CommandFuture future = submit(command, args);
         try {
-            if (resultCountdownLatch.await(timeout, TimeUnit.SECONDS)) {
-                return lastCommandResult;
-            } else {
-                return -10;
-            }
+            return future.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Command " + command + " " + future.getRequestId() + " timed out");
+            future.cancel(false);
+            return -10;
         } catch (InterruptedException e) {
+            future.cancel(false);
             return -20;
+        } catch (CancellationException e) {
+            return -20;
+        } catch (ExecutionException e) {
+            // never thrown, failures are reported as result codes
+            return -40;
+        }
+    }
+
+    /**
+     * Queue command without waiting for the result.
+     * Future returned is already completed with -30 if there is no native process or -40 if command can't be sent.
+     * Cancelling the future doesn't stop a command which was already sent.
+     */
+    public CommandFuture submit(String command, String args) {
+        INativeCommandRunner runner = this.runner;
+        int requestId = nextRequestId.getAndIncrement();
+        CommandFuture future = new CommandFuture(requestId);
+        if (runner == null) {
+            future.complete(-30);
+            return future;
+        }
+        pending.put(requestId, future);
+        if (!runner.runCommand(command, requestId, args)) {
+            pending.remove(requestId);
+            future.complete(-40);
         }
+        return future;
     }
 
-    private int runShellCommand(String... command) {
-        ShellCommand shellCommand = new ShellCommand(command);
-        shellCommand.setTimeoutMillis(30000);
-        shellCommand.execute();
-        return shellCommand.exitValue();
+    private int runMountMasterCommand(String command) {
+        RootShell.Result result = RootShellPool.getMountMasterInstance().execute(command, 30000);
+        return result.isTimedOut() ? -10 : result.getExitValue();
     }
 
     @Override
     public void setCommandRunner(INativeCommandRunner runner) {
+        INativeCommandRunner previous = this.runner;
         this.runner = runner;
+        if (previous != null && previous != runner) {
+            // results of commands sent to the previous process will never arrive
+            Iterator<Map.Entry<Integer, CommandFuture>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                CommandFuture future = iterator.next().getValue();
+                iterator.remove();
+                future.complete(-30);
+            }
+        }
     }
 
     @Override
     public void notifyCommandResult(int requestId, int result) {
-        if (requestId >= 0 && requestId != lastCommandRequestId) {
-            Log.w(TAG, "Ignoring stale command result " + requestId + " " + result);
-            return;
-        }
-        lastCommandResult = result;
-        if (resultCountdownLatch != null) {
-            resultCountdownLatch.countDown();
+        CommandFuture future;
+        if (requestId < 0) {
+            // result couldn't be parsed, commands are executed in order so it belongs to the oldest one
+            Map.Entry<Integer, CommandFuture> oldest = pending.pollFirstEntry();
+            future = oldest == null ? null : oldest.getValue();
         } else {
-            Log.e(TAG, "Unexpected result! " + requestId);
+            future = pending.remove(requestId);
         }
+        if (future == null) {
+            Log.w(TAG, "Ignoring result of timed out or cancelled command " + requestId + " " + result);
+            return;
+        }
+        future.complete(result);
     }
 
     public static synchronized INativeCommands getInstance() {
@@ -138,4 +178,72 @@ public class NativeCommands implements INativeCommands {
         }
         return instance;
     }
+
+    public class CommandFuture implements Future<Integer> {
+        private final int requestId;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile int result;
+        private volatile boolean cancelled;
+
+        private CommandFuture(int requestId) {
+            this.requestId = requestId;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        private synchronized boolean complete(int result) {
+            if (latch.getCount() == 0) {
+                return false;
+            }
+            this.result = result;
+            latch.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            pending.remove(requestId);
+            synchronized (this) {
+                if (latch.getCount() == 0) {
+                    return false;
+                }
+                cancelled = true;
+                latch.countDown();
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private Integer getResult() {
+            if (cancelled) {
+                throw new CancellationException("Command " + requestId + " cancelled");
+            }
+            return result;
+        }
+    }
 }
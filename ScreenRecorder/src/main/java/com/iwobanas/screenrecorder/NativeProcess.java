@@ -1,6 +1,7 @@
 package com.iwobanas.screenrecorder;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.analytics.tracking.android.EasyTracker;
@@ -12,20 +13,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.iwobanas.screenrecorder.Tracker.*;
 
-class NativeProcess implements Runnable, INativeCommandRunner {
+class NativeProcess implements Runnable, INativeCommandRunner, NativeProtocol.Handler {
 
     private static final String MEDIASERVER_COMMAND = "/system/bin/mediaserver";
     private static AtomicInteger threadNumber = new AtomicInteger(0);
     private final String TAG = "scr_RecorderProcess-" + threadNumber.get();
 
     private Process process;
+    private OutputStream outputStream;
     private OutputStreamWriter outputWriter;
-    private BufferedReader inputReader;
+    private NativeProtocol.Decoder decoder;
+    private final Object outputLock = new Object();
+    private boolean binaryOutput;
+    private boolean protocolNegotiated;
+    private int announcedProtocol = -1;
     private volatile ProcessState state = ProcessState.NEW;
     private Context context;
     private String executable;
@@ -34,10 +41,24 @@ class NativeProcess implements Runnable, INativeCommandRunner {
     private boolean destroying = false;
     private String suVersion;
     private boolean execBlocked;
+    private long recordingStartMs;
+    // native process reports fps but not frame count, frames are estimated from fps of each reporting interval
+    private long lastFpsMs;
+    private double estimatedFrames;
+    private int fullFrameRate;
+    private final boolean standby;
 
     public NativeProcess(Context context, OnStateChangeListener onStateChangeListener) {
+        this(context, onStateChangeListener, false);
+    }
+
+    /**
+     * @param standby true if the process is started while the previous one may still be running the executable
+     */
+    public NativeProcess(Context context, OnStateChangeListener onStateChangeListener, boolean standby) {
         this.context = context;
         this.onStateChangeListener = onStateChangeListener;
+        this.standby = standby;
     }
 
     @Override
@@ -66,20 +87,35 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         File file = new File(context.getFilesDir(), "screenrec");
         try {
             executable = file.getAbsolutePath();
+            int resourceId;
             if (Utils.isArm()) {
-                Utils.extractResource(context, R.raw.screenrec, file);
+                resourceId = R.raw.screenrec;
             } else if (Utils.isX86()) {
-                Utils.extractResource(context, R.raw.screenrec_x86, file);
+                resourceId = R.raw.screenrec_x86;
             } else {
                 setState(ProcessState.CPU_NOT_SUPPORTED_ERROR);
                 return;
             }
+            if (standby) {
+                // executable is busy while the previous process runs, it can't be rewritten e.g. after app update
+                if (!Utils.resourceFileValid(context, resourceId, file)) {
+                    Log.v(TAG, "Executable needs to be updated, standby process not started");
+                    setState(ProcessState.DEAD);
+                }
+                return;
+            }
+            Utils.extractResource(context, resourceId, file);
 
             if (!file.setExecutable(true, false)) {
                 Log.w(TAG, "Can't set executable property on " + file.getAbsolutePath());
             }
 
         } catch (IOException e) {
+            if (standby) {
+                Log.w(TAG, "Can't check native executable, standby process not started", e);
+                setState(ProcessState.DEAD);
+                return;
+            }
             Log.e(TAG, "Can't install native executable", e);
             setState(ProcessState.INSTALLATION_ERROR);
             EasyTracker.getTracker().sendEvent(ERROR, INSTALLATION_ERROR, INSTALLATION_ERROR, null);
@@ -98,51 +134,31 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         if (process == null) {
             throw new NativeProcessException("Process is null");
         }
-        outputWriter = new OutputStreamWriter(process.getOutputStream());
-        inputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        outputStream = process.getOutputStream();
+        outputWriter = new OutputStreamWriter(outputStream);
+        decoder = new NativeProtocol.Decoder(process.getInputStream());
 
         new Thread(new ErrorStreamReader(process.getErrorStream())).start();
     }
 
     private void readUpdate() throws NativeProcessException {
-        String line;
         try {
-            line = inputReader.readLine();
-            if (line == null) {
+            if (!decoder.decode(this)) {
                 throw new NativeProcessException("Error reading status update");
             }
-
-            if (line.startsWith("state ")) {
-                parseState(line);
-            } else if (line.startsWith("rotateView ")) {
-                parseInputParams(line);
-            } else if (line.startsWith("fps ")) {
-                parseFps(line);
-            } else if (line.startsWith("error ")) {
-                parseError(line);
-            } else if (line.startsWith("su version ")) {
-                parseSuVersion(line);
-            } else if (line.startsWith("command result ")) {
-                parseCommandResult(line);
-            } else if (line.length() > 0) {
-                Log.e(TAG, "Unexpected update: " + line);
-            }
         } catch (IOException e) {
             throw new NativeProcessException("Exception while reading status", e);
         }
     }
 
-    private void parseSuVersion(String line) {
-        suVersion = line.substring("su version ".length());
+    @Override
+    public void onSuVersion(String version) {
+        suVersion = version;
         if ("exec_error".equals(suVersion)) {
             Log.v(TAG, "Exec blocked from native process");
             execBlocked = true;
-            ShellCommand suCommand = new ShellCommand(new String[]{"su", "-v"});
-            suCommand.setOutLogTag("su -v");
-            suCommand.setInput("exit\n"); // just in case su doesn't support -v and interactive shell gets opened
-            suCommand.setTimeoutMillis(3000);
-            suCommand.execute();
-            suVersion = suCommand.getOutput();
+            // stdin of pooled shell commands is /dev/null so interactive shell exits if su doesn't support -v
+            suVersion = RootShellPool.getInstance().execute("su -v", 3000).getOutput();
         }
         Log.v(TAG, "su version: " + suVersion);
     }
@@ -201,70 +217,93 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         }
     }
 
-    private void parseFps(String fpsString) {
-        try {
-            recordingInfo.fps = Float.parseFloat(fpsString.substring(4));
-        } catch (NumberFormatException e) {
-            recordingInfo.fps = -1;
-        }
+    @Override
+    public void onFps(float fps) {
+        recordingInfo.fps = fps;
 
         if (!destroying && recordingInfo.fps < 0) {
-            Log.e(TAG, "Incorrect fps value received \"" + fpsString + "\"");
+            Log.e(TAG, "Incorrect fps value received " + fps);
+            return;
+        }
+        recordingInfo.captureFps = recordingInfo.fps;
+        if (recordingStartMs > 0) {
+            long now = SystemClock.elapsedRealtime();
+            estimatedFrames += recordingInfo.fps * (now - lastFpsMs) / 1000;
+            lastFpsMs = now;
+            recordingInfo.encodedFrames = (int) estimatedFrames;
+            recordingInfo.encodedFramesEstimated = true;
+            if (recordingInfo.timeLapse > 1) {
+                long elapsedMs = now - recordingStartMs;
+                Log.i(TAG, "Time-lapse x" + recordingInfo.timeLapse + ": encoded about " + recordingInfo.encodedFrames
+                        + " frames (estimated from fps updates), up to " + elapsedMs * fullFrameRate / 1000
+                        + " without decimation");
+            }
         }
     }
 
-    private void parseCommandResult(String resultLine) {
-        String[] tokens = resultLine.split("\\|");
-        if (tokens.length < 4) {
-            Log.e(TAG, "invalid command result format: " + resultLine);
-        }
-        int result;
-        int requestId;
-        try {
-            requestId = Integer.valueOf(tokens[1]);
-            result = Integer.valueOf(tokens[2]);
-        } catch (NumberFormatException e) {
-            requestId = -1;
-            result = -1000;
+    @Override
+    public void onCommandResult(int requestId, int result) {
+        if (requestId == NativeProtocol.NEGOTIATE_REQUEST_ID) {
+            onProtocolNegotiated(result);
+            return;
         }
         NativeCommands.getInstance().notifyCommandResult(requestId, result);
     }
 
-    private void parseError(String errorString) {
-        int exitValue;
-        try {
-            exitValue = Integer.parseInt(errorString.substring("error ".length()));
-        } catch (NumberFormatException e) {
-            exitValue = 257;
+    @Override
+    public void onError(int exitValue) {
+        setErrorState(exitValue);
+    }
+
+    @Override
+    public void onState(ProcessState state) {
+        if (state == ProcessState.READY && !protocolNegotiated && announcedProtocol >= NativeProtocol.VERSION) {
+            negotiateProtocol();
         }
+        setState(state);
+    }
 
-        setErrorState(exitValue);
+    @Override
+    public void onProtocolAnnounced(int version) {
+        announcedProtocol = version;
     }
 
-    private void parseState(String stateLine) {
-        String stateString = stateLine.substring("state ".length());
-        try {
-            setState(ProcessState.valueOf(stateString));
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Incorrect state", e);
+    @Override
+    public void onInputParams(int rotateView, int verticalInput, int adjustedRotation) {
+        Log.v(TAG, "Input params: rotateView " + rotateView + " verticalInput " + verticalInput
+                + " adjustedRotation " + adjustedRotation);
+        recordingInfo.rotateView = rotateView;
+        recordingInfo.verticalInput = verticalInput;
+        recordingInfo.adjustedRotation = adjustedRotation;
+    }
+
+    @Override
+    public void onUnexpected(String message) {
+        if (!destroying) {
+            Log.e(TAG, message);
         }
     }
 
-    private void parseInputParams(String params) {
-        Log.v(TAG, "Input params: " + params);
-        boolean parsed = false;
-        if (params != null && params.startsWith("rotateView")) {
-            String[] kv = params.split("\\s");
-            try {
-                recordingInfo.rotateView = Integer.parseInt(kv[1]);
-                recordingInfo.verticalInput = Integer.parseInt(kv[3]);
-                recordingInfo.adjustedRotation = Integer.parseInt(kv[5]);
-                parsed = true;
-            } catch (NumberFormatException ignored) {
+    /**
+     * Offer binary protocol to the process. Commands are sent as text until the process acknowledges it.
+     */
+    private void negotiateProtocol() {
+        protocolNegotiated = true;
+        runCommand(NativeProtocol.NEGOTIATE_COMMAND, NativeProtocol.NEGOTIATE_REQUEST_ID, String.valueOf(NativeProtocol.VERSION));
+    }
+
+    /**
+     * Called on the reading thread just after the acknowledgement line so that following output is decoded in the new mode.
+     */
+    private void onProtocolNegotiated(int version) {
+        if (version == NativeProtocol.VERSION) {
+            Log.v(TAG, "Using binary protocol version " + version);
+            decoder.setBinary(true);
+            synchronized (outputLock) {
+                binaryOutput = true;
             }
-        }
-        if (!destroying && !parsed) {
-            Log.e(TAG, "Incorrect input params received \"" + params + "\"");
+        } else {
+            Log.v(TAG, "Binary protocol not supported " + version + ", using text protocol");
         }
     }
 
@@ -276,8 +315,10 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         Log.d(TAG, "setState " + state);
         ProcessState previousState = this.state;
         this.state = state;
-        if (state == ProcessState.READY) {
-            NativeCommands.getInstance().setCommandRunner(this);
+        if (state == ProcessState.RECORDING) {
+            recordingStartMs = SystemClock.elapsedRealtime();
+            lastFpsMs = recordingStartMs;
+            estimatedFrames = 0;
         }
         if (!destroying && onStateChangeListener != null) {
             onStateChangeListener.onStateChange(this, state, previousState, recordingInfo);
@@ -294,6 +335,7 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         recordingInfo = new RecordingInfo();
         recordingInfo.file = file;
         recordingInfo.rotation = rotation;
+        recordingStartMs = 0;
         Settings settings = Settings.getInstance();
         setState(ProcessState.STARTING);
         settings.updateAudioDriverConfig();
@@ -310,29 +352,32 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         }
 
         int frameRate = settings.getFrameRate();
+        recordingInfo.timeLapse = settings.getTimeLapse();
+        fullFrameRate = frameRate == -1 ? 60 : frameRate;
         if (settings.getTimeLapse() != 1) {
             // use 60fps if frame rate is set to Max
             if (frameRate == -1) {
                 frameRate = 60;
             }
-            frameRate /= settings.getTimeLapse();
-        }
-
-        String startCommand = "start " + rotation + " " + audioSource + " "
-                + settings.getResolution().getVideoWidth() + " "
-                + settings.getResolution().getVideoHeight() + " "
-                + settings.getResolution().getPaddingWidth() + " "
-                + settings.getResolution().getPaddingHeight() + " "
-                + frameRate + " "
-                + settings.getTransformation().name() + " "
-                + (settings.getColorFix() ? "BGRA" : "RGBA") + " "
-                + settings.getVideoBitrate().getCommand() + " "
-                + settings.getSamplingRate().getSamplingRate() + " "
-                + (settings.getStereo() ? 2 : 1) + " "
-                + settings.getVideoEncoder() + " "
-                + (settings.getVerticalFrames() ? 1 : 0) + " "
-                + fixEmulatedStorageMapping(file.getAbsolutePath());
-        runCommand(startCommand);
+            // native process captures at most frameRate frames per second so fewer frames are encoded,
+            // low frame rates must not round down to 0
+            frameRate = Math.max(1, frameRate / settings.getTimeLapse());
+        }
+
+        runCommand("start", rotation, audioSource,
+                String.valueOf(settings.getResolution().getVideoWidth()),
+                String.valueOf(settings.getResolution().getVideoHeight()),
+                String.valueOf(settings.getResolution().getPaddingWidth()),
+                String.valueOf(settings.getResolution().getPaddingHeight()),
+                String.valueOf(frameRate),
+                settings.getTransformation().name(),
+                settings.getColorFix() ? "BGRA" : "RGBA",
+                settings.getVideoBitrate().getCommand(),
+                String.valueOf(settings.getSamplingRate().getSamplingRate()),
+                String.valueOf(settings.getStereo() ? 2 : 1),
+                String.valueOf(settings.getVideoEncoder()),
+                String.valueOf(settings.getVerticalFrames() ? 1 : 0),
+                fixEmulatedStorageMapping(file.getAbsolutePath()));
         logSettings(settings, rotation);
     }
 
@@ -394,10 +439,8 @@ class NativeProcess implements Runnable, INativeCommandRunner {
     @Override
     public boolean runCommand(String command, int requestId, String args) {
         Log.v(TAG, "Run command: " + command);
-        String commandLine = command + " " + requestId + " " + args + "\n";
         try {
-            outputWriter.write(commandLine);
-            outputWriter.flush();
+            writeCommand(command, requestId, args.length() == 0 ? new String[0] : new String[]{args});
             return true;
         } catch (IOException e) {
             Log.e(TAG, "Error running command", e);
@@ -405,16 +448,36 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         }
     }
 
-    private void runCommand(String command) {
+    private void runCommand(String command, String... args) {
         try {
-            outputWriter.write(command + "\n");
-            outputWriter.flush();
+            writeCommand(command, NativeProtocol.NO_REQUEST_ID, args);
         } catch (IOException e) {
             Log.e(TAG, "Error running command", e);
             setErrorState(306);
         }
     }
 
+    private void writeCommand(String command, int requestId, String[] args) throws IOException {
+        // commands from different threads are pipelined, each one has to be written as a whole
+        synchronized (outputLock) {
+            if (binaryOutput) {
+                outputStream.write(NativeProtocol.encodeCommand(command, requestId, args));
+                outputStream.flush();
+            } else {
+                StringBuilder line = new StringBuilder(command);
+                if (requestId != NativeProtocol.NO_REQUEST_ID) {
+                    line.append(' ').append(requestId).append(' ').append(args.length == 0 ? "" : args[0]);
+                } else {
+                    for (String arg : args) {
+                        line.append(' ').append(arg);
+                    }
+                }
+                outputWriter.write(line.append('\n').toString());
+                outputWriter.flush();
+            }
+        }
+    }
+
     public void destroy() {
         if (process != null) {
             if (state == ProcessState.RECORDING) {
@@ -432,14 +495,14 @@ class NativeProcess implements Runnable, INativeCommandRunner {
         Log.d(TAG, "restartMediaServer");
         CameraOverlay.releaseCamera();
         killProcess(MEDIASERVER_COMMAND);
-        if (Utils.waitForProcess(MEDIASERVER_COMMAND, 7000) != -1) {
+        if (ProcessWatcher.getInstance().waitForProcess(MEDIASERVER_COMMAND, 7000) != -1) {
             CameraOverlay.reconnectCamera();
         }
     }
 
     private void killProcess(String command) {
         Log.d(TAG, "kill process " + command);
-        int pid = Utils.findProcessByCommand(command);
+        int pid = ProcessWatcher.getInstance().findProcess(command);
         if (pid == -1 || pid == 0) {
             Log.e(TAG, command + " process not found");
             return;
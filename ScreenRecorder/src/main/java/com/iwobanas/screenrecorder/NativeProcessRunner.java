@@ -2,6 +2,7 @@ package com.iwobanas.screenrecorder;
 
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.analytics.tracking.android.EasyTracker;
@@ -16,7 +17,10 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
 
     private Context context;
     private NativeProcess process;
+    // next process started while the current one is stopping, handed over once it's READY and the current one finished
+    private NativeProcess standby;
     private volatile boolean destroyed;
+    private long finishedMs;
 
     public NativeProcessRunner(Context context) {
         super(TAG, 10000, 10000);
@@ -49,9 +53,13 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
         process.stopTimeout();
     }
 
-    public void initialize() {
+    public synchronized void initialize() {
 
         if (process == null || process.getState() == NativeProcess.ProcessState.DEAD) {
+            if (standby != null) {
+                handOver();
+                return;
+            }
             setState(RecordingProcessState.INITIALIZING, null);
             process = new NativeProcess(context, this);
             new Thread(process).start();
@@ -66,16 +74,95 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
         }
     }
 
-    public void destroy() {
+    public synchronized void destroy() {
         Log.d(TAG, "destroy()");
         destroyed = true;
         if (process != null) {
             process.destroy();
         }
+        if (standby != null) {
+            standby.destroy();
+            standby = null;
+        }
+    }
+
+    /**
+     * Start next process so that it goes through su and initialization while the current one is finalizing the recording.
+     * Standby process doesn't install the executable, if it's outdated the next process is started after the current one is dead.
+     */
+    private void startStandby() {
+        if (standby != null || destroyed) {
+            return;
+        }
+        Log.v(TAG, "Starting standby process");
+        standby = new NativeProcess(context, this, true);
+        new Thread(standby).start();
+    }
+
+    private void onStandbyStateChange(NativeProcess.ProcessState state) {
+        switch (state) {
+            case READY:
+                if (process == null || isFinished(process.getState())) {
+                    handOver();
+                }
+                break;
+            case CPU_NOT_SUPPORTED_ERROR:
+            case INSTALLATION_ERROR:
+            case ERROR:
+            case DONE:
+            case DEAD:
+                // regular initialization will report the error if it persists
+                Log.w(TAG, "Standby process failed in state " + state);
+                standby.destroy();
+                standby = null;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Make standby process current, updates from the previous one are ignored from now on.
+     */
+    private void handOver() {
+        if (destroyed || getState().isCritical()) {
+            standby.destroy();
+            standby = null;
+            return;
+        }
+        Log.v(TAG, "Handing over to standby process in state " + standby.getState());
+        process = standby;
+        standby = null;
+        if (process.getState() == NativeProcess.ProcessState.READY) {
+            onReady(null, true);
+        } else {
+            setState(RecordingProcessState.INITIALIZING, null);
+        }
+    }
+
+    private static boolean isFinished(NativeProcess.ProcessState state) {
+        return state == NativeProcess.ProcessState.FINISHED
+                || state == NativeProcess.ProcessState.DONE
+                || state == NativeProcess.ProcessState.DEAD;
+    }
+
+    private void onReady(RecordingInfo recordingInfo, boolean fromStandby) {
+        NativeCommands.getInstance().setCommandRunner(process);
+        if (finishedMs != 0) {
+            long restartMs = SystemClock.elapsedRealtime() - finishedMs;
+            finishedMs = 0;
+            Log.i(TAG, "Ready " + restartMs + "ms after recording finished" + (fromStandby ? " using standby process" : ""));
+            EasyTracker.getTracker().sendTiming(STATS, restartMs, RESTART, fromStandby ? STANDBY : COLD);
+        }
+        setState(RecordingProcessState.READY, recordingInfo);
     }
 
     @Override
-    public void onStateChange(NativeProcess target, NativeProcess.ProcessState state, NativeProcess.ProcessState previousState, RecordingInfo recordingInfo) {
+    public synchronized void onStateChange(NativeProcess target, NativeProcess.ProcessState state, NativeProcess.ProcessState previousState, RecordingInfo recordingInfo) {
+        if (target == standby) {
+            onStandbyStateChange(state);
+            return;
+        }
         if (target != process) {
             Log.w(TAG, "received state update from old process");
             return;
@@ -86,7 +173,7 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
             case INITIALIZING:
                 break;
             case READY:
-                setState(RecordingProcessState.READY, recordingInfo);
+                onReady(recordingInfo, false);
                 break;
             case STARTING:
                 setState(RecordingProcessState.STARTING, recordingInfo);
@@ -96,13 +183,18 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
                 break;
             case STOPPING:
                 setState(RecordingProcessState.STOPPING, recordingInfo);
+                startStandby();
                 break;
             case FINISHED:
+                finishedMs = SystemClock.elapsedRealtime();
                 if (processTimeLapse(recordingInfo)) {
                     setState(RecordingProcessState.FINISHED, recordingInfo);
                 } else {
                     setState(RecordingProcessState.UNKNOWN_RECORDING_ERROR, recordingInfo);
                 }
+                if (standby != null && standby.getState() == NativeProcess.ProcessState.READY) {
+                    handOver();
+                }
                 break;
             case CPU_NOT_SUPPORTED_ERROR:
                 setState(RecordingProcessState.CPU_NOT_SUPPORTED_ERROR, null);
@@ -128,6 +220,9 @@ public class NativeProcessRunner extends AbstractRecordingProcess implements Nat
                 if (!destroyed && !getState().isCritical()) {
                     process = null;
                     initialize();
+                } else if (standby != null) {
+                    standby.destroy();
+                    standby = null;
                 }
                 break;
             default:
@@ -0,0 +1,420 @@
+package com.iwobanas.screenrecorder;
+
+import com.iwobanas.screenrecorder.NativeProcess.ProcessState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Messages exchanged with the native recorder process.
+ * The process starts in text mode with one message per line. A process which supports the binary protocol
+ * announces the highest version it understands with "protocol &lt;version&gt;" line before READY.
+ * When it gets READY the app offers the binary protocol with "protocol" command and if the process acknowledges
+ * it with its version the process output switches to length-prefixed frames right after the acknowledgement line:
+ * <pre>
+ * u8 version | u8 type | u16 payload length | payload
+ * </pre>
+ * All integers are big-endian. Commands sent before the acknowledgement is received are text lines,
+ * the process has to accept both as a frame starts with the version byte which never starts a text command.
+ * Binaries which don't announce the protocol never get the protocol command, so it doesn't matter how they
+ * handle unknown commands, and stay in text mode.
+ */
+public class NativeProtocol {
+
+    public static final int VERSION = 1;
+    public static final String NEGOTIATE_COMMAND = "protocol";
+    // request id of protocol negotiation, ids of NativeCommands start from 1
+    public static final int NEGOTIATE_REQUEST_ID = 0;
+    public static final int NO_REQUEST_ID = -1;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_PAYLOAD_SIZE = 0xffff;
+
+    // process to app
+    public static final int TYPE_STATE = 1;          // u8 state code
+    public static final int TYPE_FPS = 2;            // i32 frames per 1000 seconds
+    public static final int TYPE_ERROR = 3;          // i32 exit value
+    public static final int TYPE_COMMAND_RESULT = 4; // i32 request id, i32 result
+    public static final int TYPE_INPUT_PARAMS = 5;   // i32 rotate view, i32 vertical input, i32 adjusted rotation
+    public static final int TYPE_SU_VERSION = 6;     // UTF-8 string
+    public static final int TYPE_TEXT = 7;           // UTF-8 text mode message
+    // app to process
+    public static final int TYPE_COMMAND = 64;       // i32 request id, u8 name length, name, u8 argument count, (u16 length, argument)*
+
+    // state codes of version 1, independent of ProcessState order
+    private static final ProcessState[] STATES = {
+            ProcessState.NEW,
+            ProcessState.INITIALIZING,
+            ProcessState.READY,
+            ProcessState.STARTING,
+            ProcessState.RECORDING,
+            ProcessState.STOPPING,
+            ProcessState.FINISHED,
+            ProcessState.CPU_NOT_SUPPORTED_ERROR,
+            ProcessState.INSTALLATION_ERROR,
+            ProcessState.ERROR,
+            ProcessState.DONE,
+            ProcessState.DEAD
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private NativeProtocol() {
+    }
+
+    /**
+     * Encode command frame. Arguments are sent as separate strings so they may contain spaces.
+     */
+    public static byte[] encodeCommand(String command, int requestId, String... args) {
+        byte[] name = command.getBytes(UTF_8);
+        byte[][] encodedArgs = new byte[args.length][];
+        int payloadSize = 4 + 1 + name.length + 1;
+        for (int i = 0; i < args.length; i++) {
+            encodedArgs[i] = args[i].getBytes(UTF_8);
+            payloadSize += 2 + encodedArgs[i].length;
+        }
+        if (name.length > 0xff || args.length > 0xff || payloadSize > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Command too long: " + command);
+        }
+        byte[] frame = new byte[HEADER_SIZE + payloadSize];
+        int pos = putHeader(frame, TYPE_COMMAND, payloadSize);
+        pos = putInt(frame, pos, requestId);
+        frame[pos++] = (byte) name.length;
+        System.arraycopy(name, 0, frame, pos, name.length);
+        pos += name.length;
+        frame[pos++] = (byte) args.length;
+        for (byte[] arg : encodedArgs) {
+            frame[pos++] = (byte) (arg.length >> 8);
+            frame[pos++] = (byte) arg.length;
+            System.arraycopy(arg, 0, frame, pos, arg.length);
+            pos += arg.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Encode frame with integer values sent by the process, used to test the decoder.
+     */
+    public static byte[] encodeMessage(int type, int... values) {
+        byte[] frame = new byte[HEADER_SIZE + 4 * values.length];
+        int pos = putHeader(frame, type, 4 * values.length);
+        for (int value : values) {
+            pos = putInt(frame, pos, value);
+        }
+        return frame;
+    }
+
+    /**
+     * Encode frame with text payload sent by the process, used to test the decoder.
+     */
+    public static byte[] encodeMessage(int type, String text) {
+        byte[] payload = text.getBytes(UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        putHeader(frame, type, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    /**
+     * Encode state frame sent by the process, used to test the decoder.
+     */
+    public static byte[] encodeState(ProcessState state) {
+        byte[] frame = new byte[HEADER_SIZE + 1];
+        putHeader(frame, TYPE_STATE, 1);
+        frame[HEADER_SIZE] = (byte) getStateCode(state);
+        return frame;
+    }
+
+    public static int getStateCode(ProcessState state) {
+        for (int i = 0; i < STATES.length; i++) {
+            if (STATES[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int putHeader(byte[] frame, int type, int payloadSize) {
+        frame[0] = VERSION;
+        frame[1] = (byte) type;
+        frame[2] = (byte) (payloadSize >> 8);
+        frame[3] = (byte) payloadSize;
+        return HEADER_SIZE;
+    }
+
+    private static int putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 24);
+        data[pos + 1] = (byte) (value >> 16);
+        data[pos + 2] = (byte) (value >> 8);
+        data[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Parse text mode message.
+     */
+    static void parseLine(String line, Handler handler) {
+        if (line.startsWith("state ")) {
+            try {
+                handler.onState(ProcessState.valueOf(line.substring("state ".length())));
+            } catch (IllegalArgumentException e) {
+                handler.onUnexpected("Incorrect state \"" + line + "\"");
+            }
+        } else if (line.startsWith("rotateView ")) {
+            String[] kv = line.split("\\s");
+            try {
+                handler.onInputParams(Integer.parseInt(kv[1]), Integer.parseInt(kv[3]), Integer.parseInt(kv[5]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                handler.onUnexpected("Incorrect input params received \"" + line + "\"");
+            }
+        } else if (line.startsWith("fps ")) {
+            float fps;
+            try {
+                fps = Float.parseFloat(line.substring("fps ".length()));
+            } catch (NumberFormatException e) {
+                fps = -1;
+            }
+            handler.onFps(fps);
+        } else if (line.startsWith("error ")) {
+            int exitValue;
+            try {
+                exitValue = Integer.parseInt(line.substring("error ".length()));
+            } catch (NumberFormatException e) {
+                exitValue = 257;
+            }
+            handler.onError(exitValue);
+        } else if (line.startsWith("protocol ")) {
+            int version;
+            try {
+                version = Integer.parseInt(line.substring("protocol ".length()));
+            } catch (NumberFormatException e) {
+                version = -1;
+            }
+            handler.onProtocolAnnounced(version);
+        } else if (line.startsWith("su version ")) {
+            handler.onSuVersion(line.substring("su version ".length()));
+        } else if (line.startsWith("command result ")) {
+            String[] tokens = line.split("\\|");
+            if (tokens.length < 4) {
+                handler.onUnexpected("invalid command result format: " + line);
+            }
+            int requestId;
+            int result;
+            try {
+                requestId = Integer.parseInt(tokens[1]);
+                result = Integer.parseInt(tokens[2]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                requestId = -1;
+                result = -1000;
+            }
+            handler.onCommandResult(requestId, result);
+        } else if (line.length() > 0) {
+            handler.onUnexpected("Unexpected update: " + line);
+        }
+    }
+
+    /**
+     * Reads messages of the process output in text or binary mode.
+     * Frames are decoded in place in a fixed buffer and passed to {@link Handler} as primitive values,
+     * so binary mode doesn't allocate except for su version and malformed input.
+     * Not thread safe, should be used only on the process reading thread.
+     */
+    public static class Decoder {
+        private final InputStream in;
+        private final byte[] buffer = new byte[HEADER_SIZE + MAX_PAYLOAD_SIZE];
+        private int start;
+        private int end;
+        private boolean binary;
+
+        public Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Switch input mode, data following the message being handled is decoded in the new mode.
+         */
+        public void setBinary(boolean binary) {
+            this.binary = binary;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Read and handle one message.
+         * @return false at the end of stream
+         * @throws IOException on read error or if binary stream is corrupted and can't be decoded further
+         */
+        public boolean decode(Handler handler) throws IOException {
+            return binary ? decodeFrame(handler) : decodeLine(handler);
+        }
+
+        private boolean decodeLine(Handler handler) throws IOException {
+            int scanned = 0;
+            while (true) {
+                for (int i = start + scanned; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        int length = i - start;
+                        if (length > 0 && buffer[i - 1] == '\r') {
+                            length--;
+                        }
+                        String line = new String(buffer, start, length, UTF_8);
+                        start = i + 1;
+                        parseLine(line, handler);
+                        return true;
+                    }
+                }
+                scanned = end - start;
+                if (scanned == buffer.length || !fill()) {
+                    if (scanned == 0) {
+                        return false;
+                    }
+                    // line longer than the buffer or not terminated at the end of stream
+                    String line = new String(buffer, start, scanned, UTF_8);
+                    start = end;
+                    parseLine(line, handler);
+                    return true;
+                }
+            }
+        }
+
+        private boolean decodeFrame(Handler handler) throws IOException {
+            if (!require(HEADER_SIZE)) {
+                if (start != end) {
+                    throw new IOException("Truncated frame header at the end of stream");
+                }
+                return false;
+            }
+            int version = buffer[start] & 0xff;
+            if (version != VERSION) {
+                throw new IOException("Unsupported frame version " + version);
+            }
+            int type = buffer[start + 1] & 0xff;
+            int length = ((buffer[start + 2] & 0xff) << 8) | (buffer[start + 3] & 0xff);
+            if (!require(HEADER_SIZE + length)) {
+                throw new IOException("Truncated frame at the end of stream");
+            }
+            int payload = start + HEADER_SIZE;
+            start = payload + length;
+            dispatch(type, payload, length, handler);
+            return true;
+        }
+
+        private void dispatch(int type, int pos, int length, Handler handler) {
+            switch (type) {
+                case TYPE_STATE:
+                    if (length >= 1) {
+                        int code = buffer[pos] & 0xff;
+                        if (code < STATES.length) {
+                            handler.onState(STATES[code]);
+                        } else {
+                            handler.onUnexpected("Incorrect state code " + code);
+                        }
+                        return;
+                    }
+                    break;
+                case TYPE_FPS:
+                    if (length >= 4) {
+                        handler.onFps(getInt(buffer, pos) / 1000f);
+                        return;
+                    }
+                    break;
+                case TYPE_ERROR:
+                    if (length >= 4) {
+                        handler.onError(getInt(buffer, pos));
+                        return;
+                    }
+                    break;
+                case TYPE_COMMAND_RESULT:
+                    if (length >= 8) {
+                        handler.onCommandResult(getInt(buffer, pos), getInt(buffer, pos + 4));
+                        return;
+                    }
+                    break;
+                case TYPE_INPUT_PARAMS:
+                    if (length >= 12) {
+                        handler.onInputParams(getInt(buffer, pos), getInt(buffer, pos + 4), getInt(buffer, pos + 8));
+                        return;
+                    }
+                    break;
+                case TYPE_SU_VERSION:
+                    handler.onSuVersion(new String(buffer, pos, length, UTF_8));
+                    return;
+                case TYPE_TEXT:
+                    parseLine(new String(buffer, pos, length, UTF_8), handler);
+                    return;
+                default:
+                    // types added in later revisions of the protocol are skipped
+                    handler.onUnexpected("Unknown frame type " + type);
+                    return;
+            }
+            handler.onUnexpected("Frame type " + type + " too short: " + length);
+        }
+
+        /**
+         * Make sure given number of bytes following start is in the buffer.
+         * @return false if stream ended earlier
+         */
+        private boolean require(int size) throws IOException {
+            while (end - start < size) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            if (end == buffer.length) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            end += read;
+            return true;
+        }
+    }
+
+    /**
+     * Receives decoded messages on the process reading thread.
+     */
+    public interface Handler {
+        void onState(ProcessState state);
+
+        void onInputParams(int rotateView, int verticalInput, int adjustedRotation);
+
+        /**
+         * @param fps current frame rate or negative value if it couldn't be parsed
+         */
+        void onFps(float fps);
+
+        void onError(int exitValue);
+
+        void onSuVersion(String version);
+
+        /**
+         * @param version highest protocol version supported by the process or -1 if it couldn't be parsed
+         */
+        void onProtocolAnnounced(int version);
+
+        /**
+         * @param requestId request id or -1 if result couldn't be parsed
+         */
+        void onCommandResult(int requestId, int result);
+
+        /**
+         * Called for malformed or unknown messages.
+         */
+        void onUnexpected(String message);
+    }
+}
@@ -0,0 +1,162 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer ring of raw PCM data between AudioRecord capture thread
+ * and the thread filling audio encoder input buffers.
+ * Producer calls {@link #readFrom(AudioRecord)} and never waits for the consumer, when the ring is full
+ * captured data is discarded and counted as overrun so that AudioRecord itself is always drained.
+ * Consumer calls {@link #read(ByteBuffer)}, running out of data because capture stalled is counted as underrun.
+ */
+public class PcmRingBuffer {
+
+    private final byte[] data;
+    private final int mask;
+    private final int chunkSize;
+    private final byte[] discard;
+    private final long underrunThresholdNs;
+    private final AtomicLong head = new AtomicLong(); // next byte to be consumed
+    private final AtomicLong tail = new AtomicLong(); // next byte to be produced
+    private long lastWriteNs;
+    private AudioLevelMeter levelMeter;
+    private volatile int overruns;
+    private volatile long overrunBytes;
+    private volatile int underruns;
+
+    /**
+     * @param capacity ring size in bytes, must be a power of two and multiple of chunkSize
+     * @param chunkSize maximum number of bytes read from AudioRecord at once, must be a multiple of frame size
+     * @param underrunThresholdNs capture gap after which empty ring is counted as underrun
+     */
+    public PcmRingBuffer(int capacity, int chunkSize, long underrunThresholdNs) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        if (chunkSize <= 0 || capacity % chunkSize != 0) {
+            throw new IllegalArgumentException("capacity must be a multiple of chunkSize");
+        }
+        data = new byte[capacity];
+        mask = capacity - 1;
+        this.chunkSize = chunkSize;
+        this.underrunThresholdNs = underrunThresholdNs;
+        discard = new byte[chunkSize];
+    }
+
+    /**
+     * Measure level of all captured data, including data discarded on overrun.
+     * Must be set before capture is started.
+     */
+    public void setLevelMeter(AudioLevelMeter levelMeter) {
+        this.levelMeter = levelMeter;
+    }
+
+    /**
+     * Read next chunk from AudioRecord, blocks until the data is captured.
+     * Must be called by the producer thread only.
+     * @return number of bytes read or AudioRecord error code
+     */
+    public int readFrom(AudioRecord audioRecord) {
+        long t = tail.get();
+        long h = head.get();
+        if (data.length - (t - h) < chunkSize) {
+            int read = audioRecord.read(discard, 0, chunkSize);
+            if (read > 0) {
+                overruns++;
+                overrunBytes += read;
+                lastWriteNs = System.nanoTime();
+                if (levelMeter != null) {
+                    levelMeter.process(discard, 0, read);
+                }
+            }
+            return read;
+        }
+        // single read stops at the end of the array, AudioRecord returns whole frames so frames never wrap
+        int offset = (int) (t & mask);
+        int read = audioRecord.read(data, offset, Math.min(chunkSize, data.length - offset));
+        if (read > 0) {
+            long now = System.nanoTime();
+            if (lastWriteNs != 0 && head.get() == t && now - lastWriteNs > underrunThresholdNs) {
+                underruns++;
+            }
+            lastWriteNs = now;
+            if (levelMeter != null) {
+                levelMeter.process(data, offset, read);
+            }
+            tail.lazySet(t + read);
+        }
+        return read;
+    }
+
+    /**
+     * Copy as much buffered data as fits into target.
+     * Must be called by the consumer thread only.
+     * @return number of bytes copied
+     */
+    public int read(ByteBuffer target) {
+        long h = head.get();
+        int length = (int) Math.min(tail.get() - h, target.remaining());
+        int offset = (int) (h & mask);
+        int first = Math.min(length, data.length - offset);
+        target.put(data, offset, first);
+        if (first < length) {
+            target.put(data, 0, length - first);
+        }
+        head.lazySet(h + length);
+        return length;
+    }
+
+    /**
+     * Discard buffered data without copying it.
+     * Must be called by the consumer thread only.
+     * @return number of bytes discarded
+     */
+    public int skip(int bytes) {
+        long h = head.get();
+        int length = (int) Math.min(tail.get() - h, bytes);
+        head.lazySet(h + length);
+        return length;
+    }
+
+    /**
+     * @return number of bytes available to the consumer
+     */
+    public int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return number of bytes stored so far, discarded data is not included
+     */
+    public long getWritePosition() {
+        return tail.get();
+    }
+
+    /**
+     * @return number of bytes consumed so far
+     */
+    public long getReadPosition() {
+        return head.get();
+    }
+
+    /**
+     * @return number of chunks discarded because the ring was full
+     */
+    public int getOverruns() {
+        return overruns;
+    }
+
+    public long getOverrunBytes() {
+        return overrunBytes;
+    }
+
+    /**
+     * @return number of times the consumer ran out of data because capture stalled
+     */
+    public int getUnderruns() {
+        return underruns;
+    }
+}
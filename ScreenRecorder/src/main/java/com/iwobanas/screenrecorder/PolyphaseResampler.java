@@ -0,0 +1,182 @@
+package com.iwobanas.screenrecorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming sample rate converter for interleaved 16 bit little endian PCM as used by AudioRecord and MediaCodec.
+ * Rate ratio is reduced to up / down integers and a Kaiser windowed sinc low-pass is split into up phases,
+ * so each output sample is a single dot product of one phase with the most recent input frames.
+ * Cutoff is placed below the lower of input and output Nyquist frequency to avoid both aliasing and imaging.
+ * No memory is allocated after construction. Not thread safe.
+ */
+public class PolyphaseResampler {
+
+    private static final int TAPS_PER_PHASE = 32;
+    private static final double CUTOFF = 0.91;
+    private static final double KAISER_BETA = 9.0;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int frameSize;
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final float[] coefficients; // phase * taps + i, reversed so that i = 0 is applied to the oldest frame
+    private final float[] history; // channel * 2 * taps + i, each frame stored twice to keep the window contiguous
+    private final double delayFrames;
+    private int historyPosition;
+    private int phase;
+    private int pendingFrames = 1;
+    private long outputFrames;
+
+    public PolyphaseResampler(int inputRate, int outputRate, int channels) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("Invalid resampler configuration " + inputRate + "->" + outputRate
+                    + " channels: " + channels);
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        frameSize = 2 * channels;
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+        // when decimating the filter is stretched to keep the same transition band relative to output Nyquist
+        int stretchedTaps = (int) Math.ceil(TAPS_PER_PHASE * Math.max(1.0, (double) down / up));
+        taps = (stretchedTaps + 1) & ~1;
+        coefficients = designFilter(up, down, taps);
+        history = new float[channels * 2 * taps];
+        delayFrames = (up * taps - 1) / 2.0 / up;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static float[] designFilter(int up, int down, int taps) {
+        int length = up * taps;
+        double cutoff = CUTOFF * 0.5 / Math.max(up, down); // cycles per sample at up times input rate
+        double center = (length - 1) / 2.0;
+        double i0Beta = besselI0(KAISER_BETA);
+        double[] prototype = new double[length];
+        for (int m = 0; m < length; m++) {
+            double x = m - center;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double r = 2 * x / (length - 1);
+            double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+            prototype[m] = sinc * window;
+        }
+        float[] coefficients = new float[length];
+        for (int p = 0; p < up; p++) {
+            // unity gain for each phase, otherwise DC ripple shows up as a tone at input rate / down
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += prototype[p + k * up];
+            }
+            for (int k = 0; k < taps; k++) {
+                coefficients[p * taps + taps - 1 - k] = (float) (prototype[p + k * up] / sum);
+            }
+        }
+        return coefficients;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50 && term > sum * 1e-12; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    /**
+     * Convert as many frames as possible. Reading stops when input runs out or output has no space for a whole frame,
+     * remaining input is left in the buffer and may be passed again with more data appended.
+     * @return number of bytes written to output
+     */
+    public int process(ByteBuffer input, ByteBuffer output) {
+        int start = output.position();
+        while (true) {
+            while (pendingFrames > 0) {
+                if (input.remaining() < frameSize) {
+                    return output.position() - start;
+                }
+                pushFrame(input);
+                pendingFrames--;
+            }
+            if (output.remaining() < frameSize) {
+                return output.position() - start;
+            }
+            int coefficientOffset = phase * taps;
+            for (int c = 0; c < channels; c++) {
+                int historyOffset = c * 2 * taps + historyPosition;
+                float sum = 0;
+                for (int i = 0; i < taps; i++) {
+                    sum += coefficients[coefficientOffset + i] * history[historyOffset + i];
+                }
+                int sample = Math.round(sum);
+                if (sample > Short.MAX_VALUE) {
+                    sample = Short.MAX_VALUE;
+                } else if (sample < Short.MIN_VALUE) {
+                    sample = Short.MIN_VALUE;
+                }
+                output.put((byte) sample);
+                output.put((byte) (sample >> 8));
+            }
+            outputFrames++;
+            phase += down;
+            pendingFrames = phase / up;
+            phase %= up;
+        }
+    }
+
+    private void pushFrame(ByteBuffer input) {
+        for (int c = 0; c < channels; c++) {
+            float sample = (short) ((input.get() & 0xff) | (input.get() << 8));
+            int offset = c * 2 * taps + historyPosition;
+            history[offset] = sample;
+            history[offset + taps] = sample;
+        }
+        historyPosition++;
+        if (historyPosition == taps) {
+            historyPosition = 0;
+        }
+    }
+
+    /**
+     * @return input frame corresponding to the next output frame, including filter delay, may be negative at start
+     */
+    public long getInputFramePosition() {
+        return (long) Math.floor((double) outputFrames * down / up - delayFrames);
+    }
+
+    public long getOutputFrames() {
+        return outputFrames;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return filter length in input frames
+     */
+    public int getTaps() {
+        return taps;
+    }
+}
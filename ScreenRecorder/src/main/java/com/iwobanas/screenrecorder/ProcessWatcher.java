@@ -0,0 +1,447 @@
+package com.iwobanas.screenrecorder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks processes by command line without rescanning whole /proc on every query.
+ * Pid table is updated incrementally: only command lines of new pids are read and entries of pids
+ * which disappeared are dropped. If the previous scan was long ago, a pid may have been reused meanwhile,
+ * so command lines of all known pids are compared again. Processes of watched commands, i.e. commands which were queried or subscribed,
+ * are identified by pid and start time so a zombie or a reused pid isn't mistaken for the process.
+ * While someone waits or listens a single background thread rescans every {@value #SCAN_INTERVAL_MS}ms
+ * and wakes waiting callers, /proc doesn't support change notifications so this is the shortest way to learn
+ * about process changes.
+ */
+public class ProcessWatcher {
+    private static final String TAG = "scr_ProcessWatcher";
+    private static final long SCAN_INTERVAL_MS = 50;
+    private static final int MAX_CMDLINE = 256;
+    // forked process has parent's command line until it calls exec
+    private static final long CMDLINE_SETTLE_MS = 1000;
+    private static final int STAT_STATE_FIELD = 0; // fields counted after process name
+    private static final int STAT_START_TIME_FIELD = 19;
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static ProcessWatcher instance;
+
+    private final Map<Integer, Entry> processes = new HashMap<Integer, Entry>();
+    private final Set<String> watchedCommands = new HashSet<String>();
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    // events of scans done on caller threads are delivered by the watcher thread
+    private final List<Runnable> pendingEvents = new ArrayList<Runnable>();
+    private final byte[] buffer = new byte[MAX_CMDLINE];
+    private int scanNumber;
+    private long lastScanMs;
+    private int waiters;
+    private Thread thread;
+    private final LatencyStats scanLatency = new LatencyStats();
+
+    ProcessWatcher() {
+    }
+
+    public static synchronized ProcessWatcher getInstance() {
+        if (instance == null) {
+            instance = new ProcessWatcher();
+        }
+        return instance;
+    }
+
+    /**
+     * @return pid of the most recently started process whose command line starts with given command or -1
+     */
+    public synchronized int findProcess(String command) {
+        watch(command);
+        scan();
+        return lookup(command);
+    }
+
+    /**
+     * Wait until process with given command is running.
+     * @return pid or -1 if process didn't appear within timeout
+     */
+    public synchronized int waitForProcess(String command, long timeoutMs) {
+        watch(command);
+        scan();
+        int pid = lookup(command);
+        if (pid > 0) {
+            return pid;
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        waiters++;
+        try {
+            startThread();
+            while (pid < 0) {
+                long remainingMs = deadline - SystemClock.elapsedRealtime();
+                if (remainingMs <= 0) {
+                    break;
+                }
+                wait(remainingMs);
+                pid = lookup(command);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for " + command);
+        } finally {
+            waiters--;
+        }
+        return pid;
+    }
+
+    /**
+     * Wait until process exits.
+     * @return true if the process doesn't exist any more
+     */
+    public synchronized boolean waitForExit(int pid, long timeoutMs) {
+        scan();
+        Entry entry = processes.get(pid);
+        if (entry == null) {
+            return true;
+        }
+        entry.watched = true;
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        waiters++;
+        try {
+            startThread();
+            while (processes.get(pid) == entry) {
+                long remainingMs = deadline - SystemClock.elapsedRealtime();
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                wait(remainingMs);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for " + pid + " to exit");
+            return false;
+        } finally {
+            waiters--;
+        }
+        return true;
+    }
+
+    /**
+     * Subscribe to start and exit of processes with given command.
+     * Listener is called on the watcher thread, processes running when subscribing are reported as started.
+     */
+    public synchronized void addListener(String command, Listener listener) {
+        watch(command);
+        Subscription subscription = new Subscription(command, listener);
+        subscriptions.add(subscription);
+        for (Entry entry : processes.values()) {
+            if (entry.cmdline.startsWith(command)) {
+                pendingEvents.add(subscription.started(entry.pid));
+            }
+        }
+        startThread();
+        notifyAll();
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        Iterator<Subscription> iterator = subscriptions.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().listener == listener) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void watch(String command) {
+        if (watchedCommands.add(command)) {
+            for (Entry entry : processes.values()) {
+                if (entry.cmdline.startsWith(command)) {
+                    entry.watched = true;
+                }
+            }
+        }
+    }
+
+    private int lookup(String command) {
+        Entry newest = null;
+        for (Entry entry : processes.values()) {
+            if (entry.cmdline.startsWith(command) && (newest == null || entry.startTime > newest.startTime
+                    || (entry.startTime == newest.startTime && entry.pid > newest.pid))) {
+                newest = entry;
+            }
+        }
+        return newest == null ? -1 : newest.pid;
+    }
+
+    private void startThread() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "ProcessWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                List<Runnable> events;
+                synchronized (this) {
+                    while (waiters == 0 && subscriptions.isEmpty()) {
+                        wait();
+                    }
+                    scan();
+                    events = new ArrayList<Runnable>(pendingEvents);
+                    pendingEvents.clear();
+                    notifyAll();
+                }
+                for (Runnable event : events) {
+                    event.run();
+                }
+                Thread.sleep(SCAN_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Watcher interrupted");
+        }
+    }
+
+    /**
+     * Update pid table with current content of /proc.
+     * Events for listeners are queued to be delivered after releasing the lock.
+     */
+    private void scan() {
+        long start = System.nanoTime();
+        String[] names = new File("/proc").list();
+        if (names == null) {
+            return;
+        }
+        List<Runnable> events = pendingEvents;
+        long now = SystemClock.elapsedRealtime();
+        int scan = ++scanNumber;
+        // continuous scans are too close to each other to miss a process exit and reuse of its pid
+        boolean recheckAll = now - lastScanMs >= CMDLINE_SETTLE_MS;
+        lastScanMs = now;
+        for (String name : names) {
+            int pid = parsePid(name);
+            if (pid <= 0) {
+                continue;
+            }
+            Entry entry = processes.get(pid);
+            if (entry != null && ((entry.watched && !isSameProcess(entry))
+                    || ((recheckAll || now - entry.firstSeenMs < CMDLINE_SETTLE_MS) && !isSameCmdline(entry)))) {
+                processes.remove(pid);
+                onExit(entry, events);
+                entry = null;
+            }
+            if (entry == null) {
+                // processes found by the first scan are assumed to be running for a while
+                entry = readEntry(pid, scan == 1 ? 0 : now);
+                if (entry == null) {
+                    continue;
+                }
+                processes.put(pid, entry);
+                onStart(entry, events);
+            }
+            entry.scanNumber = scan;
+        }
+        Iterator<Entry> iterator = processes.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.scanNumber != scan) {
+                iterator.remove();
+                onExit(entry, events);
+            }
+        }
+        scanLatency.add(System.nanoTime() - start);
+    }
+
+    private static int parsePid(String name) {
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9' || i >= 9) {
+                return -1;
+            }
+            pid = pid * 10 + c - '0';
+        }
+        return pid;
+    }
+
+    private Entry readEntry(int pid, long now) {
+        int length = read("/proc/" + pid + "/cmdline");
+        if (length < 0) {
+            return null;
+        }
+        // one char per byte so that it can be compared with the file content
+        Entry entry = new Entry(pid, new String(buffer, 0, length, LATIN_1), now);
+        for (String command : watchedCommands) {
+            if (entry.cmdline.startsWith(command)) {
+                entry.watched = true;
+                break;
+            }
+        }
+        if (entry.watched) {
+            entry.startTime = readStartTime(pid);
+            if (entry.startTime < 0) {
+                return null; // exited or zombie
+            }
+        }
+        return entry;
+    }
+
+    private boolean isSameCmdline(Entry entry) {
+        int length = read("/proc/" + entry.pid + "/cmdline");
+        if (length != entry.cmdline.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((buffer[i] & 0xff) != entry.cmdline.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSameProcess(Entry entry) {
+        if (entry.startTime == 0) {
+            // watched after it was found, start time is not known yet
+            entry.startTime = readStartTime(entry.pid);
+            return entry.startTime >= 0;
+        }
+        return readStartTime(entry.pid) == entry.startTime;
+    }
+
+    /**
+     * @return start time in clock ticks after boot or -1 if process doesn't exist or is a zombie
+     */
+    private long readStartTime(int pid) {
+        int length = read("/proc/" + pid + "/stat");
+        int field = -1;
+        long startTime = -1;
+        // process name in parentheses may contain spaces, fields are counted from the last parenthesis
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == ')') {
+                field = 0;
+                for (int j = i + 2; j < length && field <= STAT_START_TIME_FIELD; j++) {
+                    if (buffer[j] == ' ') {
+                        field++;
+                    } else if (field == STAT_STATE_FIELD && (buffer[j] == 'Z' || buffer[j] == 'X')) {
+                        return -1;
+                    } else if (field == STAT_START_TIME_FIELD) {
+                        startTime = (startTime < 0 ? 0 : startTime * 10) + buffer[j] - '0';
+                    }
+                }
+                break;
+            }
+        }
+        return startTime;
+    }
+
+    /**
+     * Read beginning of a small proc file into the buffer.
+     * @return number of bytes read or -1 if file can't be read
+     */
+    private int read(String path) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(path);
+            int length = 0;
+            int count;
+            while (length < buffer.length && (count = inputStream.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void onStart(Entry entry, List<Runnable> events) {
+        for (Subscription subscription : subscriptions) {
+            if (entry.cmdline.startsWith(subscription.command)) {
+                events.add(subscription.started(entry.pid));
+            }
+        }
+    }
+
+    private void onExit(Entry entry, List<Runnable> events) {
+        for (Subscription subscription : subscriptions) {
+            if (entry.cmdline.startsWith(subscription.command)) {
+                events.add(subscription.died(entry.pid));
+            }
+        }
+    }
+
+    /**
+     * @return statistics of /proc scans
+     */
+    public synchronized String getScanStats() {
+        return "processes: " + processes.size() + " scans: " + scanLatency;
+    }
+
+    private static class Entry {
+        final int pid;
+        final String cmdline;
+        final long firstSeenMs;
+        long startTime;
+        boolean watched;
+        int scanNumber;
+
+        Entry(int pid, String cmdline, long firstSeenMs) {
+            this.pid = pid;
+            this.cmdline = cmdline;
+            this.firstSeenMs = firstSeenMs;
+        }
+    }
+
+    private static class Subscription {
+        final String command;
+        final Listener listener;
+
+        Subscription(String command, Listener listener) {
+            this.command = command;
+            this.listener = listener;
+        }
+
+        Runnable started(final int pid) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProcessStarted(command, pid);
+                }
+            };
+        }
+
+        Runnable died(final int pid) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProcessDied(command, pid);
+                }
+            };
+        }
+    }
+
+    public interface Listener {
+        void onProcessStarted(String command, int pid);
+
+        void onProcessDied(String command, int pid);
+    }
+}
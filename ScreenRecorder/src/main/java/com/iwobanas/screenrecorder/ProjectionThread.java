@@ -9,38 +9,79 @@ import android.content.res.AssetFileDescriptor;
 import android.graphics.Point;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
-import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
-import android.media.MediaRecorder;
+import android.media.MediaScannerConnection;
 import android.media.projection.MediaProjection;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.provider.DocumentFile;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Display;
 import android.view.Surface;
+import android.widget.Toast;
 
 import com.google.analytics.tracking.android.EasyTracker;
 import com.iwobanas.screenrecorder.settings.AudioSource;
+import com.iwobanas.screenrecorder.settings.LowStorageAction;
 import com.iwobanas.screenrecorder.settings.Orientation;
 import com.iwobanas.screenrecorder.settings.Resolution;
 import com.iwobanas.screenrecorder.settings.Settings;
+import com.iwobanas.screenrecorder.settings.SyncPolicy;
+import com.iwobanas.screenrecorder.settings.VideoBitrate;
 import com.iwobanas.screenrecorder.settings.VideoEncoder;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class ProjectionThread implements Runnable {
 
     private static final String TAG = "scr_ProjectionThread";
+    private static final long MAX_FILE_SIZE = 4000000000l;
+    private static final int I_FRAME_INTERVAL = 5;
+    private static final int AUDIO_BITRATE = 64000;
+    private static final int VIDEO_QUEUE_CAPACITY = 32;
+    private static final int VIDEO_SAMPLE_BUFFER_SIZE = 64 * 1024;
+    private static final int AUDIO_QUEUE_CAPACITY = 64;
+    private static final int AUDIO_SAMPLE_BUFFER_SIZE = 2 * 1024;
+    private static final long WRITER_PARK_NS = 100000000;
+    private static final long INTERLEAVE_PARK_NS = 10000000;
+    private static final long MAX_INTERLEAVE_DELAY_NS = 100000000;
+    private static final long SEGMENT_LEAD_US = 1000000;
+    private static final long MAX_REPLAY_BUFFER_SIZE = 256 * 1024 * 1024;
+    private static final long AUDIO_FEEDER_PARK_NS = 5000000;
+    private static final int MIXER_BLOCK_FRAMES = 1024;
+    // hidden encoder keys making input surface drop frames, "time-lapse" on Lollipop, "max-fps-to-encoder" since M
+    private static final String KEY_TIME_LAPSE = "time-lapse";
+    private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
+    // temporal layering in which every other frame is a non-reference frame which can be dropped
+    private static final String KEY_TEMPORAL_LAYERING = "ts-schema";
+    private static final String TEMPORAL_LAYERING_SCHEMA = "android.generic.2";
+    // fraction of the average frame size below which a frame is considered to show a static screen
+    private static final int STATIC_FRAME_SIZE_DIVISOR = 64;
+    private static final int MIN_STATIC_FRAME_SIZE = 128;
+    // forecast recording time left at which low storage action is taken, leaves time to switch files
+    private static final long LOW_STORAGE_SECONDS = 15;
 
     private static int mediaServerPid = -1;
 
@@ -48,21 +89,65 @@ public class ProjectionThread implements Runnable {
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private Surface surface;
-    private MediaCodec audioEncoder;
     private MediaCodec videoEncoder;
-    private AudioRecord audioRecord;
-    private MediaMuxer muxer;
-    private MediaMuxerHack muxerHack;
-    private boolean muxerStarted;
+    private MeasuredSampleSink muxer;
+    private volatile boolean muxerStarted;
     private boolean startTimestampInitialized;
     private long startTimestampUs;
+    private volatile boolean paused;
+    private volatile boolean waitingForSyncFrame;
+    private long pauseStartUs;
+    private long pausedDurationUs;
     private Context context;
     private Handler handler;
-    private Thread audioRecordThread;
-
-    private int videoTrackIndex = -1;
-    private int audioTrackIndex = -1;
-
+    private boolean sourceVideoTimestamps;
+    private long lastVideoTimestampUs = -1;
+
+    private final int[] trackIndices = newTrackIndices();
+    private final List<AudioEncoderTrack> audioTracks = new ArrayList<AudioEncoderTrack>();
+    private SampleQueue[] queues;
+    private EncoderDrainer videoDrainer;
+    private volatile MediaFormat videoFormat;
+    private volatile Throwable drainError;
+    private volatile int drainErrorCode;
+    private boolean interleaveWait;
+    private boolean eventDriven;
+    private CodecCallbackEngine videoEngine;
+    private long writerWakeups;
+    private int videoFrames;
+    private long recordingStartRealtimeMs;
+    private long recordingStartCpuTimeMs;
+    private boolean fragmentedOutput;
+    private long fragmentDurationUs;
+    private boolean segmentedOutput;
+    private long segmentSize;
+    private long segmentDurationUs;
+    private int segmentNumber = 1;
+    private long segmentDataSize;
+    private long segmentStartUs = -1;
+    private boolean syncFrameRequested;
+    private SegmentFinalizer segmentFinalizer;
+    private DocumentFile documentDir;
+    private final LatencyStats writeLatency = new LatencyStats();
+    private final WriteBehindChannel.Stats ioStats = new WriteBehindChannel.Stats();
+    private boolean writeBehind;
+    private SyncPolicy syncPolicy;
+    private LowStorageAction lowStorageAction;
+    private StorageMonitor storageMonitor;
+    private StorageMonitor.Listener storageListener;
+    private long outputDataSize;
+    private File segmentDir;
+    private boolean lowStorageReported;
+    private boolean volumeSwitchPending;
+    private boolean replayMode;
+    private int replayDuration;
+    private ReplayBuffer replayBuffer;
+    private volatile boolean replayRequested;
+    private Thread replayThread;
+    private AdaptiveBitrateController bitrateController;
+    private boolean variableFrameRate;
+    private long maxFrameGapUs;
+    private StaticFrameFilter staticFrameFilter;
 
     private File outputFile;
     private Uri documentDirUri;
@@ -75,6 +160,12 @@ public class ProjectionThread implements Runnable {
     private int sampleRate;
     private boolean stereo;
     private boolean hasAudio;
+    private boolean separateAudioTracks;
+    private boolean mixInternalAudio;
+    private boolean compactSilence;
+    private AudioLevelMeter.Listener audioLevelListener;
+    private long audioLevelIntervalMs;
+    private int micGain;
     private RecordingInfo recordingInfo;
     private Thread recordingThread;
     private RecordingProcessState state = RecordingProcessState.NEW;
@@ -116,6 +207,63 @@ public class ProjectionThread implements Runnable {
     };
     private AssetFileDescriptor fileDescriptor;
 
+    private EncoderDrainer.Callback drainerCallback = new EncoderDrainer.Callback() {
+        @Override
+        public void onFormatChanged(EncoderDrainer drainer, MediaFormat format) {
+            if (drainer.getTrackType() == EncoderDrainer.TRACK_VIDEO) {
+                videoFormat = format;
+            } else {
+                getAudioTrack(drainer.getTrackType()).setFormat(format);
+            }
+            LockSupport.unpark(recordingThread);
+        }
+
+        @Override
+        public boolean onSample(EncoderDrainer drainer, MediaCodec.BufferInfo info) {
+            if (paused) {
+                return false;
+            }
+            if (drainer.getTrackType() == EncoderDrainer.TRACK_VIDEO) {
+                if (waitingForSyncFrame) {
+                    // frames encoded before the sync frame requested on resume may reference discarded frames
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                        return false;
+                    }
+                    waitingForSyncFrame = false;
+                }
+                long presentationTimeUs = sourceVideoTimestamps ? toPresentationTimeUs(info.presentationTimeUs) : getPresentationTimeUs();
+                if (presentationTimeUs <= lastVideoTimestampUs) {
+                    presentationTimeUs = lastVideoTimestampUs + 1;
+                }
+                lastVideoTimestampUs = presentationTimeUs;
+                info.presentationTimeUs = presentationTimeUs;
+                videoFrames++;
+                return true;
+            }
+            AudioEncoderTrack track = getAudioTrack(drainer.getTrackType());
+            if (info.presentationTimeUs > track.lastTimestampUs && muxerStarted) {
+                track.lastTimestampUs = info.presentationTimeUs;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onError(EncoderDrainer drainer, int errorCode, Throwable throwable) {
+            if (throwable != null) {
+                Log.e(TAG, "Encoder drain error", throwable);
+                if (drainError == null) {
+                    drainErrorCode = errorCode;
+                    drainError = throwable;
+                }
+            } else {
+                setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, errorCode);
+            }
+            asyncError = true;
+            LockSupport.unpark(recordingThread);
+        }
+    };
+
     public ProjectionThread(MediaProjection mediaProjection, Context context, ProjectionThreadRunner runner) {
         this.mediaProjection = mediaProjection;
         this.context = context.getApplicationContext();
@@ -126,6 +274,7 @@ public class ProjectionThread implements Runnable {
 
     public void startRecording(File outputFile) {
         this.outputFile = outputFile;
+        segmentDir = outputFile.getParentFile();
         recordingInfo = new RecordingInfo();
 
         //TODO: report all caught exceptions to analytics
@@ -172,7 +321,17 @@ public class ProjectionThread implements Runnable {
         if (frameRate < 1 || frameRate > 30) {
             frameRate = 30;
         }
+        if (s.getAdaptiveBitrate() && videoBitrate > 0) {
+            bitrateController = new AdaptiveBitrateController(videoBitrate, VideoBitrate.getAdaptiveFloor(videoBitrate), frameRate);
+        }
         timeLapse = s.getTimeLapse();
+        recordingInfo.timeLapse = timeLapse;
+        // surface timestamps are rewritten by the encoder when dropping frames for time-lapse on Lollipop
+        sourceVideoTimestamps = timeLapse == 1 || Build.VERSION.SDK_INT >= 23;
+        // static frames are recognized in H.264 stream only
+        variableFrameRate = timeLapse == 1 && s.getVariableFrameRate() && MediaFormat.MIMETYPE_VIDEO_AVC.equals(videoMime);
+        maxFrameGapUs = Math.max(s.getMaxFrameGap(), 1000 / frameRate) * 1000l;
+        recordingInfo.variableFrameRate = variableFrameRate;
 
         hasAudio = (timeLapse == 1) && (s.getAudioSource() != AudioSource.MUTE);
         if (s.getTemporaryMute()) {
@@ -180,138 +339,1082 @@ public class ProjectionThread implements Runnable {
             hasAudio = false;
             s.setTemporaryMute(false);
         }
+        // concurrent capture and playback capture are only available since Android 10
+        separateAudioTracks = hasAudio && s.getSeparateAudioTracks() && Build.VERSION.SDK_INT >= 29;
+        mixInternalAudio = hasAudio && !separateAudioTracks && s.getMixInternalAudio() && Build.VERSION.SDK_INT >= 29;
+        micGain = s.getMicGain();
+        compactSilence = s.getCompactSilence();
         sampleRate = s.getSamplingRate().getSamplingRate();
         stereo = s.getStereo();
+        eventDriven = s.getEventDrivenEncoders();
+        fragmentedOutput = s.getFragmentedOutput();
+        fragmentDurationUs = s.getFragmentDuration() * 1000l;
+        writeBehind = fragmentedOutput && s.getWriteBehind();
+        recordingInfo.fragmented = fragmentedOutput;
+        syncPolicy = s.getSyncPolicy();
+        lowStorageAction = s.getLowStorageAction();
+        replayMode = s.getReplayBuffer();
+        replayDuration = s.getReplayDuration();
+        recordingInfo.replayBuffer = replayMode;
+        segmentedOutput = !replayMode && s.getSegmentedOutput();
+        segmentSize = s.getSegmentSize() > 0 ? Math.min(s.getSegmentSize() * 1024l * 1024l, MAX_FILE_SIZE) : MAX_FILE_SIZE;
+        segmentDurationUs = s.getSegmentDuration() > 0 ? s.getSegmentDuration() * 60000000l : Long.MAX_VALUE;
 
         recordingThread = new Thread(this);
         recordingThread.start();
     }
 
-    private void setupVideoCodec() throws IOException {
+    private MediaFormat createVideoFormat(boolean temporalLayering) {
         // Encoded video resolution matches virtual display.
         MediaFormat encoderFormat = MediaFormat.createVideoFormat(videoMime, videoWidth, videoHeight);
         encoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
         encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        encoderFormat.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000);
-        encoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5);
+        // in variable frame rate mode a static screen is represented by a single frame per maximum gap
+        encoderFormat.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, variableFrameRate ? (int) maxFrameGapUs : 1000000);
+        encoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        if (temporalLayering) {
+            encoderFormat.setString(KEY_TEMPORAL_LAYERING, TEMPORAL_LAYERING_SCHEMA);
+        }
+        if (timeLapse > 1) {
+            // frame rate and I-frame interval describe the output video,
+            // frames captured above frameRate / timeLapse are dropped before reaching the encoder
+            float captureRate = (float) frameRate / timeLapse;
+            if (Build.VERSION.SDK_INT >= 23) {
+                encoderFormat.setFloat(KEY_MAX_FPS_TO_ENCODER, captureRate);
+            } else {
+                encoderFormat.setLong(KEY_TIME_LAPSE, (long) (1000000 / captureRate));
+            }
+        }
+        return encoderFormat;
+    }
 
-        videoEncoder = MediaCodec.createEncoderByType(videoMime); //FIXME: hangs here after restarting between root/no-root with internal audio
-        videoEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    private void setupVideoCodec() throws IOException {
+        // temporal layering schema is available since Android 7.1
+        boolean temporalLayering = variableFrameRate && Build.VERSION.SDK_INT >= 25;
+        if (eventDriven) {
+            videoEngine = new CodecCallbackEngine("videoCodec");
+            videoEncoder = videoEngine.createEncoder(videoMime);
+        } else {
+            videoEncoder = MediaCodec.createEncoderByType(videoMime); //FIXME: hangs here after restarting between root/no-root with internal audio
+        }
+        videoDrainer = new EncoderDrainer(videoEncoder, EncoderDrainer.TRACK_VIDEO,
+                new SampleQueue(EncoderDrainer.TRACK_VIDEO, VIDEO_QUEUE_CAPACITY, VIDEO_SAMPLE_BUFFER_SIZE), drainerCallback, recordingThread);
+        if (eventDriven) {
+            videoEngine.setCallback(videoEncoder, videoDrainer, null);
+        }
+        if (variableFrameRate) {
+            int averageFrameSize = videoBitrate > 0 ? videoBitrate / 8 / frameRate : 0;
+            staticFrameFilter = new StaticFrameFilter(Math.max(MIN_STATIC_FRAME_SIZE,
+                    averageFrameSize / STATIC_FRAME_SIZE_DIVISOR), maxFrameGapUs);
+            videoDrainer.setSampleFilter(staticFrameFilter);
+        }
+        try {
+            videoEncoder.configure(createVideoFormat(temporalLayering), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (RuntimeException e) {
+            if (!temporalLayering) {
+                throw e;
+            }
+            // some encoders reject layering instead of ignoring it, all frames are then reference frames
+            Log.w(TAG, "Temporal layering not supported", e);
+            videoEncoder.reset();
+            if (eventDriven) {
+                videoEngine.setCallback(videoEncoder, videoDrainer, null);
+            }
+            videoEncoder.configure(createVideoFormat(false), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
         Log.v(TAG, "Selected codec: " + videoEncoder.getName());
         surface = videoEncoder.createInputSurface();
         videoEncoder.start();
     }
 
     private void setupVirtualDisplay() {
+        initStartTimestamp();
         virtualDisplay = mediaProjection.createVirtualDisplay("SCR Screen Recorder",
                 videoWidth, videoHeight, DisplayMetrics.DENSITY_HIGH,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                 surface, displayCallback, handler);
     }
 
-    private void setupAudioCodec() throws IOException {
-        // Encoded video resolution matches virtual display.
-        MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, stereo ? 2 : 1);
-        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, 64000);
+    /**
+     * Create AudioRecord for each audio track. Audio is captured at the device native rate
+     * and resampled to configured sampling rate, so any rate can be used regardless of what the device accepts.
+     * With separate tracks or mixing enabled internal audio is captured from other apps playback.
+     */
+    private void setupAudioRecords() throws Exception {
+        int nativeSampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        if (nativeSampleRate <= 0) {
+            nativeSampleRate = sampleRate;
+        }
+        if (separateAudioTracks) {
+            audioTracks.add(new AudioEncoderTrack(EncoderDrainer.TRACK_AUDIO, "internalAudio", "Internal audio",
+                    AudioCapture.createPlaybackCaptureRecord(mediaProjection, nativeSampleRate, stereo), 1.0f));
+            audioTracks.add(new AudioEncoderTrack(EncoderDrainer.TRACK_MIC_AUDIO, "micAudio", "Microphone",
+                    AudioCapture.createMicRecord(nativeSampleRate, stereo), 1.0f));
+        } else if (mixInternalAudio) {
+            // microphone is the master source as it delivers data even when nothing is played
+            AudioEncoderTrack track = new AudioEncoderTrack(EncoderDrainer.TRACK_AUDIO, "audio", null,
+                    AudioCapture.createMicRecord(nativeSampleRate, stereo), micGain);
+            audioTracks.add(track);
+            track.mixWith("internalAudio", AudioCapture.createPlaybackCaptureRecord(mediaProjection, nativeSampleRate, stereo), 1.0f);
+        } else {
+            audioTracks.add(new AudioEncoderTrack(EncoderDrainer.TRACK_AUDIO, "audio", null,
+                    AudioCapture.createMicRecord(nativeSampleRate, stereo), 1.0f));
+        }
+        recordingInfo.audioTracks = audioTracks.size();
+        if (audioLevelListener != null) {
+            audioTracks.get(0).capture.getLevelMeter().setListener(audioLevelListener, audioLevelIntervalMs);
+        }
+    }
 
-        audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-        Log.v(TAG, "Audio encoder: " + audioEncoder.getName());
-        audioEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        audioEncoder.start();
+    private AudioEncoderTrack getAudioTrack(int trackType) {
+        for (AudioEncoderTrack track : audioTracks) {
+            if (track.trackType == trackType) {
+                return track;
+            }
+        }
+        throw new IllegalArgumentException("No audio track of type " + trackType);
     }
 
+    private boolean audioFormatsReceived() {
+        for (AudioEncoderTrack track : audioTracks) {
+            if (track.format == null) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    private void setupAudioRecord() {
-        int channelConfig = stereo ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
-        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig,
-                AudioFormat.ENCODING_PCM_16BIT);
-        audioRecord = new AudioRecord(
-                MediaRecorder.AudioSource.MIC,
-                sampleRate,
-                channelConfig,
-                AudioFormat.ENCODING_PCM_16BIT,
-                4 * minBufferSize);
+    private void handleAudioError(Exception e) {
+        if (!stopped) {
+            Log.e(TAG, "Audio error", e);
+            setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 511);
+            asyncError = true;
+            EasyTracker.getTracker().sendException("projection", e, false);
+        }
     }
 
-    private void startAudioRecord() {
-        audioRecordThread = new Thread(new Runnable() {
+    /**
+     * Audio encoder fed from its own {@link AudioCapture} and written to its own muxer track.
+     * Other captures may be mixed into the track with {@link AudioMixer}, the first capture drives timestamps.
+     * Input buffers are filled by a feeder thread in polling mode or from codec callbacks in event driven mode.
+     */
+    private class AudioEncoderTrack implements AudioCapture.Listener, CodecCallbackEngine.InputFeeder {
+        final int trackType;
+        final String name;
+        final String title;
+        final AudioCapture capture;
+        final float gain;
+        private final List<AudioCapture> mixedCaptures = new ArrayList<AudioCapture>();
+        private AudioMixer mixer;
+        volatile MediaFormat format;
+        long lastTimestampUs = -1;
+        private MediaCodec encoder;
+        private CodecCallbackEngine engine;
+        private EncoderDrainer drainer;
+        private Thread feederThread;
+        private PolyphaseResampler resampler;
+        private SilentFrameReplacer silentFrameReplacer;
+        private ByteBuffer resamplerInput;
+        private volatile long inputWakeups;
+        private final ArrayDeque<Integer> pendingInputs = new ArrayDeque<Integer>();
+
+        /**
+         * Fill input buffers the encoder offered before PCM data was available.
+         * Posted to codec thread after each captured chunk in event driven mode.
+         */
+        private final Runnable feedPending = new Runnable() {
             @Override
             public void run() {
-                Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
                 try {
-                    audioRecord.startRecording();
-                } catch (Exception e) {
-                    setError(RecordingProcessState.MICROPHONE_BUSY_ERROR, 506);
-                    asyncError = true;
-                    EasyTracker.getTracker().sendException("projection", e, false);
-                    return;
-                }
-                try {
-                    while (!audioStopped) {
-                        int index = audioEncoder.dequeueInputBuffer(10000);
-                        if (index < 0) {
-                            continue;
-                        }
-                        ByteBuffer inputBuffer = audioEncoder.getInputBuffer(index);
-                        if (inputBuffer == null) {
-                            if (!stopped) {
-                                setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 512);
-                                asyncError = true;
-                            }
+                    while (!audioStopped && !pendingInputs.isEmpty() && hasInput()) {
+                        if (!feedInput(pendingInputs.poll())) {
                             return;
                         }
-                        inputBuffer.clear();
-                        int read = audioRecord.read(inputBuffer, inputBuffer.capacity());
-                        if (read < 0) {
-                            if (!stopped) {
-                                if (read == AudioRecord.ERROR_INVALID_OPERATION) {
-                                    setError(RecordingProcessState.MICROPHONE_BUSY_ERROR, 528);
-                                } else {
-                                    setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 529);
-                                }
-                                asyncError = true;
-                            }
-                            break;
-                        }
-                        audioEncoder.queueInputBuffer(index, 0, read, getPresentationTimeUs(), 0);
                     }
                 } catch (Exception e) {
-                    if (!stopped) {
-                        Log.e(TAG, "Audio error", e);
-                        setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 511);
-                        asyncError = true;
-                        EasyTracker.getTracker().sendException("projection", e, false);
+                    handleAudioError(e);
+                }
+            }
+        };
+
+        /**
+         * @param title track name stored in the output file or null
+         * @param gain applied to captured audio if other sources are mixed into the track
+         */
+        AudioEncoderTrack(int trackType, String name, String title, AudioRecord audioRecord, float gain) {
+            this.trackType = trackType;
+            this.name = name;
+            this.title = title;
+            this.gain = gain;
+            capture = new AudioCapture(name, audioRecord, this);
+        }
+
+        /**
+         * Mix another source captured at the same sampling rate into this track.
+         */
+        void mixWith(String sourceName, AudioRecord audioRecord, float sourceGain) {
+            AudioCapture source = new AudioCapture(sourceName, audioRecord, this);
+            mixedCaptures.add(source);
+            if (source.getSampleRate() != capture.getSampleRate()) {
+                throw new IllegalArgumentException("Can't mix " + sourceName + " at " + source.getSampleRate()
+                        + "Hz with " + name + " at " + capture.getSampleRate() + "Hz");
+            }
+            if (mixer == null) {
+                mixer = new AudioMixer(capture.getSampleRate(), capture.getChannels(), MIXER_BLOCK_FRAMES);
+                mixer.addSource(capture.getRingBuffer(), capture.getChannels(), gain);
+            }
+            mixer.addSource(source.getRingBuffer(), source.getChannels(), sourceGain);
+        }
+
+        /**
+         * Encoder runs at configured sampling rate, captured audio is resampled if capture rate differs.
+         */
+        void setupEncoder() throws IOException {
+            if (capture.getSampleRate() != sampleRate) {
+                resampler = new PolyphaseResampler(capture.getSampleRate(), sampleRate, capture.getChannels());
+                resamplerInput = ByteBuffer.allocate(capture.getFrameSize() * 1024);
+                resamplerInput.flip();
+                Log.v(TAG, name + " resampling " + capture.getSampleRate() + "->" + sampleRate);
+            }
+            MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                    sampleRate, capture.getChannels());
+            encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BITRATE);
+
+            if (eventDriven) {
+                engine = new CodecCallbackEngine(name + "Codec");
+                encoder = engine.createEncoder(MediaFormat.MIMETYPE_AUDIO_AAC);
+            } else {
+                encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            }
+            Log.v(TAG, "Audio encoder: " + encoder.getName());
+            drainer = new EncoderDrainer(encoder, trackType,
+                    new SampleQueue(trackType, AUDIO_QUEUE_CAPACITY, AUDIO_SAMPLE_BUFFER_SIZE), drainerCallback, recordingThread);
+            if (compactSilence) {
+                silentFrameReplacer = new SilentFrameReplacer(sampleRate, capture.getChannels());
+                drainer.setSampleReplacer(silentFrameReplacer);
+            }
+            if (eventDriven) {
+                engine.setCallback(encoder, drainer, this);
+            }
+            encoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (!eventDriven) {
+                // in event driven mode encoder is started together with AudioRecord so that input callbacks always have data source
+                encoder.start();
+            }
+        }
+
+        void setFormat(MediaFormat format) {
+            if (title != null) {
+                format.setString(SampleSink.KEY_TRACK_NAME, title);
+            }
+            this.format = format;
+        }
+
+        SampleQueue getQueue() {
+            return drainer.getQueue();
+        }
+
+        void start() {
+            if (!eventDriven) {
+                drainer.start();
+                feederThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        feedInputs();
+                    }
+                }, name + "Feeder");
+                feederThread.start();
+            }
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                mixedCapture.start();
+            }
+            capture.start();
+        }
+
+        private void feedInputs() {
+            try {
+                while (!audioStopped) {
+                    int index = encoder.dequeueInputBuffer(10000);
+                    inputWakeups++;
+                    if (index < 0) {
+                        continue;
+                    }
+                    while (!hasInput() && !audioStopped) {
+                        LockSupport.parkNanos(this, AUDIO_FEEDER_PARK_NS);
+                    }
+                    if (audioStopped || !feedInput(index)) {
+                        break;
                     }
-                } finally {
-                    audioRecord.stop();
-                    audioRecord.release();
-                    audioRecord = null;
                 }
+            } catch (Exception e) {
+                handleAudioError(e);
             }
-        });
-        audioRecordThread.start();
+        }
+
+        @Override
+        public void onCaptureStarted(AudioCapture capture) {
+            if (!eventDriven || capture != this.capture) {
+                return;
+            }
+            engine.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encoder.start();
+                    } catch (Exception e) {
+                        handleAudioError(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDataAvailable(AudioCapture capture) {
+            if (capture != this.capture) {
+                return; // mixing is driven by the first capture
+            }
+            if (eventDriven) {
+                engine.post(feedPending);
+            } else {
+                LockSupport.unpark(feederThread);
+            }
+        }
+
+        @Override
+        public void onCaptureError(AudioCapture capture, RecordingProcessState state, int errorCode, Throwable throwable) {
+            if (stopped) {
+                return;
+            }
+            if (throwable != null) {
+                Log.e(TAG, "Audio capture error", throwable);
+                EasyTracker.getTracker().sendException("projection", throwable, false);
+            }
+            setError(state, errorCode);
+            asyncError = true;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (audioStopped) {
+                return;
+            }
+            if (!hasInput()) {
+                pendingInputs.add(index);
+                return;
+            }
+            try {
+                feedInput(index);
+            } catch (Exception e) {
+                handleAudioError(e);
+            }
+        }
+
+        /**
+         * Fill codec input buffer with PCM data captured so far.
+         * Timestamp is derived from the number of frames captured before the data, see {@link AvTimestampEngine}.
+         * @return false if audio recording should be stopped
+         */
+        private boolean feedInput(int index) {
+            ByteBuffer inputBuffer = encoder.getInputBuffer(index);
+            if (inputBuffer == null) {
+                if (!stopped) {
+                    setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 512);
+                    asyncError = true;
+                }
+                return false;
+            }
+            inputBuffer.clear();
+            long frame;
+            int read;
+            if (resampler == null) {
+                frame = getCapturedFrames();
+                read = readCaptured(inputBuffer);
+            } else {
+                frame = resampler.getInputFramePosition();
+                read = resample(inputBuffer);
+            }
+            long presentationTimeUs = Math.max(0, toPresentationTimeUs(capture.getFrameTimeUs(frame)));
+            if (silentFrameReplacer != null) {
+                silentFrameReplacer.onInput(inputBuffer, 0, read, presentationTimeUs);
+            }
+            encoder.queueInputBuffer(index, 0, read, presentationTimeUs, 0);
+            return true;
+        }
+
+        /**
+         * Fill encoder input with resampled data, captured data not consumed by the resampler stays in resamplerInput.
+         * @return number of bytes written
+         */
+        private int resample(ByteBuffer inputBuffer) {
+            int written = 0;
+            while (true) {
+                written += resampler.process(resamplerInput, inputBuffer);
+                if (resamplerInput.remaining() >= capture.getFrameSize()) {
+                    return written; // encoder input is full
+                }
+                resamplerInput.compact();
+                int read = readCaptured(resamplerInput);
+                resamplerInput.flip();
+                if (read == 0) {
+                    return written;
+                }
+            }
+        }
+
+        private boolean hasInput() {
+            int available = mixer != null ? mixer.available() : capture.getRingBuffer().available();
+            return available > 0 || (resamplerInput != null && resamplerInput.remaining() >= capture.getFrameSize());
+        }
+
+        private int readCaptured(ByteBuffer target) {
+            return mixer != null ? mixer.mix(target) : capture.getRingBuffer().read(target);
+        }
+
+        /**
+         * @return number of frames of the first capture read so far
+         */
+        private long getCapturedFrames() {
+            return mixer != null ? mixer.getReadFrames() : capture.getRingBuffer().getReadPosition() / capture.getFrameSize();
+        }
+
+        /**
+         * Stop capture and wait for capture and feeder threads. {@link #audioStopped} must be set first.
+         */
+        void stopCapture() {
+            capture.stop();
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                mixedCapture.stop();
+            }
+            capture.join();
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                mixedCapture.join();
+            }
+            if (feederThread != null) {
+                try {
+                    feederThread.join();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        }
+
+        void stopDrainer() {
+            if (drainer != null) {
+                drainer.stop();
+            }
+        }
+
+        void joinDrainer() {
+            if (drainer != null) {
+                drainer.join();
+            }
+        }
+
+        void releaseEncoder() {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                    encoder.release();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error stopping audio encoder", e);
+                    EasyTracker.getTracker().sendException("projection", e, false);
+                }
+                encoder = null;
+            }
+            if (engine != null) {
+                engine.quit();
+                engine = null;
+            }
+        }
+
+        void interrupt() {
+            capture.interrupt();
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                mixedCapture.interrupt();
+            }
+            if (feederThread != null) {
+                feederThread.interrupt();
+            }
+            if (drainer != null) {
+                drainer.interrupt();
+            }
+        }
+
+        long getWakeups() {
+            long wakeups = inputWakeups + capture.getWakeups();
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                wakeups += mixedCapture.getWakeups();
+            }
+            if (engine != null) {
+                wakeups += engine.getWakeups();
+            } else if (drainer != null) {
+                wakeups += drainer.getWakeups();
+            }
+            return wakeups;
+        }
+
+        /**
+         * Log capture statistics, statistics of the first track are stored in RecordingInfo.
+         */
+        void logStats(boolean primary) {
+            PcmRingBuffer ringBuffer = capture.getRingBuffer();
+            AvTimestampEngine timestampEngine = capture.getTimestampEngine();
+            int overrunMs = (int) (ringBuffer.getOverrunBytes() * 1000 / capture.getBytesPerSecond());
+            int inputLatencyUs = timestampEngine.isInputLatencyMeasured() ? (int) timestampEngine.getInputLatencyUs() : -1;
+            Log.i(TAG, name + " capture: " + ringBuffer.getOverruns() + " overruns (" + overrunMs
+                    + "ms dropped), " + ringBuffer.getUnderruns() + " underruns");
+            logLevels(capture.getLevelMeter());
+            for (AudioCapture mixedCapture : mixedCaptures) {
+                PcmRingBuffer mixedRingBuffer = mixedCapture.getRingBuffer();
+                Log.i(TAG, mixedCapture.getName() + " capture: " + mixedRingBuffer.getOverruns() + " overruns, "
+                        + mixedRingBuffer.getUnderruns() + " underruns");
+                logLevels(mixedCapture.getLevelMeter());
+            }
+            if (mixer != null) {
+                int rate = capture.getSampleRate();
+                Log.i(TAG, name + " mixed " + mixer.getSourceCount() + " sources, block time avg "
+                        + mixer.getAverageBlockTimeNs() / 1000 + "us max " + mixer.getMaxBlockTimeNs() / 1000 + "us, "
+                        + mixer.getBudgetOverruns() + " over budget, limited " + mixer.getLimitedFrames() * 1000 / rate
+                        + "ms, starved " + mixer.getStarvedFrames() * 1000 / rate + "ms, dropped "
+                        + mixer.getDroppedFrames() * 1000 / rate + "ms");
+            }
+            if (silentFrameReplacer != null && lastTimestampUs > 0) {
+                Log.i(TAG, name + " silence: " + silentFrameReplacer.getReplacedFrames() + " frames replaced, saved "
+                        + silentFrameReplacer.getSavedBytes() / 1024 + "kB of " + silentFrameReplacer.getTotalBytes() / 1024
+                        + "kB, " + silentFrameReplacer.getSavedBytes() * 3600000000L / lastTimestampUs / 1024 + "kB per hour");
+            }
+            if (resampler != null) {
+                Log.i(TAG, name + " resampled " + resampler.getInputRate() + "->" + resampler.getOutputRate()
+                        + " with " + resampler.getTaps() + " taps per phase");
+            }
+            Log.i(TAG, name + " clock drift " + timestampEngine.getDriftPpm() + "ppm, corrected by " + timestampEngine.getCorrectionUs()
+                    + "us, final A/V offset " + timestampEngine.getOffsetUs() + "us, input latency " + inputLatencyUs + "us, "
+                    + timestampEngine.getDiscontinuities() + " discontinuities");
+            if (!primary) {
+                return;
+            }
+            recordingInfo.audioOverruns = ringBuffer.getOverruns();
+            recordingInfo.audioOverrunMs = overrunMs;
+            recordingInfo.audioUnderruns = ringBuffer.getUnderruns();
+            recordingInfo.audioDriftPpm = (float) timestampEngine.getDriftPpm();
+            recordingInfo.audioClockCorrectionUs = (int) timestampEngine.getCorrectionUs();
+            recordingInfo.avOffsetUs = (int) timestampEngine.getOffsetUs();
+            recordingInfo.audioInputLatencyUs = inputLatencyUs;
+            AudioLevelMeter levelMeter = capture.getLevelMeter();
+            recordingInfo.audioRmsDb = levelMeter.getAverageRmsDb();
+            recordingInfo.audioPeakDb = levelMeter.getMaxPeakDb();
+            recordingInfo.audioClippedSamples = levelMeter.getClippedSamples();
+            recordingInfo.audioSilenceMs = levelMeter.getSilenceMs();
+            recordingInfo.audioLongestSilenceMs = levelMeter.getLongestSilenceMs();
+            recordingInfo.audioSilentRuns = levelMeter.getSilentRuns();
+            if (silentFrameReplacer != null) {
+                recordingInfo.silentFramesReplaced = silentFrameReplacer.getReplacedFrames();
+                recordingInfo.silenceBytesSaved = silentFrameReplacer.getSavedBytes();
+            }
+            if (mixer != null) {
+                int rate = capture.getSampleRate();
+                recordingInfo.mixerSources = mixer.getSourceCount();
+                recordingInfo.mixerMaxBlockUs = (int) (mixer.getMaxBlockTimeNs() / 1000);
+                recordingInfo.mixerBudgetOverruns = mixer.getBudgetOverruns();
+                recordingInfo.mixerLimitedMs = (int) (mixer.getLimitedFrames() * 1000 / rate);
+                recordingInfo.mixerStarvedMs = (int) (mixer.getStarvedFrames() * 1000 / rate);
+            }
+        }
     }
 
-    private long getPresentationTimeUs() {
+    private void logLevels(AudioLevelMeter levelMeter) {
+        Log.i(TAG, levelMeter.getName() + " level " + levelMeter.getAverageRmsDb() + "dB RMS, peak " + levelMeter.getMaxPeakDb()
+                + "dB, " + levelMeter.getClippedSamples() + " clipped samples, silence " + levelMeter.getSilenceMs()
+                + "ms in " + levelMeter.getSilentRuns() + " runs, longest " + levelMeter.getLongestSilenceMs() + "ms");
+    }
+
+    private synchronized void initStartTimestamp() {
         if (!startTimestampInitialized) {
             startTimestampUs = System.nanoTime() / 1000;
             startTimestampInitialized = true;
         }
-        return (System.nanoTime() / 1000 - startTimestampUs) / timeLapse;
     }
 
-    private void startMuxerIfSetUp() {
-        if ((!hasAudio || audioTrackIndex >= 0) && videoTrackIndex >= 0) {
-            if (muxerHack != null) {
-                muxerHack.start();
+    private long getPresentationTimeUs() {
+        return toPresentationTimeUs(System.nanoTime() / 1000);
+    }
+
+    /**
+     * Map monotonic clock time to recording timeline.
+     * Time spent in pause is excluded so that recording is continuous after resume.
+     */
+    private synchronized long toPresentationTimeUs(long timeUs) {
+        if (!startTimestampInitialized) {
+            startTimestampUs = timeUs;
+            startTimestampInitialized = true;
+        }
+        if (paused) {
+            timeUs = Math.min(timeUs, pauseStartUs);
+        }
+        return (timeUs - startTimestampUs - pausedDurationUs) / timeLapse;
+    }
+
+    /**
+     * Discard encoder output until {@link #resumeRecording()} is called.
+     * Encoders and virtual display keep running so that resume is immediate.
+     */
+    public synchronized void pauseRecording() {
+        if (paused || !muxerStarted) {
+            return;
+        }
+        pauseStartUs = System.nanoTime() / 1000;
+        paused = true;
+        Log.i(TAG, "Recording paused");
+    }
+
+    public void resumeRecording() {
+        synchronized (this) {
+            if (!paused) {
+                return;
+            }
+            long pauseUs = System.nanoTime() / 1000 - pauseStartUs;
+            pausedDurationUs += pauseUs;
+            waitingForSyncFrame = true;
+            paused = false;
+            Log.i(TAG, "Recording resumed after " + pauseUs / 1000 + "ms");
+        }
+        try {
+            requestSyncFrame();
+        } catch (Exception e) {
+            Log.w(TAG, "Can't request sync frame", e);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Receive levels of the first audio capture, must be set before recording is started.
+     * Listener is called on the capture thread.
+     */
+    public void setAudioLevelListener(AudioLevelMeter.Listener listener, long intervalMs) {
+        audioLevelListener = listener;
+        audioLevelIntervalMs = intervalMs;
+    }
+
+    /**
+     * Receive free space forecasts, must be set before recording is started.
+     * Listener is called on the recording thread.
+     */
+    public void setStorageListener(StorageMonitor.Listener listener) {
+        storageListener = listener;
+    }
+
+    private void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        videoEncoder.setParameters(params);
+    }
+
+    private void startMuxer() {
+        if (muxer != null) {
+            muxer.start();
+        }
+        muxerStarted = true;
+        recordingStartRealtimeMs = SystemClock.elapsedRealtime();
+        recordingStartCpuTimeMs = android.os.Process.getElapsedCpuTime();
+        setState(RecordingProcessState.RECORDING);
+    }
+
+    /**
+     * Store number of thread wakeups per second and process CPU time per recorded minute
+     * so that polling and event driven engines can be compared.
+     */
+    private void logEngineStats() {
+        long elapsedMs = SystemClock.elapsedRealtime() - recordingStartRealtimeMs;
+        if (!muxerStarted || elapsedMs <= 0) return;
+        long cpuTimeMs = android.os.Process.getElapsedCpuTime() - recordingStartCpuTimeMs;
+        long wakeups = writerWakeups;
+        if (eventDriven) {
+            wakeups += videoEngine.getWakeups();
+        } else {
+            wakeups += videoDrainer.getWakeups();
+        }
+        for (AudioEncoderTrack track : audioTracks) {
+            wakeups += track.getWakeups();
+        }
+        recordingInfo.wakeupsPerSecond = wakeups * 1000f / elapsedMs;
+        recordingInfo.cpuTimePerMinuteMs = cpuTimeMs * 60000f / elapsedMs;
+        Log.i(TAG, (eventDriven ? "Event driven" : "Polling") + " engine: "
+                + recordingInfo.wakeupsPerSecond + " wakeups/s, "
+                + recordingInfo.cpuTimePerMinuteMs + " ms CPU per minute");
+
+        recordingInfo.encodedFrames = videoFrames;
+        recordingInfo.captureFps = videoFrames * 1000f / elapsedMs;
+        if (timeLapse > 1) {
+            Log.i(TAG, "Time-lapse x" + timeLapse + ": encoded " + videoFrames + " frames at "
+                    + recordingInfo.captureFps + " fps, up to " + elapsedMs * frameRate / 1000 + " without decimation");
+        }
+        if (staticFrameFilter != null) {
+            recordingInfo.staticFramesDropped = staticFrameFilter.getDroppedFrames();
+            recordingInfo.staticBytesSaved = staticFrameFilter.getDroppedBytes();
+            Log.i(TAG, "Variable frame rate: dropped " + staticFrameFilter.getDroppedFrames() + " of "
+                    + staticFrameFilter.getFrames() + " frames, saved " + staticFrameFilter.getDroppedBytes() / 1024 + "kB of "
+                    + staticFrameFilter.getBytes() / 1024 + "kB, " + staticFrameFilter.getStaticReferenceFrames()
+                    + " static reference frames kept");
+        }
+    }
+
+    private void logAudioStats() {
+        for (int i = 0; i < audioTracks.size(); i++) {
+            audioTracks.get(i).logStats(i == 0);
+        }
+    }
+
+    /**
+     * Select the queue holding the next sample to be written so that tracks are interleaved by timestamp.
+     * A sample is held back for a short while if any other track has nothing queued yet.
+     * @param flush write any queued sample without waiting for the other track
+     * @return queue to take the sample from or null if nothing should be written now
+     */
+    private SampleQueue nextQueue(boolean flush) {
+        interleaveWait = false;
+        SampleQueue next = null;
+        long nextTimestampUs = 0;
+        boolean trackEmpty = false;
+        for (SampleQueue queue : queues) {
+            SampleQueue.Sample sample = queue.peek();
+            if (sample == null) {
+                trackEmpty = true;
+            } else if (next == null || sample.info.presentationTimeUs < nextTimestampUs) {
+                next = queue;
+                nextTimestampUs = sample.info.presentationTimeUs;
+            }
+        }
+        if (next == null || !trackEmpty) {
+            return next;
+        }
+        if (flush || next.size() > next.capacity() / 2
+                || System.nanoTime() - next.peek().queuedTimeNs > MAX_INTERLEAVE_DELAY_NS) {
+            return next;
+        }
+        interleaveWait = true;
+        return null;
+    }
+
+    private int writeSample(SampleQueue queue) {
+        SampleQueue.Sample sample = queue.peek();
+        int trackIndex = trackIndices[queue.getTrackType()];
+        int size = sample.info.size;
+        if (replayBuffer != null) {
+            replayBuffer.add(queue.getTrackType(), sample.data, sample.info);
+        } else {
+            muxer.writeSampleData(trackIndex, sample.data, sample.info);
+        }
+        if (bitrateController != null) {
+            boolean video = queue.getTrackType() == EncoderDrainer.TRACK_VIDEO;
+            long queueDelayNs = System.nanoTime() - sample.queuedTimeNs;
+            long writeLatencyNs = replayBuffer != null ? 0 : writeLatency.getLastNs();
+            boolean backlog = queue.size() > queue.capacity() / 2 || ioStats.isBackpressured();
+            int bitrate = bitrateController.onSampleWritten(video, size, queueDelayNs, writeLatencyNs, backlog);
+            if (bitrate > 0) {
+                setVideoBitrate(bitrate);
+            }
+        }
+        queue.release();
+        return size;
+    }
+
+    private void setVideoBitrate(int bitrate) {
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            videoEncoder.setParameters(params);
+        } catch (Exception e) {
+            Log.w(TAG, "Can't change video bitrate", e);
+        }
+    }
+
+    private MeasuredSampleSink createFileSink(File file) throws IOException {
+        if (fragmentedOutput) {
+            FileOutputStream stream = new FileOutputStream(file);
+            return new MeasuredSampleSink(createFragmentedWriter(stream.getChannel(), stream.getFD()), writeLatency);
+        }
+        return new MeasuredSampleSink(new MediaMuxerSink(file.getAbsolutePath()), writeLatency);
+    }
+
+    /**
+     * Create a new file in selected document directory.
+     */
+    private Uri createDocument(String fileName) throws IOException {
+        DocumentFile newFile = documentDir.createFile("video/mp4", fileName);
+        if (newFile == null) {
+            throw new IOException("Can't create document " + fileName);
+        }
+        return newFile.getUri();
+    }
+
+    /**
+     * Open document for writing. Returned descriptor must be closed after the sink writing into it is released.
+     */
+    private AssetFileDescriptor openDocument(Uri uri) throws IOException {
+        return context.getContentResolver().openAssetFileDescriptor(uri, "rwt");
+    }
+
+    private MeasuredSampleSink createDocumentSink(AssetFileDescriptor descriptor) throws IOException {
+        if (fragmentedOutput) {
+            FileChannel channel = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+            return new MeasuredSampleSink(createFragmentedWriter(channel, descriptor.getFileDescriptor()), writeLatency);
+        }
+        return new MeasuredSampleSink(new MediaMuxerHackSink(descriptor.getFileDescriptor()), writeLatency);
+    }
+
+    private FragmentedMp4Writer createFragmentedWriter(FileChannel channel, FileDescriptor fd) {
+        if (writeBehind) {
+            return new FragmentedMp4Writer(new WriteBehindChannel(channel, fd, syncPolicy, ioStats), fragmentDurationUs);
+        }
+        return new FragmentedMp4Writer(channel, fragmentDurationUs);
+    }
+
+    private void startStorageMonitor() {
+        storageMonitor = new StorageMonitor((videoBitrate + AUDIO_BITRATE * audioTracks.size()) / 8);
+        if (recordingInfo.useDocument && fileDescriptor != null) {
+            storageMonitor.setTarget(fileDescriptor.getFileDescriptor());
+        } else {
+            storageMonitor.setTarget(segmentDir);
+        }
+        storageMonitor.update(0, 0);
+        storageMonitor.setListener(storageListener);
+        Log.i(TAG, "Free space " + storageMonitor.getFreeBytes() / 1024 / 1024 + "MB, enough for "
+                + storageMonitor.getRemainingSeconds() + "s");
+    }
+
+    /**
+     * Apply low storage action when the forecast recording time left drops below {@value #LOW_STORAGE_SECONDS}s.
+     * Switching to another volume is done at the next sync frame, same as when starting a new segment.
+     * @return true if recording should be stopped
+     */
+    private boolean handleLowStorage() {
+        long remainingSeconds = storageMonitor.getRemainingSeconds();
+        if (remainingSeconds == StorageMonitor.UNKNOWN || remainingSeconds > LOW_STORAGE_SECONDS || volumeSwitchPending) {
+            return false;
+        }
+        if (!lowStorageReported) {
+            Log.w(TAG, "Low storage: " + storageMonitor.getFreeBytes() / 1024 + "kB free, " + remainingSeconds + "s left");
+            lowStorageReported = true;
+        }
+        switch (lowStorageAction) {
+            case NONE:
+                return false;
+            case NEXT_VOLUME:
+                if (!recordingInfo.useDocument) {
+                    long minBytes = StorageMonitor.RESERVE_BYTES + 4 * LOW_STORAGE_SECONDS * storageMonitor.getBytesPerSecond();
+                    File dir = StorageMonitor.findOtherVolume(context, segmentDir, minBytes);
+                    if (dir != null) {
+                        Log.i(TAG, "Continuing recording in " + dir);
+                        segmentDir = dir;
+                        storageMonitor.setTarget(dir);
+                        recordingInfo.volumeSwitches++;
+                        lowStorageReported = false;
+                        volumeSwitchPending = true;
+                        requestSyncFrame();
+                        syncFrameRequested = true;
+                        return false;
+                    }
+                }
+                Log.w(TAG, "No other volume available");
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Called before each video sample is written in segmented mode.
+     * A sync frame is requested ahead of the segment size or duration limit and
+     * the output is switched to a new file when the next sync frame is written.
+     */
+    private void updateSegment(MediaCodec.BufferInfo info) throws IOException {
+        if (segmentStartUs < 0) {
+            segmentStartUs = info.presentationTimeUs;
+            return;
+        }
+        if (syncFrameRequested) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                startNextSegment(info.presentationTimeUs);
+            }
+            return;
+        }
+        long leadSize = videoBitrate / 8 * SEGMENT_LEAD_US / 1000000;
+        if (segmentDataSize + leadSize >= segmentSize
+                || info.presentationTimeUs - segmentStartUs + SEGMENT_LEAD_US >= segmentDurationUs) {
+            requestSyncFrame();
+            syncFrameRequested = true;
+        }
+    }
+
+    private void startNextSegment(long startUs) throws IOException {
+        if (segmentFinalizer == null) {
+            // output switched to another volume without segmented output
+            segmentFinalizer = new SegmentFinalizer();
+        }
+        segmentFinalizer.finish(muxer, fileDescriptor);
+        muxer = null;
+        fileDescriptor = null;
+
+        segmentNumber++;
+        String name = outputFile.getName();
+        int extension = name.lastIndexOf('.');
+        String segmentName = name.substring(0, extension) + "_" + segmentNumber + name.substring(extension);
+        if (recordingInfo.useDocument) {
+            fileDescriptor = openDocument(createDocument(segmentName));
+            muxer = createDocumentSink(fileDescriptor);
+            if (storageMonitor != null) {
+                storageMonitor.setTarget(fileDescriptor.getFileDescriptor());
+            }
+        } else {
+            File segmentFile = new File(segmentDir, segmentName);
+            muxer = createFileSink(segmentFile);
+            recordingInfo.additionalSegments.add(segmentFile);
+        }
+        addTracks(muxer, trackIndices);
+        muxer.start();
+        Log.i(TAG, "Segment " + segmentNumber + " started after " + segmentDataSize + " bytes");
+
+        segmentStartUs = startUs;
+        segmentDataSize = 0;
+        syncFrameRequested = false;
+        volumeSwitchPending = false;
+    }
+
+    /**
+     * Buffer is sized for the replay duration plus one I-frame interval at configured bitrates.
+     */
+    private void setupReplayBuffer() {
+        long seconds = replayDuration + I_FRAME_INTERVAL;
+        long size = (videoBitrate + AUDIO_BITRATE * audioTracks.size()) / 8 * seconds * 5 / 4;
+        int maxSamples = Integer.highestOneBit((int) ((frameRate + 50) * seconds * 2)) * 2;
+        replayBuffer = new ReplayBuffer((int) Math.min(size, MAX_REPLAY_BUFFER_SIZE), maxSamples, replayDuration * 1000000l);
+        Log.i(TAG, "Replay buffer " + size / 1024 + "kB for " + replayDuration + "s");
+    }
+
+    /**
+     * Save the content of the replay buffer to a new file without interrupting the capture.
+     */
+    public void saveReplay() {
+        if (!replayMode) {
+            Log.w(TAG, "Replay buffer is not enabled");
+            return;
+        }
+        replayRequested = true;
+        LockSupport.unpark(recordingThread);
+    }
+
+    private void startReplaySaving() {
+        if (!replayBuffer.pin()) {
+            Log.w(TAG, "Replay not available or already being saved");
+            return;
+        }
+        final String fileName = new SimpleDateFormat(context.getString(R.string.file_name_format)).format(new Date());
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                saveReplayBuffer(fileName);
+            }
+        }, "replaySaver");
+        replayThread.start();
+    }
+
+    private void saveReplayBuffer(String fileName) {
+        MeasuredSampleSink sink = null;
+        AssetFileDescriptor descriptor = null;
+        File file = null;
+        boolean saved = false;
+        try {
+            if (documentDir != null) {
+                // descriptor is local, fileDescriptor and recordingInfo belong to the recording thread
+                descriptor = openDocument(createDocument(fileName));
+                sink = createDocumentSink(descriptor);
             } else {
-                muxer.start();
+                file = new File(outputFile.getParentFile(), fileName);
+                sink = createFileSink(file);
+            }
+            int[] indices = newTrackIndices();
+            addTracks(sink, indices);
+            sink.start();
+            replayBuffer.writeTo(sink, indices);
+            sink.stop();
+            saved = true;
+            Log.i(TAG, "Replay saved " + fileName);
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving replay", e);
+            EasyTracker.getTracker().sendException("replay", e, false);
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.release();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error releasing replay sink", e);
+                }
+            }
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing replay file descriptor", e);
+                }
             }
-            muxerStarted = true;
-            setState(RecordingProcessState.RECORDING);
         }
+        if (saved && file != null) {
+            MediaScannerConnection.scanFile(context, new String[]{file.getAbsolutePath()}, new String[]{"video/mp4"}, null);
+        }
+        final String message = saved ? context.getString(R.string.replay_saved_toast, fileName)
+                : context.getString(R.string.replay_error_toast);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void stopDrainers() {
+        if (videoDrainer != null) {
+            videoDrainer.stop();
+        }
+        for (AudioEncoderTrack track : audioTracks) {
+            track.stopDrainer();
+        }
+        if (videoDrainer != null) {
+            videoDrainer.join();
+        }
+        for (AudioEncoderTrack track : audioTracks) {
+            track.joinDrainer();
+        }
+    }
+
+    private static int[] newTrackIndices() {
+        int[] indices = new int[EncoderDrainer.TRACK_COUNT];
+        Arrays.fill(indices, -1);
+        return indices;
+    }
+
+    /**
+     * Add video and all audio tracks to the sink.
+     * @param indices filled with sink track indices by track type
+     */
+    private void addTracks(SampleSink sink, int[] indices) {
+        indices[EncoderDrainer.TRACK_VIDEO] = sink.addTrack(videoFormat);
+        for (AudioEncoderTrack track : audioTracks) {
+            indices[track.trackType] = sink.addTrack(track.format);
+        }
+    }
+
+    private static void rethrow(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        }
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        throw new RuntimeException(throwable);
     }
 
     @Override
@@ -359,19 +1462,21 @@ public class ProjectionThread implements Runnable {
 
             if (hasAudio) {
                 try {
-                    setupAudioCodec();
+                    setupAudioRecords();
                 } catch (Exception e) {
-                    Log.e(TAG, "audio error", e);
-                    setError(RecordingProcessState.AUDIO_CONFIG_ERROR,  505);
+                    Log.e(TAG, "AudioRecord error", e);
+                    setError(RecordingProcessState.AUDIO_CONFIG_ERROR, 507);
                     EasyTracker.getTracker().sendException("projection", e, false);
                     return;
                 }
 
                 try {
-                    setupAudioRecord();
+                    for (AudioEncoderTrack track : audioTracks) {
+                        track.setupEncoder();
+                    }
                 } catch (Exception e) {
-                    Log.e(TAG, "AudioRecord error", e);
-                    setError(RecordingProcessState.AUDIO_CONFIG_ERROR, 507);
+                    Log.e(TAG, "audio error", e);
+                    setError(RecordingProcessState.AUDIO_CONFIG_ERROR,  505);
                     EasyTracker.getTracker().sendException("projection", e, false);
                     return;
                 }
@@ -379,21 +1484,34 @@ public class ProjectionThread implements Runnable {
 
             if (documentDirUri != null) {
                 try {
-                    DocumentFile documentDir = DocumentFile.fromTreeUri(context, documentDirUri);
-
-                    // Create a new file and write into it
-                    DocumentFile newFile = documentDir.createFile("video/mp4", outputFile.getName());
-                    recordingInfo.documentUri = newFile.getUri();
-                    fileDescriptor = context.getContentResolver().openAssetFileDescriptor(newFile.getUri(), "rwt");
-                    muxerHack = new MediaMuxerHack(fileDescriptor.getFileDescriptor(),
-                            MediaMuxerHack.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    documentDir = DocumentFile.fromTreeUri(context, documentDirUri);
+                } catch (Exception e) {
+                    Log.e(TAG, "Document dir error", e);
+                    EasyTracker.getTracker().sendException("projection", e, false);
+                }
+            }
+
+            if (replayMode) {
+                try {
+                    setupReplayBuffer();
+                } catch (Throwable e) {
+                    Log.e(TAG, "Replay buffer error", e);
+                    setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 233);
+                    EasyTracker.getTracker().sendException("projection", e, false);
+                    return;
+                }
+            } else if (documentDir != null) {
+                try {
+                    recordingInfo.documentUri = createDocument(outputFile.getName());
+                    fileDescriptor = openDocument(recordingInfo.documentUri);
+                    muxer = createDocumentSink(fileDescriptor);
                 } catch (Exception e) {
                     Log.e(TAG, "MuxerHack error", e);
                     EasyTracker.getTracker().sendException("projection", e, false);
                 }
             }
 
-            if (muxerHack == null) {
+            if (!replayMode && muxer == null) {
                 try {
                     if (recordingInfo.useDocument) {
                         Log.w(TAG, "Rollback to standard Output directory");
@@ -401,8 +1519,7 @@ public class ProjectionThread implements Runnable {
                         recordingInfo.documentUri = null;
                         recordingInfo.file = outputFile;
                     }
-                    muxer = new MediaMuxer(outputFile.getAbsolutePath(),
-                            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    muxer = createFileSink(outputFile);
                 } catch (Exception e) {
                     Log.e(TAG, "Muxer error", e);
                     setError(RecordingProcessState.OUTPUT_FILE_ERROR, 201);
@@ -411,134 +1528,108 @@ public class ProjectionThread implements Runnable {
                 }
             }
 
-            if (hasAudio) {
-                startAudioRecord();
+            if (!replayMode) {
+                startStorageMonitor();
+                if (storageMonitor.getRemainingSeconds() == 0) {
+                    Log.e(TAG, "Not enough free space " + storageMonitor.getFreeBytes());
+                    muxer.release();
+                    muxer = null;
+                    if (!recordingInfo.useDocument && !outputFile.delete()) {
+                        Log.w(TAG, "Can't delete " + outputFile);
+                    }
+                    setError(RecordingProcessState.OUTPUT_FILE_ERROR, 235);
+                    return;
+                }
+            }
+
+            queues = new SampleQueue[1 + audioTracks.size()];
+            queues[0] = videoDrainer.getQueue();
+            for (int i = 0; i < audioTracks.size(); i++) {
+                queues[i + 1] = audioTracks.get(i).getQueue();
             }
 
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            long lastAudioTimestampUs = -1;
+            if (!eventDriven) {
+                videoDrainer.start();
+            }
+            for (AudioEncoderTrack track : audioTracks) {
+                track.start();
+            }
 
-            long totalDataSize = 0;
+            if (segmentedOutput) {
+                segmentFinalizer = new SegmentFinalizer();
+            }
 
             while (!stopped && !asyncError) {
+                writerWakeups++;
 
-                if (totalDataSize > 4000000000l) {
-                    if (recordingInfo.exitValue == -1) {
-                        recordingInfo.exitValue = 229;
-                        postponedState = RecordingProcessState.MAX_FILE_SIZE_REACHED;
+                if (!muxerStarted) {
+                    if (videoFormat == null || !audioFormatsReceived()) {
+                        LockSupport.parkNanos(this, WRITER_PARK_NS);
+                        continue;
                     }
-                    break;
-                }
-
-                int encoderStatus;
-                errorCodeHack = 504;
-
-                if (hasAudio) {
-                    errorCodeHack = 516;
-                    encoderStatus = audioEncoder.dequeueOutputBuffer(bufferInfo, 0);
-                    //noinspection StatementWithEmptyBody
-                    if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        // no input frames... continue to video
-                    } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        if (audioTrackIndex > 0) {
-                            setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 508);
-                            break;
-                        }
+                    if (muxer != null) {
+                        errorCodeHack = 523;
+                        trackIndices[EncoderDrainer.TRACK_VIDEO] = muxer.addTrack(videoFormat);
                         errorCodeHack = 517;
-                        if (muxerHack != null) {
-                            audioTrackIndex = muxerHack.addTrack(audioEncoder.getOutputFormat());
-                        } else {
-                            audioTrackIndex = muxer.addTrack(audioEncoder.getOutputFormat());
-                        }
-                        errorCodeHack = 518;
-                        startMuxerIfSetUp();
-                    } else if (encoderStatus < 0) {
-                        Log.w(TAG, "unexpected result from audio encoder.dequeueOutputBuffer: " + encoderStatus);
-                    } else {
-
-                        errorCodeHack = 519;
-                        ByteBuffer encodedData = audioEncoder.getOutputBuffer(encoderStatus);
-                        if (encodedData == null) {
-                            setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 509);
-                            break;
-                        }
-
-                        if (bufferInfo.presentationTimeUs > lastAudioTimestampUs
-                                && muxerStarted && bufferInfo.size != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                            lastAudioTimestampUs = bufferInfo.presentationTimeUs;
-                            errorCodeHack = 520;
-                            if (muxerHack != null) {
-                                muxerHack.writeSampleData(audioTrackIndex, encodedData, bufferInfo);
-                            } else {
-                                muxer.writeSampleData(audioTrackIndex, encodedData, bufferInfo);
-                            }
-                            totalDataSize += bufferInfo.size;
+                        for (AudioEncoderTrack track : audioTracks) {
+                            trackIndices[track.trackType] = muxer.addTrack(track.format);
                         }
+                    }
+                    errorCodeHack = 524;
+                    startMuxer();
+                    continue;
+                }
 
-                        errorCodeHack = 521;
-                        audioEncoder.releaseOutputBuffer(encoderStatus, false);
+                if (replayRequested) {
+                    replayRequested = false;
+                    startReplaySaving();
+                }
 
-                        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 510);
-                            break;
-                        }
+                if (!replayMode && segmentDataSize > MAX_FILE_SIZE) {
+                    if (recordingInfo.exitValue == -1) {
+                        recordingInfo.exitValue = 229;
+                        postponedState = RecordingProcessState.MAX_FILE_SIZE_REACHED;
                     }
+                    break;
                 }
 
-                if (hasAudio && videoTrackIndex >= 0 && audioTrackIndex < 0)
-                    continue; // wait for audio config before processing any video data frames
+                SampleQueue queue = nextQueue(false);
+                if (queue == null) {
+                    LockSupport.parkNanos(this, interleaveWait ? INTERLEAVE_PARK_NS : WRITER_PARK_NS);
+                    continue;
+                }
+                if ((segmentedOutput || syncFrameRequested) && queue.getTrackType() == EncoderDrainer.TRACK_VIDEO) {
+                    errorCodeHack = 231;
+                    updateSegment(queue.peek().info);
+                }
+                errorCodeHack = queue.getTrackType() == EncoderDrainer.TRACK_VIDEO ? 526 : 520;
+                int size = writeSample(queue);
+                segmentDataSize += size;
+                outputDataSize += size;
 
-                errorCodeHack = 522;
-                encoderStatus = videoEncoder.dequeueOutputBuffer(bufferInfo, 10000);
-                //noinspection StatementWithEmptyBody
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no input frames... go back to audio
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (videoTrackIndex > 0) {
-                        setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 502);
-                        break;
-                    }
-                    errorCodeHack = 523;
-                    if (muxerHack != null) {
-                        videoTrackIndex = muxerHack.addTrack(videoEncoder.getOutputFormat());
-                    } else {
-                        videoTrackIndex = muxer.addTrack(videoEncoder.getOutputFormat());
-                    }
-                    errorCodeHack = 524;
-                    startMuxerIfSetUp();
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-                } else {
-
-                    errorCodeHack = 525;
-                    ByteBuffer encodedData = videoEncoder.getOutputBuffer(encoderStatus);
-                    if (encodedData == null) {
-                        setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 503);
-                        break;
+                if (storageMonitor != null && storageMonitor.update(outputDataSize, ioStats.getPreallocatedBytes())
+                        && handleLowStorage()) {
+                    if (recordingInfo.exitValue == -1) {
+                        recordingInfo.exitValue = 234;
+                        postponedState = RecordingProcessState.STORAGE_FULL;
                     }
+                    break;
+                }
+            }
 
-                    if (bufferInfo.size != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                        //Bundle params = new Bundle(1);
-                        //params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-                        //videoEncoder.setParameters(params);
-                        bufferInfo.presentationTimeUs = getPresentationTimeUs();
-                        //Log.v(TAG, "video " + bufferInfo.presentationTimeUs / 1000 + " " + bufferInfo.size + "    " + (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME));
-                        errorCodeHack = 526;
-                        if (muxerHack != null) {
-                            muxerHack.writeSampleData(videoTrackIndex, encodedData, bufferInfo);
-                        } else {
-                            muxer.writeSampleData(videoTrackIndex, encodedData, bufferInfo);
-                        }
-                        totalDataSize += bufferInfo.size;
-                    }
+            stopDrainers();
 
-                    errorCodeHack = 527;
-                    videoEncoder.releaseOutputBuffer(encoderStatus, false);
+            if (drainError != null) {
+                errorCodeHack = drainErrorCode;
+                rethrow(drainError);
+            }
 
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 503);
-                        break;
-                    }
+            if (muxerStarted && !asyncError) {
+                // write samples which were already encoded when recording was stopped
+                SampleQueue queue;
+                while ((queue = nextQueue(true)) != null) {
+                    errorCodeHack = queue.getTrackType() == EncoderDrainer.TRACK_VIDEO ? 526 : 520;
+                    writeSample(queue);
                 }
             }
         } catch (Throwable throwable) {
@@ -553,13 +1644,23 @@ public class ProjectionThread implements Runnable {
                 setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, errorCodeHack);
             }
         } finally {
-            if (muxer != null || muxerHack != null) {
+            stopDrainers();
+            logEngineStats();
+
+            if (bitrateController != null) {
+                recordingInfo.bitrateChanges = bitrateController.getChanges();
+                recordingInfo.minVideoBitrate = bitrateController.getMinBitrate();
+                recordingInfo.bitrateDecisions = bitrateController.getDecisions();
+                Log.i(TAG, "Video bitrate changed " + recordingInfo.bitrateChanges + " times, min " + recordingInfo.minVideoBitrate);
+            }
+
+            if (muxer != null) {
+                Log.i(TAG, muxer + " write latency " + writeLatency);
+                recordingInfo.sampleSink = muxer.toString();
+                recordingInfo.writeLatencyAvgUs = (int) (writeLatency.getAverageNs() / 1000);
+                recordingInfo.writeLatencyP99Us = (int) writeLatency.getPercentileUs(99);
                 try {
-                    if (muxerHack != null) {
-                        muxerHack.stop();
-                    } else {
-                        muxer.stop();
-                    }
+                    muxer.stop();
                 } catch (Exception e) {
                     Log.w(TAG, "Error stopping muxer", e);
                     setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 530);
@@ -573,19 +1674,43 @@ public class ProjectionThread implements Runnable {
                 }
 
                 try {
-                    if (muxerHack != null) {
-                        muxerHack.release();
-                    } else {
-                        muxer.release();
-                    }
+                    muxer.release();
                 } catch (Exception e) {
                     Log.w(TAG, "Error releasing muxer", e);
                     EasyTracker.getTracker().sendException("projection", e, false);
                 }
                 muxer = null;
-                muxerHack = null;
             }
 
+            if (replayThread != null) {
+                try {
+                    replayThread.join();
+                } catch (InterruptedException ignore) {
+                }
+                replayThread = null;
+            }
+
+            if (segmentFinalizer != null) {
+                segmentFinalizer.shutdown();
+                if (segmentFinalizer.hasFailed()) {
+                    setError(RecordingProcessState.UNKNOWN_RECORDING_ERROR, 232);
+                }
+                segmentFinalizer = null;
+            }
+
+            if (storageMonitor != null) {
+                recordingInfo.minFreeBytes = storageMonitor.getMinFreeBytes();
+            }
+
+            if (writeBehind && ioStats.getWrites() > 0) {
+                Log.i(TAG, "Write-behind " + ioStats);
+                recordingInfo.ioWriteP50Us = (int) ioStats.getWritePercentileUs(50);
+                recordingInfo.ioWriteP99Us = (int) ioStats.getWritePercentileUs(99);
+                recordingInfo.ioMaxQueueDepth = ioStats.getMaxQueueDepth();
+                recordingInfo.ioStalls = ioStats.getStalls();
+                recordingInfo.ioStallMs = (int) (ioStats.getStallNs() / 1000000);
+                recordingInfo.ioSyncMs = (int) (ioStats.getSyncNs() / 1000000);
+            }
 
             if (virtualDisplay != null) {
                 try {
@@ -616,24 +1741,18 @@ public class ProjectionThread implements Runnable {
                 videoEncoder = null;
             }
 
-            if (audioRecordThread != null) {
-                audioStopped = true;
-
-                try {
-                    audioRecordThread.join();
-                } catch (InterruptedException ignore) {
-                }
+            audioStopped = true;
+            for (AudioEncoderTrack track : audioTracks) {
+                track.stopCapture();
+            }
+            logAudioStats();
+            for (AudioEncoderTrack track : audioTracks) {
+                track.releaseEncoder();
             }
 
-            if (audioEncoder != null) {
-                try {
-                    audioEncoder.stop();
-                    audioEncoder.release();
-                } catch (Exception e) {
-                    Log.w(TAG, "Error stopping audio encoder", e);
-                    EasyTracker.getTracker().sendException("projection", e, false);
-                }
-                audioEncoder = null;
+            if (videoEngine != null) {
+                videoEngine.quit();
+                videoEngine = null;
             }
 
             if (fileDescriptor != null) {
@@ -653,7 +1772,7 @@ public class ProjectionThread implements Runnable {
     }
 
     private void lockPreventingHack() {
-        int pid = Utils.findProcessByCommand("/system/bin/mediaserver");
+        int pid = ProcessWatcher.getInstance().findProcess("/system/bin/mediaserver");
         if (mediaServerPid > 0 && pid > 0 && mediaServerPid != pid) {
             Log.w(TAG, "ms restart detected " + mediaServerPid + " " + pid);
             AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
@@ -671,11 +1790,13 @@ public class ProjectionThread implements Runnable {
     public void stopRecording() {
         setState(RecordingProcessState.STOPPING);
         stopped = true;
+        LockSupport.unpark(recordingThread);
     }
 
     public void destroy() {
         destroyed = true;
         stopped = true;
+        LockSupport.unpark(recordingThread);
     }
 
     private void setState(RecordingProcessState state) {
@@ -714,8 +1835,11 @@ public class ProjectionThread implements Runnable {
         if (recordingThread != null) {
             recordingThread.interrupt();
         }
-        if (audioRecordThread != null) {
-            audioRecordThread.interrupt();
+        if (videoDrainer != null) {
+            videoDrainer.interrupt();
+        }
+        for (AudioEncoderTrack track : audioTracks) {
+            track.interrupt();
         }
     }
 
@@ -30,6 +30,9 @@ public class ProjectionThreadRunner extends AbstractRecordingProcess implements
     };
     private File file;
     private Handler handler;
+    private AudioLevelMeter.Listener audioLevelListener;
+    private long audioLevelIntervalMs;
+    private StorageMonitor.Listener storageListener;
 
     public ProjectionThreadRunner(Context context) {
         super(TAG, 3000, 3000);
@@ -78,9 +81,59 @@ public class ProjectionThreadRunner extends AbstractRecordingProcess implements
             return;
         }
         currentThread = new ProjectionThread(mediaProjection, context, this);
+        if (audioLevelListener != null) {
+            currentThread.setAudioLevelListener(audioLevelListener, audioLevelIntervalMs);
+        }
+        currentThread.setStorageListener(storageListener);
         currentThread.startRecording(file);
     }
 
+    public void pause() {
+        if (currentThread == null) {
+            Log.e(TAG, "No active thread to pause!");
+            return;
+        }
+        currentThread.pauseRecording();
+    }
+
+    public void resume() {
+        if (currentThread == null) {
+            Log.e(TAG, "No active thread to resume!");
+            return;
+        }
+        currentThread.resumeRecording();
+    }
+
+    public boolean isPaused() {
+        return currentThread != null && currentThread.isPaused();
+    }
+
+    /**
+     * Receive audio levels of recordings started after this call. Listener is called on the audio capture thread.
+     */
+    public void setAudioLevelListener(AudioLevelMeter.Listener listener, long intervalMs) {
+        audioLevelListener = listener;
+        audioLevelIntervalMs = intervalMs;
+    }
+
+    /**
+     * Receive free space forecasts of recordings started after this call. Listener is called on the recording thread.
+     */
+    public void setStorageListener(StorageMonitor.Listener listener) {
+        storageListener = listener;
+    }
+
+    /**
+     * Save the last seconds of the current recording in replay buffer mode.
+     */
+    public void saveReplay() {
+        if (currentThread == null) {
+            Log.e(TAG, "No active thread to save replay!");
+            return;
+        }
+        currentThread.saveReplay();
+    }
+
     public void stop() {
         if (currentThread == null) {
             Log.e(TAG, "No active thread to stop!");
@@ -67,6 +67,10 @@ public class RecorderService extends Service implements IRecorderService, AudioD
     public static final String NOTIFICATION_ACTION = "scr.intent.action.NOTIFICATION";
     public static final String LOUNCHER_ACTION = "scr.intent.action.LOUNCHER";
     public static final String ENABLE_ROOT_ACTION = "scr.intent.action.ENABLE_ROOT_ACTION";
+    public static final String BENCHMARK_MUXER_ACTION = "scr.intent.action.BENCHMARK_MUXER";
+    public static final String SAVE_REPLAY_ACTION = "scr.intent.action.SAVE_REPLAY";
+    public static final String PAUSE_ACTION = "scr.intent.action.PAUSE";
+    public static final String RESUME_ACTION = "scr.intent.action.RESUME";
 
     public static final String SET_PROJECTION_ACTION = "scr.intent.action.SET_PROJECTION";
     public static final String PROJECTION_DATA_EXTRA = "projection_data";
@@ -77,6 +81,8 @@ public class RecorderService extends Service implements IRecorderService, AudioD
     private static final String SHUT_DOWN_CORRECTLY = "SHUT_DOWN_CORRECTLY";
     private static final int FOREGROUND_NOTIFICATION_ID = 1;
     private static final int SAVED_NOTIFICATION_ID = 2;
+    private static final long AUDIO_LEVEL_INTERVAL_MS = 1000;
+    private static final long LOW_STORAGE_WARNING_MINUTES = 10;
 
     // Licensing
     public static final String VIDEO_REPAIR_PACKAGE = "com.smamolot.mp4fix";
@@ -102,6 +108,48 @@ public class RecorderService extends Service implements IRecorderService, AudioD
     private boolean settingsDisplayed = false;
     private boolean displayShutDownError = false;
     private Toast cantStartToast;
+    private volatile float audioLevelDb = AudioLevelMeter.MIN_LEVEL_DB;
+    private volatile boolean audioSilent;
+    private volatile boolean audioLevelKnown;
+    private volatile long storageMinutesLeft = StorageMonitor.UNKNOWN;
+
+    private final Runnable updateNotificationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (state == RecorderServiceState.RECORDING && !destroyed) {
+                startForeground();
+            }
+        }
+    };
+
+    /**
+     * Show audio level in the notification, called on the audio capture thread once per second.
+     */
+    private final AudioLevelMeter.Listener audioLevelListener = new AudioLevelMeter.Listener() {
+        @Override
+        public void onAudioLevel(String source, float rmsDb, float peakDb, boolean silent) {
+            audioLevelDb = rmsDb;
+            audioSilent = silent;
+            audioLevelKnown = true;
+            handler.post(updateNotificationRunnable);
+        }
+    };
+
+    /**
+     * Show remaining storage in the notification once it's enough for less than {@value #LOW_STORAGE_WARNING_MINUTES}
+     * minutes, called on the recording thread once per second.
+     */
+    private final StorageMonitor.Listener storageListener = new StorageMonitor.Listener() {
+        @Override
+        public void onStorageForecast(long freeBytes, long remainingSeconds) {
+            long minutes = remainingSeconds == StorageMonitor.UNKNOWN || remainingSeconds / 60 >= LOW_STORAGE_WARNING_MINUTES
+                    ? StorageMonitor.UNKNOWN : remainingSeconds / 60;
+            if (minutes != storageMinutesLeft) {
+                storageMinutesLeft = minutes;
+                handler.post(updateNotificationRunnable);
+            }
+        }
+    };
 
     // Preferences
     private boolean stopHelpDisplayed;
@@ -136,6 +184,8 @@ public class RecorderService extends Service implements IRecorderService, AudioD
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             projectionThreadRunner = new ProjectionThreadRunner(this);
             projectionThreadRunner.addObserver(this);
+            ((ProjectionThreadRunner) projectionThreadRunner).setAudioLevelListener(audioLevelListener, AUDIO_LEVEL_INTERVAL_MS);
+            ((ProjectionThreadRunner) projectionThreadRunner).setStorageListener(storageListener);
         }
 
         recorderOverlay.animateShow();
@@ -204,6 +254,8 @@ public class RecorderService extends Service implements IRecorderService, AudioD
             screenOffReceiver.register();
         }
         audioDriver.startRecording();
+        audioLevelKnown = false;
+        storageMinutesLeft = StorageMonitor.UNKNOWN;
         if (useProjection()) {
             projectionThreadRunner.start(getOutputFile(), getRotation());
         } else {
@@ -275,6 +327,32 @@ public class RecorderService extends Service implements IRecorderService, AudioD
         cameraOverlay.setTouchable(true);
     }
 
+    /**
+     * Pause is only supported in no-root mode, recording continues in the same file when resumed.
+     */
+    @Override
+    public void pauseRecording() {
+        if (state != RecorderServiceState.RECORDING || !useProjection()) {
+            return;
+        }
+        ((ProjectionThreadRunner) projectionThreadRunner).pause();
+        startForeground();
+    }
+
+    @Override
+    public void resumeRecording() {
+        if (state != RecorderServiceState.RECORDING || !useProjection()) {
+            return;
+        }
+        ((ProjectionThreadRunner) projectionThreadRunner).resume();
+        startForeground();
+    }
+
+    private boolean isPaused() {
+        return state == RecorderServiceState.RECORDING && useProjection()
+                && ((ProjectionThreadRunner) projectionThreadRunner).isPaused();
+    }
+
     private void playVideo(Uri uri) {
         recorderOverlay.hide();
         cameraOverlay.hide();
@@ -377,6 +455,9 @@ public class RecorderService extends Service implements IRecorderService, AudioD
             case MAX_FILE_SIZE_REACHED:
                 maxFileSizeReached(recordingInfo);
                 break;
+            case STORAGE_FULL:
+                storageFull(recordingInfo);
+                break;
             case MICROPHONE_BUSY_ERROR:
                 reinitialize(); // reinitialize so that we're ready to start another recording
                 //TODO: make sure that recording saved notification is not displayed in this case
@@ -472,7 +553,10 @@ public class RecorderService extends Service implements IRecorderService, AudioD
     }
 
     private void recordingFinished(final RecordingInfo recordingInfo) {
-        scanOutputAndNotify(R.string.recording_saved_toast, recordingInfo);
+        if (!recordingInfo.replayBuffer) {
+            // in replay buffer mode replays are saved during recording and nothing is saved when it's stopped
+            scanOutputAndNotify(R.string.recording_saved_toast, recordingInfo);
+        }
         reportRecordingStats(recordingInfo);
         reinitializeView();
         reinitialize();
@@ -502,7 +586,11 @@ public class RecorderService extends Service implements IRecorderService, AudioD
         String message = String.format(getString(toastId), recordingInfo.file.getName());
         Toast.makeText(RecorderService.this, message, Toast.LENGTH_LONG).show();
         Uri uri = recordingInfo.useDocument ? recordingInfo.documentUri : scanFile(recordingInfo.file);
-        if (recordingInfo.formatValidity == RecordingInfo.FormatValidity.INTERRUPTED) {
+        for (File segment : recordingInfo.additionalSegments) {
+            scanFile(segment);
+        }
+        // fragmented MP4 is playable up to the last complete fragment and can't be repaired by mp4fix
+        if (recordingInfo.formatValidity == RecordingInfo.FormatValidity.INTERRUPTED && !recordingInfo.fragmented) {
             notificationInterrupted(uri, recordingInfo.file.getName());
         } else {
             notificationSaved(uri, recordingInfo.file.getName());
@@ -633,6 +721,22 @@ public class RecorderService extends Service implements IRecorderService, AudioD
         PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_ONE_SHOT);
         builder.setContentIntent(pendingIntent);
 
+        if (state == RecorderServiceState.RECORDING && useProjection()) {
+            boolean paused = isPaused();
+            Intent pauseIntent = new Intent(this, RecorderService.class);
+            pauseIntent.setAction(paused ? RESUME_ACTION : PAUSE_ACTION);
+            PendingIntent pausePendingIntent = PendingIntent.getService(this, 0, pauseIntent, 0);
+            builder.addAction(paused ? R.drawable.ic_start : R.drawable.ic_notification,
+                    getString(paused ? R.string.notification_action_resume : R.string.notification_action_pause), pausePendingIntent);
+        }
+
+        if (state == RecorderServiceState.RECORDING && useProjection() && Settings.getInstance().getReplayBuffer()) {
+            Intent replayIntent = new Intent(this, RecorderService.class);
+            replayIntent.setAction(SAVE_REPLAY_ACTION);
+            PendingIntent replayPendingIntent = PendingIntent.getService(this, 0, replayIntent, 0);
+            builder.addAction(R.drawable.ic_notification_saved, getString(R.string.notification_action_save_replay), replayPendingIntent);
+        }
+
         startForeground(FOREGROUND_NOTIFICATION_ID, builder.build());
     }
 
@@ -651,6 +755,18 @@ public class RecorderService extends Service implements IRecorderService, AudioD
             case STARTING:
                 return getString(R.string.notification_status_starting);
             case RECORDING:
+                if (isPaused()) {
+                    return getString(R.string.notification_status_paused);
+                }
+                if (storageMinutesLeft != StorageMonitor.UNKNOWN) {
+                    return getString(R.string.notification_status_recording_storage, storageMinutesLeft);
+                }
+                if (audioLevelKnown && useProjection()) {
+                    if (audioSilent) {
+                        return getString(R.string.notification_status_recording_silence);
+                    }
+                    return getString(R.string.notification_status_recording_level, Math.round(audioLevelDb));
+                }
                 return getString(R.string.notification_status_recording);
             case STOPPING:
                 return getString(R.string.notification_status_stopping);
@@ -687,6 +803,13 @@ public class RecorderService extends Service implements IRecorderService, AudioD
         reinitialize();
     }
 
+    private void storageFull(final RecordingInfo recordingInfo) {
+        scanOutputAndNotify(R.string.storage_full_toast, recordingInfo);
+        reportRecordingStats(recordingInfo);
+        reinitializeView();
+        reinitialize();
+    }
+
     @Override
     public void showSettings() {
         handler.post(new Runnable() {
@@ -753,6 +876,18 @@ public class RecorderService extends Service implements IRecorderService, AudioD
             }
         } else if (ENABLE_ROOT_ACTION.equals(action)) {
             reinitialize();
+        } else if (BENCHMARK_MUXER_ACTION.equals(action)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                new MuxerBenchmarkAsyncTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        } else if (PAUSE_ACTION.equals(action)) {
+            pauseRecording();
+        } else if (RESUME_ACTION.equals(action)) {
+            resumeRecording();
+        } else if (SAVE_REPLAY_ACTION.equals(action)) {
+            if (state == RecorderServiceState.RECORDING && useProjection()) {
+                ((ProjectionThreadRunner) projectionThreadRunner).saveReplay();
+            }
         } else if (state == RecorderServiceState.RECORDING || state == RecorderServiceState.STARTING) {
             stopRecording();
             EasyTracker.getTracker().sendEvent(ACTION, STOP, STOP_ICON, null);
@@ -810,6 +945,7 @@ public class RecorderService extends Service implements IRecorderService, AudioD
             audioDriver.uninstall();
         }
         audioDriver.removeInstallListener(this);
+        RootShellPool.closeAll();
         destroyed = true;
         markShutDownCorrectly();
         runningInstances--;
@@ -3,6 +3,8 @@ package com.iwobanas.screenrecorder;
 import android.net.Uri;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RecordingInfo {
     public File file;
@@ -11,12 +13,59 @@ public class RecordingInfo {
     public int size = 0;
     public int time = 0;
     public float fps = -1f;
+    public int timeLapse = 1;
+    public float captureFps = -1f;
+    public int encodedFrames = -1;
+    public boolean encodedFramesEstimated;
     public int rotateView;
     public int verticalInput;
     public int adjustedRotation;
     public FormatValidity formatValidity = FormatValidity.UNKNOWN;
+    public boolean fragmented;
     public boolean useDocument;
     public Uri documentUri;
+    public float wakeupsPerSecond = -1f;
+    public float cpuTimePerMinuteMs = -1f;
+    public String sampleSink;
+    public int writeLatencyAvgUs = -1;
+    public int writeLatencyP99Us = -1;
+    public int ioWriteP50Us = -1;
+    public int ioWriteP99Us = -1;
+    public int ioMaxQueueDepth = 0;
+    public int ioStalls = 0;
+    public int ioStallMs = 0;
+    public int ioSyncMs = 0;
+    public long minFreeBytes = -1;
+    public int volumeSwitches = 0;
+    public int audioOverruns = -1;
+    public int audioOverrunMs = -1;
+    public int audioUnderruns = -1;
+    public float audioDriftPpm;
+    public int audioClockCorrectionUs;
+    public int avOffsetUs;
+    public int audioInputLatencyUs = -1;
+    public int audioTracks = 0;
+    public int mixerSources = 0;
+    public int mixerMaxBlockUs = 0;
+    public int mixerBudgetOverruns = 0;
+    public int mixerLimitedMs = 0;
+    public int mixerStarvedMs = 0;
+    public float audioRmsDb = AudioLevelMeter.MIN_LEVEL_DB;
+    public float audioPeakDb = AudioLevelMeter.MIN_LEVEL_DB;
+    public long audioClippedSamples = 0;
+    public long audioSilenceMs = 0;
+    public long audioLongestSilenceMs = 0;
+    public int audioSilentRuns = 0;
+    public long silentFramesReplaced = 0;
+    public long silenceBytesSaved = 0;
+    public boolean variableFrameRate = false;
+    public long staticFramesDropped = 0;
+    public long staticBytesSaved = 0;
+    public List<File> additionalSegments = new ArrayList<File>();
+    public boolean replayBuffer;
+    public int bitrateChanges = 0;
+    public int minVideoBitrate = -1;
+    public List<String> bitrateDecisions = new ArrayList<String>();
 
     public static enum FormatValidity {
         VALID("V"),
@@ -12,6 +12,7 @@ public enum RecordingProcessState {
     DESTROYED,
 
     MAX_FILE_SIZE_REACHED,
+    STORAGE_FULL,
 
 
     SU_ERROR(true, true),
@@ -0,0 +1,186 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Circular off-heap buffer keeping the last few seconds of encoded samples for instant replay.
+ * Samples are appended by the muxer writer thread and the oldest ones are evicted when the buffer is full
+ * or when they are no longer needed to cover the replay duration from a video sync frame.
+ * Saving is started on the writer thread with {@link #pin()} and done on any other thread with
+ * {@link #writeTo}, pinned samples are not evicted until they are written so capture is not interrupted.
+ */
+public class ReplayBuffer {
+
+    private static final int MAX_KEYFRAMES = 1024;
+    private static final long PINNED_PARK_NS = 1000000;
+
+    private final ByteBuffer data;
+    private final long durationUs;
+    private final int mask;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private final long[] timestamps;
+    private final byte[] tracks;
+    private final long[] keyframes = new long[MAX_KEYFRAMES]; // sequence numbers of video sync frames
+    private long keyframeHead;
+    private long keyframeTail;
+    private long head; // sequence number of the oldest sample
+    private long tail; // sequence number of the next sample
+    private int dataTail;
+    private volatile long pinned = Long.MAX_VALUE;
+    private long pinnedEnd;
+
+    /**
+     * @param capacity size of sample data buffer in bytes
+     * @param maxSamples maximum number of samples, must be a power of two
+     */
+    public ReplayBuffer(int capacity, int maxSamples, long durationUs) {
+        if (Integer.bitCount(maxSamples) != 1) {
+            throw new IllegalArgumentException("maxSamples must be a power of two");
+        }
+        data = ByteBuffer.allocateDirect(capacity);
+        this.durationUs = durationUs;
+        mask = maxSamples - 1;
+        offsets = new int[maxSamples];
+        sizes = new int[maxSamples];
+        flags = new int[maxSamples];
+        timestamps = new long[maxSamples];
+        tracks = new byte[maxSamples];
+    }
+
+    /**
+     * Copy encoded sample into the buffer evicting the oldest samples if needed.
+     * May block if samples being saved need to be evicted.
+     */
+    public void add(int trackType, ByteBuffer sample, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        if (size > data.capacity() / 2) {
+            throw new IllegalArgumentException("Sample too big for replay buffer: " + size);
+        }
+        if (tail - head > mask) {
+            evictOldest();
+        }
+        int position;
+        while ((position = findSpace(size)) < 0) {
+            evictOldest();
+        }
+
+        ByteBuffer source = sample.duplicate();
+        source.limit(info.offset + size);
+        source.position(info.offset);
+        ByteBuffer target = data.duplicate();
+        target.position(position);
+        target.put(source);
+
+        int i = (int) (tail & mask);
+        offsets[i] = position;
+        sizes[i] = size;
+        flags[i] = info.flags;
+        timestamps[i] = info.presentationTimeUs;
+        tracks[i] = (byte) trackType;
+        if (trackType == EncoderDrainer.TRACK_VIDEO && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            if (keyframeTail - keyframeHead == MAX_KEYFRAMES) {
+                keyframeHead++;
+            }
+            keyframes[(int) (keyframeTail++ % MAX_KEYFRAMES)] = tail;
+        }
+        tail++;
+        dataTail = position + size;
+
+        if (trackType == EncoderDrainer.TRACK_VIDEO) {
+            evictExpired(info.presentationTimeUs);
+        }
+    }
+
+    /**
+     * Mark samples from the oldest sync frame up to the newest sample to be saved.
+     * Must be called on the thread adding samples.
+     * @return false if there is no sync frame in the buffer or previous replay is still being saved
+     */
+    public boolean pin() {
+        if (pinned != Long.MAX_VALUE || keyframeTail == keyframeHead) {
+            return false;
+        }
+        pinnedEnd = tail;
+        pinned = keyframes[(int) (keyframeHead % MAX_KEYFRAMES)];
+        return true;
+    }
+
+    /**
+     * Write samples marked with {@link #pin()} to the sink. Samples are released as soon as they are written.
+     * @param trackIndices sink track index by track type, samples of tracks with negative index are skipped
+     */
+    public void writeTo(SampleSink sink, int[] trackIndices) {
+        ByteBuffer buffer = data.duplicate();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            for (long seq = pinned; seq < pinnedEnd; seq++) {
+                int i = (int) (seq & mask);
+                int trackIndex = trackIndices[tracks[i]];
+                if (trackIndex >= 0) {
+                    buffer.clear();
+                    buffer.position(offsets[i]);
+                    buffer.limit(offsets[i] + sizes[i]);
+                    info.set(offsets[i], sizes[i], timestamps[i], flags[i]);
+                    sink.writeSampleData(trackIndex, buffer, info);
+                }
+                pinned = seq + 1;
+            }
+        } finally {
+            pinned = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return duration of buffered samples
+     */
+    public long getBufferedUs() {
+        if (tail == head) return 0;
+        return timestamps[(int) ((tail - 1) & mask)] - timestamps[(int) (head & mask)];
+    }
+
+    /**
+     * @return offset at which sample of given size can be stored or -1 if oldest samples need to be evicted first
+     */
+    private int findSpace(int size) {
+        if (tail == head) {
+            return 0;
+        }
+        int dataHead = offsets[(int) (head & mask)];
+        if (dataTail > dataHead) {
+            if (data.capacity() - dataTail >= size) {
+                return dataTail;
+            }
+            return dataHead >= size ? 0 : -1;
+        }
+        return dataHead - dataTail >= size ? dataTail : -1;
+    }
+
+    private void evictOldest() {
+        while (head >= pinned) {
+            LockSupport.parkNanos(this, PINNED_PARK_NS);
+        }
+        head++;
+        while (keyframeTail > keyframeHead && keyframes[(int) (keyframeHead % MAX_KEYFRAMES)] < head) {
+            keyframeHead++;
+        }
+    }
+
+    /**
+     * Drop samples before the oldest sync frame if the next sync frame alone covers the replay duration.
+     */
+    private void evictExpired(long nowUs) {
+        while (keyframeTail - keyframeHead >= 2) {
+            long next = keyframes[(int) ((keyframeHead + 1) % MAX_KEYFRAMES)];
+            if (timestamps[(int) (next & mask)] > nowUs - durationUs || next > pinned) {
+                break;
+            }
+            head = next;
+            keyframeHead++;
+        }
+    }
+}
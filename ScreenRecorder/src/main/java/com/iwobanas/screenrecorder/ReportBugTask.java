@@ -60,8 +60,6 @@ public class ReportBugTask extends AsyncTask<Void, Void, Integer> {
                     exitValue = runAndWait(command);
                 }
 
-            } catch (IOException e) {
-                Log.e(TAG, "Error running logcat", e);
             } catch (InterruptedException e) {
                 Log.e(TAG, "Error running logcat", e);
             }
@@ -69,10 +67,8 @@ public class ReportBugTask extends AsyncTask<Void, Void, Integer> {
         return exitValue;
     }
 
-    private int runAndWait(String command) throws InterruptedException, IOException {
-        Process process = Runtime.getRuntime().exec(new String[]{"su", "-c", command});
-        process.waitFor();
-        return process.exitValue();
+    private int runAndWait(String command) {
+        return RootShellPool.getInstance().execute(command, 30000).getExitValue();
     }
 
     @Override
@@ -0,0 +1,217 @@
+package com.iwobanas.screenrecorder;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived shell session executing one command at a time.
+ * Each command is followed by an echo of a sentinel unique to the session and the command, output is
+ * collected until the sentinel line which also carries the exit code. Standard error is merged with the output
+ * and commands read standard input from /dev/null so they can't consume following commands.
+ * A session which timed out or whose shell exited can't be used any more and should be destroyed.
+ */
+class RootShell {
+    private static final String TAG = "scr_RootShell";
+    private static final AtomicInteger sessionNumber = new AtomicInteger(0);
+
+    private final Process process;
+    private final Writer writer;
+    private final String sentinel;
+    private final int maxOutputChars;
+    private final int number = sessionNumber.incrementAndGet();
+    private volatile boolean alive = true;
+    private int sequence;
+    private Command current;
+
+    /**
+     * @param shellCommand command starting the shell e.g. su
+     * @param maxOutputChars output of a command above this size is discarded
+     */
+    RootShell(String[] shellCommand, int maxOutputChars) throws IOException {
+        this.maxOutputChars = maxOutputChars;
+        sentinel = "__scr_done_" + Long.toHexString(new Random().nextLong()) + "_";
+        Log.v(TAG, "Starting session " + number + ": " + Arrays.toString(shellCommand));
+        process = new ProcessBuilder(shellCommand).redirectErrorStream(true).start();
+        writer = new OutputStreamWriter(process.getOutputStream());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readOutput();
+            }
+        }, "RootShell-" + number);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Quote argument for the shell.
+     */
+    public static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Run command and wait for it to complete. Should not be called concurrently.
+     */
+    public Result execute(String command, long timeoutMs) {
+        Command pending;
+        synchronized (this) {
+            if (!alive) {
+                return new Result(Result.FAILED, "", false, false);
+            }
+            pending = new Command(sentinel + (++sequence) + " ");
+            current = pending;
+        }
+        try {
+            writer.write("{ " + command + "\n} </dev/null\necho \"" + pending.marker + "$?\"\n");
+            writer.flush();
+            if (!pending.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Session " + number + " command timed out: " + command);
+                alive = false;
+                synchronized (this) {
+                    current = null;
+                    return pending.toResult(Result.FAILED, true);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Session " + number + " write error: " + e.getMessage());
+            alive = false;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Session " + number + " interrupted");
+            alive = false;
+        }
+        synchronized (this) {
+            current = null;
+            return pending.toResult(pending.exitValue, false);
+        }
+    }
+
+    public void destroy() {
+        alive = false;
+        try {
+            process.destroy();
+        } catch (Exception e) {
+            Log.w(TAG, "Can't destroy session " + number, e);
+        }
+    }
+
+    private void readOutput() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (this) {
+                    if (current == null) {
+                        Log.w(TAG, "Session " + number + " unexpected output: " + line);
+                        continue;
+                    }
+                    int markerIndex = line.indexOf(current.marker);
+                    if (markerIndex < 0) {
+                        current.append(line, maxOutputChars);
+                        continue;
+                    }
+                    if (markerIndex > 0) {
+                        // output not terminated with new line
+                        current.append(line.substring(0, markerIndex), maxOutputChars);
+                    }
+                    try {
+                        current.exitValue = Integer.parseInt(line.substring(markerIndex + current.marker.length()).trim());
+                    } catch (NumberFormatException e) {
+                        current.exitValue = Result.FAILED;
+                    }
+                    current.done.countDown();
+                    current = null;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Session " + number + " read error: " + e.getMessage());
+        }
+        Log.v(TAG, "Session " + number + " ended");
+        synchronized (this) {
+            alive = false;
+            if (current != null) {
+                current.done.countDown();
+                current = null;
+            }
+        }
+    }
+
+    private static class Command {
+        final String marker;
+        final CountDownLatch done = new CountDownLatch(1);
+        final StringBuilder output = new StringBuilder();
+        int exitValue = Result.FAILED;
+        boolean truncated;
+
+        Command(String marker) {
+            this.marker = marker;
+        }
+
+        void append(String line, int maxChars) {
+            if (output.length() + line.length() + 1 > maxChars) {
+                truncated = true;
+                return;
+            }
+            output.append(line).append('\n');
+        }
+
+        Result toResult(int exitValue, boolean timedOut) {
+            return new Result(exitValue, output.toString(), truncated, timedOut);
+        }
+    }
+
+    public static class Result {
+        /**
+         * Exit value of commands which couldn't be run or whose shell exited before completing them.
+         */
+        public static final int FAILED = -1;
+
+        private final int exitValue;
+        private final String output;
+        private final boolean truncated;
+        private final boolean timedOut;
+
+        Result(int exitValue, String output, boolean truncated, boolean timedOut) {
+            this.exitValue = exitValue;
+            this.output = output;
+            this.truncated = truncated;
+            this.timedOut = timedOut;
+        }
+
+        public int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * @return standard output and error of the command
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return true if part of the output was discarded because it exceeded the limit
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+}
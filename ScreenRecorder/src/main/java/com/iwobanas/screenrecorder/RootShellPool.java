@@ -0,0 +1,149 @@
+package com.iwobanas.screenrecorder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Small pool of long-lived root shells. Starting su for every command takes hundreds of milliseconds
+ * and may involve a round trip to the superuser app, a pooled session pays that cost once.
+ * Sessions are created on demand up to {@value #MAX_SESSIONS}, callers wait for a free session if all are busy.
+ * Sessions whose command timed out or whose shell exited are destroyed and replaced with new ones.
+ */
+public class RootShellPool {
+    private static final String TAG = "scr_RootShellPool";
+    private static final int MAX_SESSIONS = 2;
+    private static final int MAX_OUTPUT_CHARS = 64 * 1024;
+
+    private static RootShellPool instance;
+    private static RootShellPool mountMasterInstance;
+
+    private final String[] shellCommand;
+    private final LinkedList<RootShell> idle = new LinkedList<RootShell>();
+    private int sessions;
+    // incremented on close so that sessions in use at that time are destroyed when released
+    private int generation;
+    // first command of a new session, comparable to spawning su for each command
+    private final LatencyStats newSessionLatency = new LatencyStats();
+    private final LatencyStats pooledLatency = new LatencyStats();
+
+    RootShellPool(String... shellCommand) {
+        this.shellCommand = shellCommand;
+    }
+
+    /**
+     * Sessions started with plain su.
+     */
+    public static synchronized RootShellPool getInstance() {
+        if (instance == null) {
+            instance = new RootShellPool("su");
+        }
+        return instance;
+    }
+
+    /**
+     * Sessions running in the global mount namespace, needed for mounts visible to other processes.
+     */
+    public static synchronized RootShellPool getMountMasterInstance() {
+        if (mountMasterInstance == null) {
+            mountMasterInstance = new RootShellPool("su", "--mount-master");
+        }
+        return mountMasterInstance;
+    }
+
+    /**
+     * Destroy idle sessions of all pools, sessions in use are destroyed when released.
+     */
+    public static synchronized void closeAll() {
+        if (instance != null) {
+            instance.close();
+        }
+        if (mountMasterInstance != null) {
+            mountMasterInstance.close();
+        }
+    }
+
+    /**
+     * Run shell command in a pooled session.
+     * @param timeoutMs maximum time of waiting for a free session and executing the command
+     */
+    public RootShell.Result execute(String command, long timeoutMs) {
+        long startMs = SystemClock.elapsedRealtime();
+        long start = System.nanoTime();
+        boolean newSession = false;
+        RootShell shell;
+        int shellGeneration;
+        synchronized (this) {
+            while (idle.isEmpty() && sessions >= MAX_SESSIONS) {
+                long remainingMs = startMs + timeoutMs - SystemClock.elapsedRealtime();
+                if (remainingMs <= 0) {
+                    Log.w(TAG, "No free session to run: " + command);
+                    return new RootShell.Result(RootShell.Result.FAILED, "", false, true);
+                }
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException e) {
+                    return new RootShell.Result(RootShell.Result.FAILED, "", false, false);
+                }
+            }
+            shell = idle.poll();
+            if (shell == null) {
+                sessions++;
+            }
+            shellGeneration = generation;
+        }
+        if (shell == null) {
+            try {
+                shell = new RootShell(shellCommand, MAX_OUTPUT_CHARS);
+                newSession = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Can't start shell", e);
+                release(null, shellGeneration);
+                return new RootShell.Result(RootShell.Result.FAILED, "", false, false);
+            }
+        }
+        long remainingMs = Math.max(startMs + timeoutMs - SystemClock.elapsedRealtime(), 1);
+        RootShell.Result result = shell.execute(command, remainingMs);
+        synchronized (this) {
+            (newSession ? newSessionLatency : pooledLatency).add(System.nanoTime() - start);
+        }
+        release(shell, shellGeneration);
+        return result;
+    }
+
+    private synchronized void release(RootShell shell, int shellGeneration) {
+        if (shell != null && shell.isAlive() && shellGeneration == generation) {
+            idle.push(shell);
+        } else {
+            if (shell != null) {
+                shell.destroy();
+            }
+            if (shellGeneration == generation) {
+                sessions--;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return number of sessions started after the last close and not destroyed yet
+     */
+    synchronized int getSessions() {
+        return sessions;
+    }
+
+    synchronized void close() {
+        Log.v(TAG, "Closing " + idle.size() + " sessions, first command in new session: " + newSessionLatency
+                + " pooled: " + pooledLatency);
+        for (RootShell shell : idle) {
+            shell.destroy();
+        }
+        idle.clear();
+        // sessions in use are no longer counted, new sessions may be started right away
+        sessions = 0;
+        generation++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,112 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue of encoded samples.
+ * Slots and their data buffers are preallocated and reused so that handing samples from encoder drain
+ * thread to muxer writer thread doesn't allocate on the hot path (buffers only grow for unusually big frames).
+ * The handoff is not zero-copy: each sample is copied once out of the codec output buffer. Holding codec buffers
+ * until the writer is done would stall the encoder, which only has a few output buffers, whenever the writer
+ * blocks on storage. The copy is one memcpy of the encoded size per sample, i.e. about 1 MB/s at 8 Mbps.
+ * Producer calls {@link #claim()} + {@link #publish()}, consumer calls {@link #peek()} + {@link #release()}.
+ */
+public class SampleQueue {
+
+    private final Sample[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to be consumed
+    private final AtomicLong tail = new AtomicLong(); // next slot to be produced
+    private final int trackType;
+
+    public SampleQueue(int trackType, int capacity, int initialBufferSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.trackType = trackType;
+        slots = new Sample[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Sample(trackType, initialBufferSize);
+        }
+        mask = capacity - 1;
+    }
+
+    public int getTrackType() {
+        return trackType;
+    }
+
+    /**
+     * @return free slot to be filled by producer or null if queue is full
+     */
+    public Sample claim() {
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            return null;
+        }
+        return slots[(int) (t & mask)];
+    }
+
+    /**
+     * Make the last claimed slot visible to the consumer.
+     */
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * @return oldest published sample or null if queue is empty
+     */
+    public Sample peek() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        return slots[(int) (h & mask)];
+    }
+
+    /**
+     * Return the slot obtained from {@link #peek()} to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public static class Sample {
+        public final int trackType;
+        public final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        public ByteBuffer data;
+        public long queuedTimeNs;
+
+        Sample(int trackType, int initialBufferSize) {
+            this.trackType = trackType;
+            data = ByteBuffer.allocateDirect(initialBufferSize);
+        }
+
+        /**
+         * Copy encoded data described by bufferInfo so that codec buffer can be released immediately.
+         */
+        public void set(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            if (data.capacity() < bufferInfo.size) {
+                data = ByteBuffer.allocateDirect(bufferInfo.size + bufferInfo.size / 4);
+            }
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            encodedData.position(bufferInfo.offset);
+            data.clear();
+            data.put(encodedData);
+            data.flip();
+            info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+            queuedTimeNs = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of encoded samples, e.g. a muxer writing MP4 file.
+ * Call order follows {@link android.media.MediaMuxer}: addTrack for each track, start, writeSampleData, stop, release.
+ */
+public interface SampleSink {
+
+    /**
+     * Optional MediaFormat string with a human readable track name.
+     * Stored by sinks supporting it, {@link android.media.MediaMuxer} ignores it.
+     */
+    String KEY_TRACK_NAME = "track-name";
+
+    /**
+     * @return index of the added track to be passed to {@link #writeSampleData}
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    /**
+     * Write a single sample. Data is read directly from the passed buffer (no copy is made by the caller)
+     * so implementations must not keep a reference to it after returning.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,77 @@
+package com.iwobanas.screenrecorder;
+
+import android.util.Log;
+
+import com.google.analytics.tracking.android.EasyTracker;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops and releases sinks of completed segments on a background thread
+ * so that writing moov of one file doesn't stall writing samples to the next one.
+ */
+public class SegmentFinalizer {
+
+    private static final String TAG = "scr_SegmentFinalizer";
+    private static final long SHUTDOWN_TIMEOUT_S = 30;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private volatile boolean failed;
+
+    /**
+     * @param output descriptor to be closed after sink is released or null
+     */
+    public void finish(final SampleSink sink, final Closeable output) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    sink.stop();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error stopping segment sink", e);
+                    EasyTracker.getTracker().sendException("segment", e, false);
+                    failed = true;
+                }
+                try {
+                    sink.release();
+                } catch (Exception e) {
+                    Log.w(TAG, "Error releasing segment sink", e);
+                }
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (Exception e) {
+                        Log.w(TAG, "Error closing segment output", e);
+                    }
+                }
+                Log.i(TAG, "Segment finalized in " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        });
+    }
+
+    /**
+     * @return true if any of the segments couldn't be finalized correctly
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Wait until all pending segments are finalized.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_S, TimeUnit.SECONDS)) {
+                Log.e(TAG, "Timeout finalizing segments");
+                failed = true;
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted finalizing segments");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Replaces AAC frames encoded from sustained digital silence with minimal silent frames.
+ * Android AAC encoders run at constant bitrate and pad silent frames to full size, while an AAC-LC frame
+ * with all spectral data omitted takes 4 bytes (mono) or 7 bytes (stereo).
+ * PCM fed to the encoder is reported with {@link #onInput} and frames are replaced only if the input was silent
+ * from {@value #MIN_SILENCE_US}us before the frame until a frame after it. Encoded frames carry audio delayed
+ * by the encoder and overlapping with neighbour frames, the margins keep fade-outs and onsets untouched.
+ * Presentation times are kept so the timeline stays continuous.
+ * {@link #onInput} and {@link #replace} may be called from different threads.
+ */
+public class SilentFrameReplacer implements EncoderDrainer.SampleReplacer {
+
+    private static final int SILENCE_PEAK = 4; // -78dBFS, dither noise of silent input
+    private static final long MIN_SILENCE_US = 500000;
+    private static final int FRAME_SAMPLES = 1024;
+    private static final int MAX_RUNS = 16;
+
+    private final ByteBuffer silentFrame;
+    private final int sampleRate;
+    private final long frameDurationUs;
+    private final int frameSize;
+
+    // completed silent runs, oldest first
+    private final long[] runStarts = new long[MAX_RUNS];
+    private final long[] runEnds = new long[MAX_RUNS];
+    private int runCount;
+    private long currentRunStartUs = -1;
+    private long currentRunEndUs;
+
+    private long replacedFrames;
+    private long savedBytes;
+    private long totalBytes;
+
+    public SilentFrameReplacer(int sampleRate, int channels) {
+        if (channels != 1 && channels != 2) {
+            throw new IllegalArgumentException("Unsupported channel count " + channels);
+        }
+        silentFrame = createSilentFrame(channels);
+        this.sampleRate = sampleRate;
+        frameDurationUs = FRAME_SAMPLES * 1000000L / sampleRate;
+        frameSize = 2 * channels;
+    }
+
+    /**
+     * Build raw_data_block of ISO/IEC 14496-3 with a single SCE or CPE element without spectral data.
+     */
+    static ByteBuffer createSilentFrame(int channels) {
+        BitWriter writer = new BitWriter(8);
+        if (channels == 1) {
+            writer.write(0, 3); // ID_SCE
+            writer.write(0, 4); // element_instance_tag
+            writeEmptyChannelStream(writer);
+        } else {
+            writer.write(1, 3); // ID_CPE
+            writer.write(0, 4); // element_instance_tag
+            writer.write(0, 1); // common_window
+            writeEmptyChannelStream(writer);
+            writeEmptyChannelStream(writer);
+        }
+        writer.write(7, 3); // ID_END
+        return writer.toByteBuffer();
+    }
+
+    private static void writeEmptyChannelStream(BitWriter writer) {
+        writer.write(0, 8); // global_gain
+        writer.write(0, 1); // ics_reserved_bit
+        writer.write(0, 2); // window_sequence ONLY_LONG_SEQUENCE
+        writer.write(0, 1); // window_shape
+        writer.write(0, 6); // max_sfb, no section, scale factor or spectral data follows
+        writer.write(0, 1); // predictor_data_present
+        writer.write(0, 1); // pulse_data_present
+        writer.write(0, 1); // tns_data_present
+        writer.write(0, 1); // gain_control_data_present
+    }
+
+    /**
+     * Report PCM queued to the encoder.
+     */
+    public void onInput(ByteBuffer pcm, int offset, int length, long presentationTimeUs) {
+        if (length < frameSize) {
+            return;
+        }
+        boolean silent = true;
+        for (int i = offset, end = offset + length - 1; i < end; i += 2) {
+            int sample = (short) ((pcm.get(i) & 0xff) | (pcm.get(i + 1) << 8));
+            if (sample > SILENCE_PEAK || sample < -SILENCE_PEAK) {
+                silent = false;
+                break;
+            }
+        }
+        synchronized (this) {
+            if (silent) {
+                if (currentRunStartUs < 0) {
+                    currentRunStartUs = presentationTimeUs;
+                }
+                currentRunEndUs = presentationTimeUs + (length / frameSize) * 1000000L / sampleRate;
+            } else if (currentRunStartUs >= 0) {
+                if (runCount == MAX_RUNS) {
+                    System.arraycopy(runStarts, 1, runStarts, 0, MAX_RUNS - 1);
+                    System.arraycopy(runEnds, 1, runEnds, 0, MAX_RUNS - 1);
+                    runCount--;
+                }
+                runStarts[runCount] = currentRunStartUs;
+                runEnds[runCount] = Math.min(currentRunEndUs, presentationTimeUs);
+                runCount++;
+                currentRunStartUs = -1;
+            }
+        }
+    }
+
+    @Override
+    public synchronized ByteBuffer replace(MediaCodec.BufferInfo info) {
+        totalBytes += info.size;
+        long startUs = info.presentationTimeUs - MIN_SILENCE_US;
+        long endUs = info.presentationTimeUs + 2 * frameDurationUs;
+        boolean silent = currentRunStartUs >= 0 && currentRunStartUs <= startUs && currentRunEndUs >= endUs;
+        for (int i = 0; i < runCount && !silent; i++) {
+            silent = runStarts[i] <= startUs && runEnds[i] >= endUs;
+        }
+        if (!silent || info.size <= silentFrame.capacity()) {
+            return null;
+        }
+        replacedFrames++;
+        savedBytes += info.size - silentFrame.capacity();
+        silentFrame.clear();
+        return silentFrame;
+    }
+
+    public synchronized long getReplacedFrames() {
+        return replacedFrames;
+    }
+
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return size of encoded audio before replacement
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static class BitWriter {
+        private final byte[] data;
+        private int bitPosition;
+
+        BitWriter(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void write(int value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                if (((value >> i) & 1) != 0) {
+                    data[bitPosition / 8] |= 0x80 >> (bitPosition % 8);
+                }
+                bitPosition++;
+            }
+        }
+
+        ByteBuffer toByteBuffer() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((bitPosition + 7) / 8);
+            buffer.put(data, 0, buffer.capacity());
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
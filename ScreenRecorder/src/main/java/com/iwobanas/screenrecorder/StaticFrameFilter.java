@@ -0,0 +1,112 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drops H.264 frames encoded while the screen doesn't change to produce variable frame rate video.
+ * Frames of a static screen are P-frames with all macroblocks skipped and take only tens of bytes,
+ * frames up to the given size are considered static. Only frames no other frame is predicted from
+ * (nal_ref_idc equal to 0) are dropped so decoding of the remaining frames is not affected,
+ * the encoder has to produce them with temporal layering. A frame is always kept if the previous kept frame
+ * is older than maximum frame gap so players and editors never see long holes in the video track.
+ * Called on the video drainer thread, statistics may be read after the drainer is stopped.
+ */
+public class StaticFrameFilter implements EncoderDrainer.SampleFilter {
+
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_IDR_SLICE = 5;
+
+    private final int maxStaticFrameSize;
+    private final long maxFrameGapUs;
+    private long lastKeptTimestampUs = -1;
+
+    private long frames;
+    private long bytes;
+    private long droppedFrames;
+    private long droppedBytes;
+    private long staticReferenceFrames;
+
+    /**
+     * @param maxStaticFrameSize size in bytes of the largest frame considered static
+     * @param maxFrameGapUs maximum time between kept frames
+     */
+    public StaticFrameFilter(int maxStaticFrameSize, long maxFrameGapUs) {
+        this.maxStaticFrameSize = maxStaticFrameSize;
+        this.maxFrameGapUs = maxFrameGapUs;
+    }
+
+    @Override
+    public boolean accept(ByteBuffer data, MediaCodec.BufferInfo info) {
+        frames++;
+        bytes += info.size;
+        boolean keep = info.size > maxStaticFrameSize
+                || (info.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0
+                || lastKeptTimestampUs < 0
+                || info.presentationTimeUs - lastKeptTimestampUs >= maxFrameGapUs;
+        if (!keep && !isDisposable(data, info.offset, info.size)) {
+            staticReferenceFrames++;
+            keep = true;
+        }
+        if (keep) {
+            lastKeptTimestampUs = info.presentationTimeUs;
+            return true;
+        }
+        droppedFrames++;
+        droppedBytes += info.size;
+        return false;
+    }
+
+    /**
+     * Check Annex B H.264 access unit.
+     * @return true if the access unit contains slices and none of them is used for reference
+     */
+    static boolean isDisposable(ByteBuffer data, int offset, int size) {
+        int end = offset + size;
+        int zeros = 0;
+        boolean slices = false;
+        for (int i = offset; i < end; i++) {
+            int b = data.get(i) & 0xff;
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2 && i + 1 < end) {
+                int header = data.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                if (type == NAL_TYPE_SLICE || type == NAL_TYPE_IDR_SLICE) {
+                    if ((header & 0x60) != 0) {
+                        return false;
+                    }
+                    slices = true;
+                }
+            }
+            zeros = 0;
+        }
+        return slices;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return number of static frames which had to be kept because other frames are predicted from them
+     */
+    public long getStaticReferenceFrames() {
+        return staticReferenceFrames;
+    }
+}
@@ -0,0 +1,192 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Environment;
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStatVfs;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+
+/**
+ * Tracks free space of the volume recording is written to and forecasts remaining recording time
+ * from the output data rate averaged over {@value #RATE_WINDOW_NS}ns. Until data rate is measured
+ * the expected rate of configured bitrates is used. {@link #update} is called on the recording thread
+ * for every written sample and queries the file system at most once per {@value #UPDATE_INTERVAL_NS}ns.
+ * Space preallocated for the output but not written yet is counted as free.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class StorageMonitor {
+
+    private static final String TAG = "scr_StorageMonitor";
+
+    private static final long UPDATE_INTERVAL_NS = 1000000000l;
+    private static final long RATE_WINDOW_NS = 10000000000l;
+    // space left for finalizing files and for the rest of the system
+    public static final long RESERVE_BYTES = 32 * 1024 * 1024;
+    public static final long UNKNOWN = -1;
+
+    private final long expectedBytesPerSecond;
+    private File dir;
+    private FileDescriptor fd;
+    private Listener listener;
+    private long lastUpdateNs;
+    private long lastWrittenBytes;
+    private double bytesPerSecond;
+    private long freeBytes = UNKNOWN;
+    private long minFreeBytes = UNKNOWN;
+    private long remainingSeconds = UNKNOWN;
+
+    public StorageMonitor(long expectedBytesPerSecond) {
+        this.expectedBytesPerSecond = expectedBytesPerSecond;
+        bytesPerSecond = expectedBytesPerSecond;
+    }
+
+    /**
+     * Monitor volume containing given directory.
+     */
+    public void setTarget(File dir) {
+        this.dir = dir;
+        fd = null;
+        lastUpdateNs = 0;
+    }
+
+    /**
+     * Monitor volume of a file opened through storage access framework.
+     */
+    public void setTarget(FileDescriptor fd) {
+        this.fd = fd;
+        dir = null;
+        lastUpdateNs = 0;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param writtenBytes total amount of data written since recording started
+     * @param preallocatedBytes space reserved for the output but not used yet
+     * @return true if the forecast was updated
+     */
+    public boolean update(long writtenBytes, long preallocatedBytes) {
+        long now = System.nanoTime();
+        if (lastUpdateNs != 0 && now - lastUpdateNs < UPDATE_INTERVAL_NS) {
+            return false;
+        }
+        if (lastUpdateNs != 0) {
+            long elapsedNs = now - lastUpdateNs;
+            double rate = (writtenBytes - lastWrittenBytes) * 1000000000.0 / elapsedNs;
+            bytesPerSecond += (rate - bytesPerSecond) * elapsedNs / (RATE_WINDOW_NS + elapsedNs);
+        }
+        lastUpdateNs = now;
+        lastWrittenBytes = writtenBytes;
+
+        long available = queryFreeBytes();
+        if (available == UNKNOWN) {
+            freeBytes = UNKNOWN;
+            remainingSeconds = UNKNOWN;
+            return true;
+        }
+        freeBytes = available + Math.max(preallocatedBytes, 0);
+        if (minFreeBytes == UNKNOWN || freeBytes < minFreeBytes) {
+            minFreeBytes = freeBytes;
+        }
+        double rate = Math.max(bytesPerSecond, expectedBytesPerSecond / 10.0);
+        remainingSeconds = rate <= 0 ? UNKNOWN : (long) (Math.max(freeBytes - RESERVE_BYTES, 0) / rate);
+        if (listener != null) {
+            listener.onStorageForecast(freeBytes, remainingSeconds);
+        }
+        return true;
+    }
+
+    private long queryFreeBytes() {
+        try {
+            if (fd != null) {
+                StructStatVfs stat = Os.fstatvfs(fd);
+                return stat.f_bavail * stat.f_frsize;
+            }
+            if (dir != null) {
+                return new StatFs(dir.getAbsolutePath()).getAvailableBytes();
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Can't check free space " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Can't check free space of " + dir);
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Find app directory on another volume with the most free space, used when the current volume is almost full.
+     * Public directories on secondary volumes aren't writable so only app specific directories are considered.
+     * @return directory or null if no other volume has more than minBytes free
+     */
+    public static File findOtherVolume(Context context, File current, long minBytes) {
+        long currentDevice = getDevice(current);
+        File best = null;
+        long bestFree = minBytes;
+        for (File candidate : context.getExternalFilesDirs(Environment.DIRECTORY_MOVIES)) {
+            if (candidate == null || (currentDevice != UNKNOWN && getDevice(candidate) == currentDevice)) {
+                continue;
+            }
+            if (!candidate.exists() && !candidate.mkdirs()) {
+                continue;
+            }
+            long free;
+            try {
+                free = new StatFs(candidate.getAbsolutePath()).getAvailableBytes();
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (free > bestFree) {
+                best = candidate;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    private static long getDevice(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_dev;
+        } catch (ErrnoException e) {
+            return UNKNOWN;
+        }
+    }
+
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * @return lowest free space seen during recording
+     */
+    public long getMinFreeBytes() {
+        return minFreeBytes;
+    }
+
+    public long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    /**
+     * @return forecast of recording time left before free space drops to {@link #RESERVE_BYTES}
+     */
+    public long getRemainingSeconds() {
+        return remainingSeconds;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the recording thread about once per second.
+         * @param remainingSeconds forecast recording time left or {@link #UNKNOWN}
+         */
+        void onStorageForecast(long freeBytes, long remainingSeconds);
+    }
+}
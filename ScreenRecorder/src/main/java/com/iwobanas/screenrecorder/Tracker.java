@@ -29,6 +29,9 @@ public class Tracker {
     public final static String RECORDING = "recording";
     public final static String SIZE = "size";
     public final static String TIME = "time";
+    public final static String RESTART = "restart";
+    public final static String STANDBY = "standby";
+    public final static String COLD = "cold";
 
     public final static String RATING = "rating";
     public final static String RATING_SHOW = "rating_show";
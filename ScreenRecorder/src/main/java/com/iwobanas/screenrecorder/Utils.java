@@ -19,95 +19,23 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Utils {
 
     private static final String TAG = "scr_Utils";
 
-    public static int findProcessByCommand(String command) {
-        try {
-            File proc = new File("/proc");
-
-            ByteBuffer cmdByteBuffer = ByteBuffer.allocate(command.length());
-            cmdByteBuffer.put(command.getBytes());
-            ByteBuffer procByteBuffer = ByteBuffer.allocate(command.length());
-            int length = command.length();
-
-            FilenameFilter pidFilter = new FilenameFilter() {
-                Matcher matcher = Pattern.compile("^\\d+$").matcher("");
-
-                @Override
-                public boolean accept(File dir, String filename) {
-                    matcher.reset(filename);
-                    return matcher.matches();
-                }
-            };
-
-            String[] pidStrings = proc.list(pidFilter);
-            List<Integer> processIds = new ArrayList<Integer>(pidStrings.length);
-            for (int i = 0; i < pidStrings.length; i++) {
-                try {
-                    processIds.add(i, Integer.valueOf(pidStrings[i]));
-                } catch (NumberFormatException ignore) {
-                }
-            }
-            Collections.sort(processIds, Collections.reverseOrder());
-
-            for (int pid : processIds) {
-                FileInputStream inputStream = null;
-                FileChannel fileChannel = null;
-                try {
-                    inputStream = new FileInputStream("/proc/" + pid + "/cmdline");
-                    fileChannel = inputStream.getChannel();
-                    procByteBuffer.rewind();
-                    if (fileChannel.read(procByteBuffer) != length) {
-                        continue;
-                    }
-
-                    cmdByteBuffer.rewind();
-                    procByteBuffer.rewind();
-
-                    if (cmdByteBuffer.compareTo(procByteBuffer) == 0) {
-                        return pid;
-                    }
-
-                } catch (FileNotFoundException ignored) {
-                } catch (IOException ignored) {
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                        if (fileChannel != null) {
-                            fileChannel.close();
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        } catch (SecurityException ignored) {}
-        return -1;
-    }
-
     public static String md5(String string) {
         byte[] hash;
 
@@ -507,16 +435,6 @@ public class Utils {
         }
     }
 
-    public static int waitForProcess(String command, long timeout) {
-        long timeoutNs = timeout * 1000000l;
-        long startTime = System.nanoTime();
-        int pid = -1;
-        while ((System.nanoTime() - startTime) < timeoutNs && pid < 0) {
-            pid = Utils.findProcessByCommand(command);
-        }
-        return pid;
-    }
-
     @SuppressWarnings("UnusedDeclaration")
     public static void logStackTrace(String tag, String message) {
         try {
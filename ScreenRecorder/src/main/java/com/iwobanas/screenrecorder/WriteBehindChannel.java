@@ -0,0 +1,490 @@
+package com.iwobanas.screenrecorder;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.iwobanas.screenrecorder.settings.SyncPolicy;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage between a file writer and {@link FileChannel}.
+ * Positional writes are copied into large direct buffers from a bounded pool, contiguous writes are coalesced
+ * and filled buffers are written on a dedicated thread, so storage latency spikes stall the caller only
+ * when the whole pool is waiting to be written. Buffers end at multiples of {@value #ALIGNMENT} bytes
+ * of file offset so that all writes except the first one start at a storage page boundary.
+ * Buffers are written in the order they were filled and I/O errors are thrown from the next call on the caller thread.
+ * If file descriptor is available, file space is preallocated in {@value #PREALLOCATION_CHUNK} byte chunks
+ * ahead of the write position so that the file isn't fragmented and running out of space is detected early.
+ * posix_fallocate extends the file size, so if the process dies the file ends with up to two chunks of zeros.
+ * To keep such a file readable, the part after the last checkpoint is hidden in an MP4 free box which extends
+ * to the end of the file: the first {@value #FREE_HEADER_SIZE} bytes after a checkpoint are held back and a free
+ * box header is written in their place, they are written only after the next checkpoint is complete and
+ * followed by a new free box header. Unused space is trimmed on close.
+ * All public methods should be called from a single thread.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class WriteBehindChannel {
+
+    private static final String TAG = "scr_WriteBehindChannel";
+
+    public static final int POOL_SIZE = 8;
+    private static final int BUFFER_SIZE = 512 * 1024;
+    private static final int ALIGNMENT = 4096;
+    private static final long ERROR_CHECK_MS = 100;
+    private static final long PREALLOCATION_CHUNK = 32 * 1024 * 1024;
+    private static final int FREE_HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final FileDescriptor fd;
+    private final SyncPolicy syncPolicy;
+    private final Stats stats;
+    private final BlockingQueue<Buffer> free = new ArrayBlockingQueue<Buffer>(POOL_SIZE);
+    // room for all buffers and a drain or close marker
+    private final BlockingQueue<Buffer> pending = new ArrayBlockingQueue<Buffer>(POOL_SIZE + 1);
+    private final Buffer closeMarker = new Buffer(null);
+    private final Thread thread;
+    private volatile IOException error;
+    private Buffer current;
+    private boolean closed;
+    private long writeEnd;
+    // updated on the writer thread, read by close() after the thread is joined
+    private long allocatedEnd;
+    private long writtenEnd;
+    private boolean preallocate;
+    private final boolean hideTail;
+    private long checkpointEnd;
+    private final ByteBuffer heldBack = ByteBuffer.allocate(FREE_HEADER_SIZE);
+    private final ByteBuffer freeHeader = ByteBuffer.allocate(FREE_HEADER_SIZE);
+
+    /**
+     * @param channel channel written with positional writes only, closed on {@link #close()}
+     * @param fd descriptor of the channel used to preallocate space or null if preallocation is not needed
+     * @param stats statistics shared by all files of a recording
+     */
+    public WriteBehindChannel(FileChannel channel, FileDescriptor fd, SyncPolicy syncPolicy, Stats stats) {
+        this.channel = channel;
+        this.fd = fd;
+        preallocate = fd != null;
+        hideTail = preallocate;
+        this.syncPolicy = syncPolicy;
+        this.stats = stats;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            free.add(new Buffer(ByteBuffer.allocateDirect(BUFFER_SIZE)));
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "writeBehind");
+        thread.start();
+    }
+
+    /**
+     * Copy data to be written at the given file position. Blocks if all buffers are waiting to be written.
+     */
+    public void write(ByteBuffer source, long position) throws IOException {
+        checkError();
+        while (source.hasRemaining()) {
+            if (current != null && (current.position + current.data.position() != position
+                    || !current.data.hasRemaining())) {
+                submit(false, -1);
+            }
+            if (current == null) {
+                current = acquire();
+                current.position = position;
+                current.data.clear();
+                current.data.limit(BUFFER_SIZE - (int) (position % ALIGNMENT));
+            }
+            int length = Math.min(source.remaining(), current.data.remaining());
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + length);
+            current.data.put(chunk);
+            source.position(source.position() + length);
+            position += length;
+        }
+        writeEnd = Math.max(writeEnd, position);
+    }
+
+    /**
+     * Mark the file written so far as consistent e.g. after appending a complete fragment.
+     * Data written so far is queued and synced to storage after writing with {@link SyncPolicy#FRAGMENT}.
+     */
+    public void checkpoint() throws IOException {
+        checkError();
+        if (current == null) {
+            current = acquire();
+            current.position = writeEnd;
+            current.data.clear();
+            current.data.limit(0);
+        }
+        submit(syncPolicy == SyncPolicy.FRAGMENT, writeEnd);
+    }
+
+    /**
+     * Wait until all data is written and synced according to the policy.
+     */
+    public void drain() throws IOException {
+        checkError();
+        if (current != null) {
+            submit(syncPolicy != SyncPolicy.NONE, -1);
+        }
+        // buffers are written in order so all data is written once the marker is reached
+        Buffer drainMarker = new Buffer(null);
+        drainMarker.drained = new CountDownLatch(1);
+        try {
+            pending.put(drainMarker);
+            drainMarker.drained.await();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while draining", e);
+        }
+        checkError();
+    }
+
+    /**
+     * Write remaining data, stop the writer thread and close the channel.
+     * Remaining data is discarded if an error was already reported.
+     */
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (current != null && error == null) {
+                submit(syncPolicy != SyncPolicy.NONE, -1);
+            }
+            pending.put(closeMarker);
+            thread.join();
+            if (allocatedEnd > writtenEnd) {
+                channel.truncate(writtenEnd);
+            }
+            if (hideTail && writtenEnd > checkpointEnd) {
+                // data after the last checkpoint, e.g. of a writer which doesn't use checkpoints, is complete now
+                heldBack.clear();
+                heldBack.limit((int) Math.min(FREE_HEADER_SIZE, writtenEnd - checkpointEnd));
+                writeFully(heldBack, checkpointEnd);
+            }
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            throw new IOException("Interrupted while closing", e);
+        } finally {
+            stats.addPreallocated(writtenEnd - Math.max(allocatedEnd, writtenEnd));
+            channel.close();
+        }
+        checkError();
+    }
+
+    private Buffer acquire() throws IOException {
+        Buffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        long start = System.nanoTime();
+        try {
+            while (buffer == null) {
+                checkError();
+                buffer = free.poll(ERROR_CHECK_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a buffer", e);
+        } finally {
+            stats.addStall(System.nanoTime() - start);
+        }
+        return buffer;
+    }
+
+    private void submit(boolean sync, long checkpoint) throws IOException {
+        current.data.flip();
+        current.sync = sync;
+        current.checkpoint = checkpoint;
+        stats.addQueued(pending.size() + 1);
+        try {
+            pending.put(current);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while queueing a buffer", e);
+        }
+        current = null;
+    }
+
+    private void checkError() throws IOException {
+        IOException e = error;
+        if (e != null) {
+            throw new IOException("Background write failed", e);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Buffer buffer;
+            try {
+                buffer = pending.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Writer interrupted");
+                return;
+            }
+            if (buffer == closeMarker) {
+                return;
+            }
+            if (buffer.drained != null) {
+                buffer.drained.countDown();
+                continue;
+            }
+            if (error == null) {
+                try {
+                    write(buffer);
+                } catch (IOException e) {
+                    Log.e(TAG, "Write error", e);
+                    error = e;
+                }
+            }
+            stats.removeQueued();
+            free.add(buffer);
+        }
+    }
+
+    private void write(Buffer buffer) throws IOException {
+        long start = System.nanoTime();
+        int size = buffer.data.remaining();
+        long position = buffer.position;
+        long end = position + size;
+        if (preallocate && end + PREALLOCATION_CHUNK / 2 > allocatedEnd) {
+            preallocate(end);
+        }
+        if (end > writtenEnd) {
+            stats.addPreallocated(-(Math.min(end, allocatedEnd) - Math.min(writtenEnd, allocatedEnd)));
+            writtenEnd = end;
+        }
+        if (hideTail && position < checkpointEnd + FREE_HEADER_SIZE && end > checkpointEnd) {
+            // keep the free box header in place of the first bytes after the checkpoint
+            int heldStart = (int) Math.max(checkpointEnd - position, 0);
+            int heldEnd = (int) Math.min(checkpointEnd + FREE_HEADER_SIZE - position, size);
+            ByteBuffer data = buffer.data.duplicate();
+            data.limit(data.position() + heldEnd);
+            data.position(data.position() + heldStart);
+            heldBack.position((int) (position + heldStart - checkpointEnd));
+            heldBack.put(data);
+
+            data.limit(data.position() - heldEnd + heldStart);
+            data.position(buffer.data.position());
+            writeFully(data, position);
+            data.limit(buffer.data.limit());
+            data.position(buffer.data.position() + heldEnd);
+            writeFully(data, position + heldEnd);
+        } else {
+            writeFully(buffer.data, position);
+        }
+        long written = System.nanoTime();
+        if (size > 0) {
+            stats.addWrite(written - start, size);
+        }
+        boolean revealed = hideTail && buffer.checkpoint > checkpointEnd;
+        if (revealed) {
+            writeFreeHeader(buffer.checkpoint);
+        }
+        if (buffer.sync) {
+            channel.force(false);
+            stats.addSync(System.nanoTime() - written);
+        }
+        if (revealed) {
+            // part up to the new checkpoint is complete and the tail after it is hidden, reveal the part
+            heldBack.clear();
+            writeFully(heldBack, checkpointEnd);
+            checkpointEnd = buffer.checkpoint;
+        }
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Cover the space from the given position to the end of preallocated space with a free box.
+     */
+    private void writeFreeHeader(long position) throws IOException {
+        long size = allocatedEnd - position;
+        if (size < FREE_HEADER_SIZE) {
+            return;
+        }
+        freeHeader.clear();
+        freeHeader.putInt((int) size);
+        freeHeader.put((byte) 'f').put((byte) 'r').put((byte) 'e').put((byte) 'e');
+        freeHeader.flip();
+        writeFully(freeHeader, position);
+    }
+
+    /**
+     * Allocate space up to the chunk boundary following the given position plus one chunk.
+     * Preallocation is disabled if the file system doesn't support it or there is no space left,
+     * in the latter case writing continues until it fails.
+     */
+    private void preallocate(long position) {
+        long newEnd = (position / PREALLOCATION_CHUNK + 2) * PREALLOCATION_CHUNK;
+        long start = Math.max(allocatedEnd, writtenEnd);
+        long previousEnd = allocatedEnd;
+        try {
+            // free box is extended first so that new space is never visible outside of it
+            allocatedEnd = newEnd;
+            writeFreeHeader(checkpointEnd);
+            Os.posix_fallocate(fd, start, newEnd - start);
+            stats.addPreallocated(newEnd - start);
+        } catch (IOException e) {
+            preallocate = false;
+            allocatedEnd = previousEnd;
+            Log.w(TAG, "Can't write free box before preallocation " + e.getMessage());
+        } catch (ErrnoException e) {
+            allocatedEnd = previousEnd;
+            try {
+                writeFreeHeader(checkpointEnd);
+            } catch (IOException ignored) {
+                // the free box extends beyond the end of file which readers treat as truncated
+            }
+            preallocate = false;
+            if (e.errno == OsConstants.ENOSPC) {
+                Log.w(TAG, "No space left to preallocate " + (newEnd - start) + " bytes");
+            } else {
+                Log.w(TAG, "Preallocation not supported " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Buffer {
+        final ByteBuffer data;
+        long position;
+        boolean sync;
+        long checkpoint; // end of the consistent part of the file or -1
+        CountDownLatch drained; // set for drain markers only
+
+        Buffer(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Statistics of all write-behind channels of a recording, segments of a recording may be written concurrently.
+     */
+    public static class Stats {
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong preallocated = new AtomicLong();
+        private final LatencyStats writeLatency = new LatencyStats();
+        private long bytes;
+        private int maxQueueDepth;
+        private long queueDepthSum;
+        private long queueDepthSamples;
+        private int stalls;
+        private long stallNs;
+        private int syncs;
+        private long syncNs;
+
+        synchronized void addWrite(long latencyNs, int size) {
+            writeLatency.add(latencyNs);
+            bytes += size;
+        }
+
+        synchronized void addSync(long latencyNs) {
+            syncs++;
+            syncNs += latencyNs;
+        }
+
+        synchronized void addStall(long durationNs) {
+            stalls++;
+            stallNs += durationNs;
+        }
+
+        void addQueued(int depth) {
+            int total = queued.incrementAndGet();
+            synchronized (this) {
+                maxQueueDepth = Math.max(maxQueueDepth, depth);
+                queueDepthSum += total;
+                queueDepthSamples++;
+            }
+        }
+
+        void removeQueued() {
+            queued.decrementAndGet();
+        }
+
+        void addPreallocated(long bytes) {
+            preallocated.addAndGet(bytes);
+        }
+
+        /**
+         * @return space preallocated in open files and not yet written
+         */
+        public long getPreallocatedBytes() {
+            return preallocated.get();
+        }
+
+        /**
+         * @return true if writing falls behind and more than half of the buffers wait to be written
+         */
+        public boolean isBackpressured() {
+            return queued.get() > POOL_SIZE / 2;
+        }
+
+        public synchronized long getWritePercentileUs(double percentile) {
+            return writeLatency.getPercentileUs(percentile);
+        }
+
+        public synchronized long getWrites() {
+            return writeLatency.getCount();
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return maximum number of buffers waiting to be written in a single file
+         */
+        public synchronized int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public synchronized float getAverageQueueDepth() {
+            return queueDepthSamples == 0 ? 0 : (float) queueDepthSum / queueDepthSamples;
+        }
+
+        /**
+         * @return number of times the caller was blocked because all buffers were waiting to be written
+         */
+        public synchronized int getStalls() {
+            return stalls;
+        }
+
+        public synchronized long getStallNs() {
+            return stallNs;
+        }
+
+        public synchronized int getSyncs() {
+            return syncs;
+        }
+
+        public synchronized long getSyncNs() {
+            return syncNs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "writes: " + writeLatency
+                    + " bytes: " + bytes
+                    + " queue avg: " + getAverageQueueDepth() + " max: " + maxQueueDepth
+                    + " stalls: " + stalls + " (" + stallNs / 1000000 + "ms)"
+                    + " syncs: " + syncs + " (" + syncNs / 1000000 + "ms)";
+        }
+    }
+}
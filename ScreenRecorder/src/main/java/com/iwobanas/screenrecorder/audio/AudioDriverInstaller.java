@@ -6,6 +6,7 @@ import android.util.Log;
 
 import com.iwobanas.screenrecorder.CameraOverlay;
 import com.iwobanas.screenrecorder.NativeCommands;
+import com.iwobanas.screenrecorder.ProcessWatcher;
 import com.iwobanas.screenrecorder.R;
 import com.iwobanas.screenrecorder.Utils;
 import com.iwobanas.screenrecorder.settings.Settings;
@@ -354,41 +355,28 @@ public class AudioDriverInstaller {
     }
 
     private void terminateMediaserver() throws InstallationException {
-        int pid = Utils.findProcessByCommand(MEDIASERVER_COMMAND);
+        ProcessWatcher watcher = ProcessWatcher.getInstance();
+        int pid = watcher.findProcess(MEDIASERVER_COMMAND);
         if (pid > 0) {
             NativeCommands.getInstance().termSignal(pid);
-            if (!waitForProcessToStop(pid, 1000, 100)) {
+            if (!watcher.waitForExit(pid, 1000)) {
                 Log.v(TAG, "mediaserver not terminating. killing");
                 NativeCommands.getInstance().killSignal(pid);
             }
-            if (!waitForProcessToStop(pid, 500, 100)) {
+            if (!watcher.waitForExit(pid, 500)) {
                 throw new InstallationException("Can't restart mediaserver");
             }
         }
     }
 
-    private boolean waitForProcessToStop(int pid, long timeout, long checkFrequency) {
-        long startTime = System.nanoTime();
-        long timeoutNs = timeout * 1000000l;
-        while ((System.nanoTime() - startTime) < timeoutNs) {
-            if (!Utils.processExists(pid)) {
-                return true;
-            }
-            try {
-                Thread.sleep(checkFrequency);
-            } catch (InterruptedException ignored) {}
-        }
-        return false;
-    }
-
     private void waitForMediaserver() throws InstallationException {
-        if (Utils.waitForProcess(MEDIASERVER_COMMAND, 7000) == -1) {
+        if (ProcessWatcher.getInstance().waitForProcess(MEDIASERVER_COMMAND, 7000) == -1) {
             throw new InstallationException("mediaserver not appearing");
         }
     }
 
     private boolean waitForModuleLoaded() throws InstallationException {
-        int mediaServerPid = Utils.waitForProcess(MEDIASERVER_COMMAND, 1000);
+        int mediaServerPid = ProcessWatcher.getInstance().waitForProcess(MEDIASERVER_COMMAND, 1000);
         boolean mediaServerDied = false;
 
         long startTime = System.nanoTime();
@@ -405,7 +393,7 @@ public class AudioDriverInstaller {
                     throw new InstallationException("mediaserver died");
                 } else {
                     mediaServerDied = true;
-                    mediaServerPid = Utils.waitForProcess(MEDIASERVER_COMMAND, 1000);
+                    mediaServerPid = ProcessWatcher.getInstance().waitForProcess(MEDIASERVER_COMMAND, 1000);
                 }
             }
             try {
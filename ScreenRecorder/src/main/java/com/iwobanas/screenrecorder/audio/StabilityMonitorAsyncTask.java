@@ -4,19 +4,24 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.iwobanas.screenrecorder.Utils;
+import com.iwobanas.screenrecorder.ProcessWatcher;
 import com.iwobanas.screenrecorder.stats.AudioInstallationStatsAsyncTask;
 
-public class StabilityMonitorAsyncTask extends AsyncTask<Void, Void, Boolean>{
+public class StabilityMonitorAsyncTask extends AsyncTask<Void, Void, Boolean> implements ProcessWatcher.Listener {
     private static final String TAG = "scr_StabilityMonitor";
     private static final long MAX_EXEC_TIME = 20000000000l; // 20s
     private static final int MAX_RESTARTS = 2;
     private static final String MEDIA_SERVER_COMMAND = "/system/bin/mediaserver";
+    // waits are split so that cancellation and timeout are noticed
+    private static final long WAIT_SLICE_MS = 500;
 
     private final Context context;
     private final Long installId;
     private final AudioDriver audioDriver;
     private long startTime;
+    // updated on the process watcher thread
+    private int running;
+    private int deaths;
 
     public StabilityMonitorAsyncTask(Context context, AudioDriver audioDriver, Long installId) {
         this.audioDriver = audioDriver;
@@ -28,43 +33,44 @@ public class StabilityMonitorAsyncTask extends AsyncTask<Void, Void, Boolean>{
     protected Boolean doInBackground(Void... params) {
         Log.v(TAG, "Starting");
         startTime = System.nanoTime();
-        int processNumber = 0;
-
-        while (shouldContinue()) {
-
-            int pid = getPid();
-            if (pid > 0) {
-                processNumber++;
-                Log.v(TAG, "New process found");
-                while (Utils.processExists(pid) && shouldContinue()) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ignored) {}
+        ProcessWatcher watcher = ProcessWatcher.getInstance();
+        watcher.addListener(MEDIA_SERVER_COMMAND, this);
+        try {
+            synchronized (this) {
+                while (shouldContinue() && deaths < MAX_RESTARTS) {
+                    wait(WAIT_SLICE_MS);
                 }
-                if (shouldContinue()) {
-                    Log.v(TAG, "Process died");
-                    if (processNumber >= MAX_RESTARTS) {
-                        Log.w(TAG, "Detected " + processNumber + " restarts.");
-                        return false;
-                    }
+                if (deaths >= MAX_RESTARTS) {
+                    Log.w(TAG, "Detected " + deaths + " restarts.");
+                    return false;
+                }
+                if (running == 0 && !isCancelled()) {
+                    Log.w(TAG, "No process found");
+                    return false;
                 }
-            } else if (!isCancelled()) {
-                Log.w(TAG, "No process found");
-                return false;
             }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted");
+        } finally {
+            watcher.removeListener(this);
+            Log.v(TAG, "Process watcher " + watcher.getScanStats());
         }
         return true;
     }
 
-    private int getPid() {
-        int pid = Utils.findProcessByCommand(MEDIA_SERVER_COMMAND);
-        while (pid < 1 && shouldContinue()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignored) {}
-            pid = Utils.findProcessByCommand(MEDIA_SERVER_COMMAND);
-        }
-        return pid;
+    @Override
+    public synchronized void onProcessStarted(String command, int pid) {
+        Log.v(TAG, "New process found");
+        running++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onProcessDied(String command, int pid) {
+        Log.v(TAG, "Process died");
+        running--;
+        deaths++;
+        notifyAll();
     }
 
     private boolean shouldContinue() {
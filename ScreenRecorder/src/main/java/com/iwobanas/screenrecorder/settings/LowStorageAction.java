@@ -0,0 +1,19 @@
+package com.iwobanas.screenrecorder.settings;
+
+/**
+ * What to do when free space on the output volume is about to run out.
+ */
+public enum LowStorageAction {
+    /**
+     * Only warn, recording fails when storage is full.
+     */
+    NONE,
+    /**
+     * Stop and save the recording.
+     */
+    STOP,
+    /**
+     * Continue in a new file on the volume with the most free space, stop if there is none.
+     */
+    NEXT_VOLUME
+}
@@ -22,6 +22,19 @@ public enum SamplingRate {
             SAMPLING_RATE_48_KHZ
     );
 
+    // no-root recordings resample captured audio so any rate supported by AAC encoders can be used
+    public static final List<SamplingRate> RESAMPLED = Arrays.asList(
+            SAMPLING_RATE_8_KHZ,
+            SAMPLING_RATE_11_KHZ,
+            SAMPLING_RATE_12_KHZ,
+            SAMPLING_RATE_16_KHZ,
+            SAMPLING_RATE_22_KHZ,
+            SAMPLING_RATE_24_KHZ,
+            SAMPLING_RATE_32_KHZ,
+            SAMPLING_RATE_44_KHZ,
+            SAMPLING_RATE_48_KHZ
+    );
+
     private int samplingRate;
     private String label;
 
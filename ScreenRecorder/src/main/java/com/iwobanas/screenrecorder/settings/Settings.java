@@ -39,6 +39,23 @@ public class Settings {
     private static final String DOCUMENT_DIR_NAME = "DOCUMENT_DIR_NAME";
     private static final String VIDEO_ENCODER = "VIDEO_ENCODER";
     private static final String VERTICAL_FRAMES = "VERTICAL_FRAMES";
+    private static final String EVENT_DRIVEN_ENCODERS = "EVENT_DRIVEN_ENCODERS";
+    private static final String FRAGMENTED_OUTPUT = "FRAGMENTED_OUTPUT";
+    private static final String FRAGMENT_DURATION = "FRAGMENT_DURATION";
+    private static final String WRITE_BEHIND = "WRITE_BEHIND";
+    private static final String SYNC_POLICY = "SYNC_POLICY";
+    private static final String LOW_STORAGE_ACTION = "LOW_STORAGE_ACTION";
+    private static final String SEGMENTED_OUTPUT = "SEGMENTED_OUTPUT";
+    private static final String SEGMENT_SIZE = "SEGMENT_SIZE";
+    private static final String SEGMENT_DURATION = "SEGMENT_DURATION";
+    private static final String REPLAY_BUFFER = "REPLAY_BUFFER";
+    private static final String REPLAY_DURATION = "REPLAY_DURATION";
+    private static final String ADAPTIVE_BITRATE = "ADAPTIVE_BITRATE";
+    private static final String SEPARATE_AUDIO_TRACKS = "SEPARATE_AUDIO_TRACKS";
+    private static final String MIX_INTERNAL_AUDIO = "MIX_INTERNAL_AUDIO";
+    private static final String COMPACT_SILENCE = "COMPACT_SILENCE";
+    private static final String VARIABLE_FRAME_RATE = "VARIABLE_FRAME_RATE";
+    private static final String MAX_FRAME_GAP = "MAX_FRAME_GAP";
     private static final String SHOW_UNSTABLE = "SHOW_UNSTABLE";
     private static final String SHOW_ADVANCED = "SHOW_ADVANCED";
     private static final String DISABLE_AUDIO_WARNING = "DISABLE_AUDIO_WARNING";
@@ -84,6 +101,23 @@ public class Settings {
     private int videoEncoder = VideoEncoder.H264;
     private int defaultVideoEncoder = VideoEncoder.H264;
     private boolean verticalFrames = false;
+    private boolean eventDrivenEncoders = false;
+    private boolean fragmentedOutput = false;
+    private int fragmentDuration = 1000;
+    private boolean writeBehind = true;
+    private SyncPolicy syncPolicy = SyncPolicy.CLOSE;
+    private LowStorageAction lowStorageAction = LowStorageAction.STOP;
+    private boolean segmentedOutput = false;
+    private int segmentSize = 2048;
+    private int segmentDuration = 0;
+    private boolean replayBuffer = false;
+    private int replayDuration = 30;
+    private boolean adaptiveBitrate = false;
+    private boolean separateAudioTracks = false;
+    private boolean mixInternalAudio = false;
+    private boolean compactSilence = false;
+    private boolean variableFrameRate = false;
+    private int maxFrameGap = 1000;
     private File outputDir;
     private File defaultOutputDir;
     private Uri documentDirUri;
@@ -212,6 +246,24 @@ public class Settings {
 
         verticalFrames = preferences.getBoolean(VERTICAL_FRAMES, false);
 
+        eventDrivenEncoders = preferences.getBoolean(EVENT_DRIVEN_ENCODERS, false);
+        fragmentedOutput = preferences.getBoolean(FRAGMENTED_OUTPUT, false);
+        fragmentDuration = preferences.getInt(FRAGMENT_DURATION, 1000);
+        writeBehind = preferences.getBoolean(WRITE_BEHIND, true);
+        syncPolicy = SyncPolicy.valueOf(preferences.getString(SYNC_POLICY, SyncPolicy.CLOSE.name()));
+        lowStorageAction = LowStorageAction.valueOf(preferences.getString(LOW_STORAGE_ACTION, LowStorageAction.STOP.name()));
+        segmentedOutput = preferences.getBoolean(SEGMENTED_OUTPUT, false);
+        segmentSize = preferences.getInt(SEGMENT_SIZE, 2048);
+        segmentDuration = preferences.getInt(SEGMENT_DURATION, 0);
+        replayBuffer = preferences.getBoolean(REPLAY_BUFFER, false);
+        replayDuration = preferences.getInt(REPLAY_DURATION, 30);
+        adaptiveBitrate = preferences.getBoolean(ADAPTIVE_BITRATE, false);
+        separateAudioTracks = preferences.getBoolean(SEPARATE_AUDIO_TRACKS, false);
+        mixInternalAudio = preferences.getBoolean(MIX_INTERNAL_AUDIO, false);
+        compactSilence = preferences.getBoolean(COMPACT_SILENCE, false);
+        variableFrameRate = preferences.getBoolean(VARIABLE_FRAME_RATE, false);
+        maxFrameGap = preferences.getInt(MAX_FRAME_GAP, 1000);
+
         showAdvanced = preferences.getBoolean(SHOW_ADVANCED, false);
         showUnstable = preferences.getBoolean(SHOW_UNSTABLE, false);
         disableAudioWarning = preferences.getBoolean(DISABLE_AUDIO_WARNING, false);
@@ -614,6 +666,177 @@ public class Settings {
         return verticalFrames;
     }
 
+    public boolean getEventDrivenEncoders() {
+        return eventDrivenEncoders;
+    }
+
+    public void setEventDrivenEncoders(boolean eventDrivenEncoders) {
+        this.eventDrivenEncoders = eventDrivenEncoders;
+        settingsModified(preferences.edit().putBoolean(EVENT_DRIVEN_ENCODERS, eventDrivenEncoders));
+    }
+
+    public boolean getFragmentedOutput() {
+        return fragmentedOutput;
+    }
+
+    public void setFragmentedOutput(boolean fragmentedOutput) {
+        this.fragmentedOutput = fragmentedOutput;
+        settingsModified(preferences.edit().putBoolean(FRAGMENTED_OUTPUT, fragmentedOutput));
+    }
+
+    /**
+     * @return duration of a single fragment of crash tolerant MP4 output in milliseconds
+     */
+    public int getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    public void setFragmentDuration(int fragmentDuration) {
+        this.fragmentDuration = fragmentDuration;
+        settingsModified(preferences.edit().putInt(FRAGMENT_DURATION, fragmentDuration));
+    }
+
+    /**
+     * @return true if fragmented output should be written to storage on a background thread
+     */
+    public boolean getWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        settingsModified(preferences.edit().putBoolean(WRITE_BEHIND, writeBehind));
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        settingsModified(preferences.edit().putString(SYNC_POLICY, syncPolicy.name()));
+    }
+
+    public LowStorageAction getLowStorageAction() {
+        return lowStorageAction;
+    }
+
+    public void setLowStorageAction(LowStorageAction lowStorageAction) {
+        this.lowStorageAction = lowStorageAction;
+        settingsModified(preferences.edit().putString(LOW_STORAGE_ACTION, lowStorageAction.name()));
+    }
+
+    public boolean getSegmentedOutput() {
+        return segmentedOutput;
+    }
+
+    public void setSegmentedOutput(boolean segmentedOutput) {
+        this.segmentedOutput = segmentedOutput;
+        settingsModified(preferences.edit().putBoolean(SEGMENTED_OUTPUT, segmentedOutput));
+    }
+
+    /**
+     * @return size in MB after which recording continues in a new file, 0 if size is not limited
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        settingsModified(preferences.edit().putInt(SEGMENT_SIZE, segmentSize));
+    }
+
+    /**
+     * @return duration in minutes after which recording continues in a new file, 0 if duration is not limited
+     */
+    public int getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    public void setSegmentDuration(int segmentDuration) {
+        this.segmentDuration = segmentDuration;
+        settingsModified(preferences.edit().putInt(SEGMENT_DURATION, segmentDuration));
+    }
+
+    public boolean getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    public void setReplayBuffer(boolean replayBuffer) {
+        this.replayBuffer = replayBuffer;
+        settingsModified(preferences.edit().putBoolean(REPLAY_BUFFER, replayBuffer));
+    }
+
+    /**
+     * @return number of seconds kept in memory and saved on request in replay buffer mode
+     */
+    public int getReplayDuration() {
+        return replayDuration;
+    }
+
+    public void setReplayDuration(int replayDuration) {
+        this.replayDuration = replayDuration;
+        settingsModified(preferences.edit().putInt(REPLAY_DURATION, replayDuration));
+    }
+
+    public boolean getAdaptiveBitrate() {
+        return adaptiveBitrate;
+    }
+
+    public void setAdaptiveBitrate(boolean adaptiveBitrate) {
+        this.adaptiveBitrate = adaptiveBitrate;
+        settingsModified(preferences.edit().putBoolean(ADAPTIVE_BITRATE, adaptiveBitrate));
+    }
+
+    public boolean getSeparateAudioTracks() {
+        return separateAudioTracks;
+    }
+
+    public void setSeparateAudioTracks(boolean separateAudioTracks) {
+        this.separateAudioTracks = separateAudioTracks;
+        settingsModified(preferences.edit().putBoolean(SEPARATE_AUDIO_TRACKS, separateAudioTracks));
+    }
+
+    public boolean getMixInternalAudio() {
+        return mixInternalAudio;
+    }
+
+    public void setMixInternalAudio(boolean mixInternalAudio) {
+        this.mixInternalAudio = mixInternalAudio;
+        settingsModified(preferences.edit().putBoolean(MIX_INTERNAL_AUDIO, mixInternalAudio));
+    }
+
+    public boolean getCompactSilence() {
+        return compactSilence;
+    }
+
+    public void setCompactSilence(boolean compactSilence) {
+        this.compactSilence = compactSilence;
+        settingsModified(preferences.edit().putBoolean(COMPACT_SILENCE, compactSilence));
+    }
+
+    public boolean getVariableFrameRate() {
+        return variableFrameRate;
+    }
+
+    public void setVariableFrameRate(boolean variableFrameRate) {
+        this.variableFrameRate = variableFrameRate;
+        settingsModified(preferences.edit().putBoolean(VARIABLE_FRAME_RATE, variableFrameRate));
+    }
+
+    /**
+     * @return maximum time in milliseconds between video frames in variable frame rate mode
+     */
+    public int getMaxFrameGap() {
+        return maxFrameGap;
+    }
+
+    public void setMaxFrameGap(int maxFrameGap) {
+        this.maxFrameGap = maxFrameGap;
+        settingsModified(preferences.edit().putInt(MAX_FRAME_GAP, maxFrameGap));
+    }
+
     public void restoreDefault() {
         SharedPreferences.Editor editor = preferences.edit();
 
@@ -690,6 +913,57 @@ public class Settings {
         verticalFrames = false;
         editor.remove(VERTICAL_FRAMES);
 
+        eventDrivenEncoders = false;
+        editor.remove(EVENT_DRIVEN_ENCODERS);
+
+        fragmentedOutput = false;
+        editor.remove(FRAGMENTED_OUTPUT);
+
+        fragmentDuration = 1000;
+        editor.remove(FRAGMENT_DURATION);
+
+        writeBehind = true;
+        editor.remove(WRITE_BEHIND);
+
+        syncPolicy = SyncPolicy.CLOSE;
+        editor.remove(SYNC_POLICY);
+
+        lowStorageAction = LowStorageAction.STOP;
+        editor.remove(LOW_STORAGE_ACTION);
+
+        segmentedOutput = false;
+        editor.remove(SEGMENTED_OUTPUT);
+
+        segmentSize = 2048;
+        editor.remove(SEGMENT_SIZE);
+
+        segmentDuration = 0;
+        editor.remove(SEGMENT_DURATION);
+
+        replayBuffer = false;
+        editor.remove(REPLAY_BUFFER);
+
+        replayDuration = 30;
+        editor.remove(REPLAY_DURATION);
+
+        adaptiveBitrate = false;
+        editor.remove(ADAPTIVE_BITRATE);
+
+        separateAudioTracks = false;
+        editor.remove(SEPARATE_AUDIO_TRACKS);
+
+        mixInternalAudio = false;
+        editor.remove(MIX_INTERNAL_AUDIO);
+
+        compactSilence = false;
+        editor.remove(COMPACT_SILENCE);
+
+        variableFrameRate = false;
+        editor.remove(VARIABLE_FRAME_RATE);
+
+        maxFrameGap = 1000;
+        editor.remove(MAX_FRAME_GAP);
+
         settingsModified = false;
         editor.remove(SETTINGS_MODIFIED);
 
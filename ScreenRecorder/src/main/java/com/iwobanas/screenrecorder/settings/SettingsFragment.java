@@ -48,10 +48,22 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
     public static final String KEY_VIDEO_BITRATE = "video_bitrate";
     public static final String KEY_FRAME_RATE = "frame_rate";
     public static final String KEY_VERTICAL_FRAMES = "vertical_frames";
+    public static final String KEY_EVENT_DRIVEN_ENCODERS = "event_driven_encoders";
+    public static final String KEY_FRAGMENTED_OUTPUT = "fragmented_output";
+    public static final String KEY_FRAGMENT_DURATION = "fragment_duration";
+    public static final String KEY_WRITE_BEHIND = "write_behind";
+    public static final String KEY_LOW_STORAGE_ACTION = "low_storage_action";
+    public static final String KEY_SEGMENTED_OUTPUT = "segmented_output";
+    public static final String KEY_REPLAY_BUFFER = "replay_buffer";
+    public static final String KEY_ADAPTIVE_BITRATE = "adaptive_bitrate";
+    public static final String KEY_VARIABLE_FRAME_RATE = "variable_frame_rate";
     public static final String KEY_AUDIO = "audio";
     public static final String KEY_AUDIO_SOURCE = "audio_source";
     public static final String KEY_SAMPLING_RATE = "sampling_rate";
     public static final String KEY_STEREO = "stereo";
+    public static final String KEY_SEPARATE_AUDIO_TRACKS = "separate_audio_tracks";
+    public static final String KEY_MIX_INTERNAL_AUDIO = "mix_internal_audio";
+    public static final String KEY_COMPACT_SILENCE = "compact_silence";
     public static final String KEY_MIC_GAIN = "mic_gain";
     public static final String KEY_OTHER = "other";
     public static final String KEY_SHOW_CAMERA = "show_camera";
@@ -79,10 +91,22 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
     private ListPreference videoBitratePreference;
     private ListPreference frameRatePreference;
     private CheckBoxPreference verticalFramesPreference;
+    private CheckBoxPreference eventDrivenEncodersPreference;
+    private CheckBoxPreference fragmentedOutputPreference;
+    private ListPreference fragmentDurationPreference;
+    private CheckBoxPreference writeBehindPreference;
+    private ListPreference lowStorageActionPreference;
+    private CheckBoxPreference segmentedOutputPreference;
+    private CheckBoxPreference replayBufferPreference;
+    private CheckBoxPreference adaptiveBitratePreference;
+    private CheckBoxPreference variableFrameRatePreference;
     private PreferenceCategory audioCategory;
     private ListPreference audioSourcePreference;
     private ListPreference samplingRatePreference;
     private CheckBoxPreference stereoPreference;
+    private CheckBoxPreference separateAudioTracksPreference;
+    private CheckBoxPreference mixInternalAudioPreference;
+    private CheckBoxPreference compactSilencePreference;
     private SliderPreference micGainPreference;
     private PreferenceCategory otherCategory;
     private SliderPreference cameraAlphaPreference;
@@ -148,6 +172,29 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         verticalFramesPreference = (CheckBoxPreference) findPreference(KEY_VERTICAL_FRAMES);
         verticalFramesPreference.setOnPreferenceChangeListener(this);
 
+        eventDrivenEncodersPreference = (CheckBoxPreference) findPreference(KEY_EVENT_DRIVEN_ENCODERS);
+        eventDrivenEncodersPreference.setOnPreferenceChangeListener(this);
+
+        fragmentedOutputPreference = (CheckBoxPreference) findPreference(KEY_FRAGMENTED_OUTPUT);
+        fragmentedOutputPreference.setOnPreferenceChangeListener(this);
+        fragmentDurationPreference = (ListPreference) findPreference(KEY_FRAGMENT_DURATION);
+        fragmentDurationPreference.setOnPreferenceChangeListener(this);
+        writeBehindPreference = (CheckBoxPreference) findPreference(KEY_WRITE_BEHIND);
+        writeBehindPreference.setOnPreferenceChangeListener(this);
+        lowStorageActionPreference = (ListPreference) findPreference(KEY_LOW_STORAGE_ACTION);
+        lowStorageActionPreference.setOnPreferenceChangeListener(this);
+
+        segmentedOutputPreference = (CheckBoxPreference) findPreference(KEY_SEGMENTED_OUTPUT);
+        segmentedOutputPreference.setOnPreferenceChangeListener(this);
+
+        replayBufferPreference = (CheckBoxPreference) findPreference(KEY_REPLAY_BUFFER);
+        replayBufferPreference.setOnPreferenceChangeListener(this);
+
+        adaptiveBitratePreference = (CheckBoxPreference) findPreference(KEY_ADAPTIVE_BITRATE);
+        adaptiveBitratePreference.setOnPreferenceChangeListener(this);
+        variableFrameRatePreference = (CheckBoxPreference) findPreference(KEY_VARIABLE_FRAME_RATE);
+        variableFrameRatePreference.setOnPreferenceChangeListener(this);
+
         audioCategory = (PreferenceCategory) findPreference(KEY_AUDIO);
         audioSourcePreference = (ListPreference) findPreference(KEY_AUDIO_SOURCE);
         audioSourcePreference.setOnPreferenceChangeListener(this);
@@ -157,6 +204,12 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
 
         stereoPreference = (CheckBoxPreference) findPreference(KEY_STEREO);
         stereoPreference.setOnPreferenceChangeListener(this);
+        separateAudioTracksPreference = (CheckBoxPreference) findPreference(KEY_SEPARATE_AUDIO_TRACKS);
+        separateAudioTracksPreference.setOnPreferenceChangeListener(this);
+        mixInternalAudioPreference = (CheckBoxPreference) findPreference(KEY_MIX_INTERNAL_AUDIO);
+        mixInternalAudioPreference.setOnPreferenceChangeListener(this);
+        compactSilencePreference = (CheckBoxPreference) findPreference(KEY_COMPACT_SILENCE);
+        compactSilencePreference.setOnPreferenceChangeListener(this);
 
         micGainPreference = (SliderPreference) findPreference(KEY_MIC_GAIN);
         micGainPreference.setOnPreferenceChangeListener(this);
@@ -238,6 +291,21 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         verticalFramesPreference.setChecked(settings.getVerticalFrames());
         verticalFramesPreference.setEnabled(!settings.isNoRootVideoEncoder());
 
+        eventDrivenEncodersPreference.setChecked(settings.getEventDrivenEncoders());
+        fragmentedOutputPreference.setChecked(settings.getFragmentedOutput());
+        fragmentDurationPreference.setValue(String.valueOf(settings.getFragmentDuration()));
+        fragmentDurationPreference.setSummary(formatFragmentDurationEntry(settings.getFragmentDuration()));
+        fragmentDurationPreference.setEnabled(settings.getFragmentedOutput());
+        writeBehindPreference.setChecked(settings.getWriteBehind());
+        writeBehindPreference.setEnabled(settings.getFragmentedOutput());
+        lowStorageActionPreference.setValue(settings.getLowStorageAction().name());
+        lowStorageActionPreference.setSummary(formatLowStorageActionSummary(settings.getLowStorageAction()));
+        segmentedOutputPreference.setChecked(settings.getSegmentedOutput());
+        replayBufferPreference.setChecked(settings.getReplayBuffer());
+        adaptiveBitratePreference.setChecked(settings.getAdaptiveBitrate());
+        variableFrameRatePreference.setChecked(settings.getVariableFrameRate());
+        variableFrameRatePreference.setEnabled(settings.getTimeLapse() == 1);
+
         audioSourcePreference.setValue(settings.getAudioSource().name());
         audioSourcePreference.setSummary(formatAudioSourceSummary(settings.getAudioSource(), settings.getTimeLapse() != 1));
         audioSourcePreference.setEnabled(settings.getTimeLapse() == 1);
@@ -249,9 +317,19 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         stereoPreference.setChecked(settings.getStereo());
         stereoPreference.setEnabled(settings.getTimeLapse() == 1 && !settings.getAudioSource().equals(AudioSource.MUTE));
 
+        separateAudioTracksPreference.setChecked(settings.getSeparateAudioTracks());
+        separateAudioTracksPreference.setEnabled(settings.getTimeLapse() == 1 && !settings.getAudioSource().equals(AudioSource.MUTE));
+
+        mixInternalAudioPreference.setChecked(settings.getMixInternalAudio());
+        mixInternalAudioPreference.setEnabled(settings.getTimeLapse() == 1 && !settings.getAudioSource().equals(AudioSource.MUTE)
+                && !settings.getSeparateAudioTracks());
+
+        compactSilencePreference.setChecked(settings.getCompactSilence());
+        compactSilencePreference.setEnabled(settings.getTimeLapse() == 1 && !settings.getAudioSource().equals(AudioSource.MUTE));
+
         micGainPreference.setValue(gainToIndex(settings.getMicGain()));
         micGainPreference.setSummary(formatMicGain());
-        micGainPreference.setEnabled(settings.getTimeLapse() == 1 && settings.getAudioSource() == AudioSource.MIX);
+        micGainPreference.setEnabled(settings.getTimeLapse() == 1 && isMicMixed());
 
         hideIconPreference.setChecked(settings.getHideIcon());
         showTouchesPreference.setChecked(settings.getShowTouches());
@@ -280,6 +358,18 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         return "";
     }
 
+    private String formatLowStorageActionSummary(LowStorageAction action) {
+        switch (action) {
+            case NONE:
+                return getString(R.string.settings_low_storage_none);
+            case STOP:
+                return getString(R.string.settings_low_storage_stop);
+            case NEXT_VOLUME:
+                return getString(R.string.settings_low_storage_next_volume);
+        }
+        return "";
+    }
+
     private String formatTimeLapseSummary(int timeLapse) {
         if (timeLapse == 1) {
             return getString(R.string.settings_time_lapse_summary_no_time_lapse);
@@ -360,6 +450,15 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         }
 
         addRemovePreference(settings.getShowAdvanced(), KEY_VERTICAL_FRAMES, verticalFramesPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_EVENT_DRIVEN_ENCODERS, eventDrivenEncodersPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_FRAGMENTED_OUTPUT, fragmentedOutputPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_FRAGMENT_DURATION, fragmentDurationPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_WRITE_BEHIND, writeBehindPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_LOW_STORAGE_ACTION, lowStorageActionPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_SEGMENTED_OUTPUT, segmentedOutputPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_REPLAY_BUFFER, replayBufferPreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_ADAPTIVE_BITRATE, adaptiveBitratePreference, videoCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_VARIABLE_FRAME_RATE, variableFrameRatePreference, videoCategory);
 
         CharSequence[] mainEntries = getResources().getStringArray(settings.isRootEnabled() ? R.array.audio_source_entries : R.array.audio_source_entries_no_root);
         CharSequence[] entries = new CharSequence[mainEntries.length];
@@ -390,7 +489,16 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         timeLapsePreference.setEntryValues(timeLapseValues);
         timeLapsePreference.setEntries(getTimeLapseEntries(timeLapseValues));
 
-        addRemovePreference(settings.isRootFlavor(), KEY_MIC_GAIN, micGainPreference, audioCategory);
+        String[] fragmentDurationValues = getResources().getStringArray(R.array.fragment_duration_values);
+        fragmentDurationPreference.setEntryValues(fragmentDurationValues);
+        fragmentDurationPreference.setEntries(getFragmentDurationEntries(fragmentDurationValues));
+
+        // capturing playback of other apps is available since Android 10
+        boolean playbackCapture = settings.getShowAdvanced() && settings.isNoRootVideoEncoder() && Build.VERSION.SDK_INT >= 29;
+        addRemovePreference(settings.isRootFlavor() || playbackCapture, KEY_MIC_GAIN, micGainPreference, audioCategory);
+        addRemovePreference(playbackCapture, KEY_SEPARATE_AUDIO_TRACKS, separateAudioTracksPreference, audioCategory);
+        addRemovePreference(playbackCapture, KEY_MIX_INTERNAL_AUDIO, mixInternalAudioPreference, audioCategory);
+        addRemovePreference(settings.getShowAdvanced() && settings.isNoRootVideoEncoder(), KEY_COMPACT_SILENCE, compactSilencePreference, audioCategory);
 
         addRemovePreference(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP, KEY_DOCUMENT_DIR, documentDirPreference, otherCategory);
     }
@@ -408,6 +516,9 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
             }
             samplingRatePreference.setEntryValues(getSamplingRateEntryValues(samplingRates));
             samplingRatePreference.setEntries(getSamplingRateEntries(samplingRates));
+        } else if (Settings.getInstance().isNoRootVideoEncoder()) {
+            samplingRatePreference.setEntryValues(getSamplingRateEntryValues(SamplingRate.RESAMPLED));
+            samplingRatePreference.setEntries(getSamplingRateEntries(SamplingRate.RESAMPLED));
         } else {
             samplingRatePreference.setEntryValues(getSamplingRateEntryValues(SamplingRate.STANDARD));
             samplingRatePreference.setEntries(getSamplingRateEntries(SamplingRate.STANDARD));
@@ -669,6 +780,18 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         return getString(R.string.settings_time_lapse_entry, timeLapse);
     }
 
+    private String[] getFragmentDurationEntries(String[] values) {
+        String[] entries = new String[values.length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = formatFragmentDurationEntry(Integer.parseInt(values[i]));
+        }
+        return entries;
+    }
+
+    private String formatFragmentDurationEntry(int durationMs) {
+        return getString(R.string.settings_fragment_duration_entry, durationMs / 1000f);
+    }
+
     private String formatVideoEncoderSummary(int videoEncoder) {
         switch (videoEncoder) {
             case VideoEncoder.FFMPEG_MPEG_4:
@@ -776,9 +899,17 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
         return (int) (20.0 * Math.log10(gain));
     }
 
+    private boolean isMicMixed() {
+        if (settings.isNoRootVideoEncoder()) {
+            return settings.getMixInternalAudio() && !settings.getSeparateAudioTracks();
+        }
+        return settings.getAudioSource() == AudioSource.MIX;
+    }
+
     private String formatMicGain() {
-        if (settings.getAudioSource() != AudioSource.MIX) {
-            return getString(R.string.settings_mic_gain_summary_mix_only, getString(R.string.settings_audio_mix));
+        if (!isMicMixed()) {
+            int mixLabel = settings.isNoRootVideoEncoder() ? R.string.settings_mix_internal_audio : R.string.settings_audio_mix;
+            return getString(R.string.settings_mic_gain_summary_mix_only, getString(mixLabel));
         }
         if (settings.getMicGain() == 1) {
             return getString(R.string.settings_mic_gain_summary_default);
@@ -861,6 +992,30 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
 
         } else if (preference == verticalFramesPreference) {
             settings.setVerticalFrames(selected);
+        } else if (preference == eventDrivenEncodersPreference) {
+            settings.setEventDrivenEncoders(selected);
+        } else if (preference == fragmentedOutputPreference) {
+            settings.setFragmentedOutput(selected);
+            fragmentDurationPreference.setEnabled(selected);
+            writeBehindPreference.setEnabled(selected);
+        } else if (preference == fragmentDurationPreference) {
+            int durationMs = Integer.parseInt(valueString);
+            settings.setFragmentDuration(durationMs);
+            preference.setSummary(formatFragmentDurationEntry(durationMs));
+        } else if (preference == writeBehindPreference) {
+            settings.setWriteBehind(selected);
+        } else if (preference == lowStorageActionPreference) {
+            LowStorageAction action = LowStorageAction.valueOf(valueString);
+            settings.setLowStorageAction(action);
+            preference.setSummary(formatLowStorageActionSummary(action));
+        } else if (preference == segmentedOutputPreference) {
+            settings.setSegmentedOutput(selected);
+        } else if (preference == replayBufferPreference) {
+            settings.setReplayBuffer(selected);
+        } else if (preference == adaptiveBitratePreference) {
+            settings.setAdaptiveBitrate(selected);
+        } else if (preference == variableFrameRatePreference) {
+            settings.setVariableFrameRate(selected);
         } else if (preference == audioSourcePreference) {
             AudioSource source = AudioSource.valueOf(valueString);
             settings.setAudioSource(source);
@@ -878,6 +1033,17 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
             preference.setSummary(rate.getLabel());
         } else if (preference == stereoPreference) {
             settings.setStereo(selected);
+        } else if (preference == separateAudioTracksPreference) {
+            settings.setSeparateAudioTracks(selected);
+            mixInternalAudioPreference.setEnabled(!selected);
+            micGainPreference.setEnabled(isMicMixed());
+            micGainPreference.setSummary(formatMicGain());
+        } else if (preference == compactSilencePreference) {
+            settings.setCompactSilence(selected);
+        } else if (preference == mixInternalAudioPreference) {
+            settings.setMixInternalAudio(selected);
+            micGainPreference.setEnabled(isMicMixed());
+            micGainPreference.setSummary(formatMicGain());
         } else if (preference == micGainPreference) {
             settings.setMicGain(indexToGain((Integer) newValue));
             preference.setSummary(formatMicGain());
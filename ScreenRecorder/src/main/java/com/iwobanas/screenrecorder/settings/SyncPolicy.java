@@ -0,0 +1,19 @@
+package com.iwobanas.screenrecorder.settings;
+
+/**
+ * When recording output written in background is flushed to storage with fsync.
+ */
+public enum SyncPolicy {
+    /**
+     * Never, data reaches storage whenever the kernel writes it back.
+     */
+    NONE,
+    /**
+     * Once when the file is closed.
+     */
+    CLOSE,
+    /**
+     * After each complete MP4 fragment so that a crash or power loss doesn't cost more than a fragment.
+     */
+    FRAGMENT
+}
@@ -28,6 +28,18 @@ public enum VideoBitrate {
         throw new IllegalArgumentException("Invalid video bitrate: " + bitrate);
     }
 
+    /**
+     * @return the lowest bitrate adaptive bitrate control may use when recording at given bitrate
+     */
+    public static int getAdaptiveFloor(int bitrate) {
+        for (VideoBitrate videoBitrate : values()) {
+            if (videoBitrate.bitrate > 0 && videoBitrate.bitrate >= bitrate / 4) {
+                return videoBitrate.bitrate;
+            }
+        }
+        return bitrate;
+    }
+
     public String getCommand() {
         return String.valueOf(bitrate);
     }
@@ -28,6 +28,9 @@ public class RecordingStatsAsyncTask extends StatsBaseAsyncTask {
         params.put("validity", recordingInfo.formatValidity.getCode());
         params.put("front_camera", formatBoolean(Utils.hasFrontFacingCamera(context)));
         params.put("time_lapse", String.valueOf(timeLapse));
+        params.put("capture_fps", String.valueOf(recordingInfo.captureFps));
+        params.put("encoded_frames", String.valueOf(recordingInfo.encodedFrames));
+        params.put("encoded_frames_estimated", formatBoolean(recordingInfo.encodedFramesEstimated));
     }
 
     @Override
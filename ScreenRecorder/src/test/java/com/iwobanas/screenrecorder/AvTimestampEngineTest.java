@@ -0,0 +1,148 @@
+package com.iwobanas.screenrecorder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates audio capture against a fake monotonic clock. Chunks of 20ms are read late by a random
+ * scheduling delay, audio device clock may run slow or fast and data may be lost before reaching the app.
+ */
+public class AvTimestampEngineTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK_FRAMES = 960;
+    private static final int JITTER_US = 2000;
+
+    private final FakeClock clock = new FakeClock();
+    private final AvTimestampEngine engine = new AvTimestampEngine(clock, SAMPLE_RATE);
+    private final Random random = new Random(1);
+    private long frames;
+    private double capturedNs = 1e9; // real time at which the last read frame was captured
+    private double audioClockPpm; // positive if audio clock is slow
+
+    @Test
+    public void drift() {
+        audioClockPpm = 200;
+        capture(60000, JITTER_US);
+
+        assertEquals(200, engine.getDriftPpm(), 20);
+        assertEquals(0, engine.getDiscontinuities());
+        assertEquals(12000, engine.getCorrectionUs(), 500);
+        assertEquals(capturedNs / 1000, engine.getAudioTimeUs(frames), 1000);
+    }
+
+    @Test
+    public void noDriftKeepsSampleCountTimestamps() {
+        capture(30000, JITTER_US);
+
+        assertEquals(0, engine.getDriftPpm(), 20);
+        assertEquals(0, engine.getCorrectionUs(), 100);
+        assertEquals(capturedNs / 1000, engine.getAudioTimeUs(frames), 100);
+    }
+
+    @Test
+    public void jumpIsCorrectedAtOnce() {
+        capture(10000, JITTER_US);
+        lose(100);
+        capture(1100, JITTER_US);
+
+        assertEquals(1, engine.getDiscontinuities());
+        assertEquals(100000, engine.getCorrectionUs(), 1000);
+        assertEquals(capturedNs / 1000, engine.getAudioTimeUs(frames), 1000);
+        // lost data doesn't look like drift, what's left is envelope noise of jittered reads
+        assertEquals(0, engine.getDriftPpm(), 20);
+    }
+
+    @Test
+    public void smallJumpIsSlewed() {
+        capture(5000, 0);
+        long correctionUs = engine.getCorrectionUs();
+        lose(15);
+        long maxStepUs = 0;
+        for (int i = 0; i < 30 * 50; i++) {
+            readChunk(0, 0);
+            maxStepUs = Math.max(maxStepUs, Math.abs(engine.getCorrectionUs() - correctionUs));
+            correctionUs = engine.getCorrectionUs();
+        }
+
+        assertEquals(0, engine.getDiscontinuities());
+        // at most 1000ppm of a window which is one second rounded up to the next chunk
+        assertTrue("step " + maxStepUs, maxStepUs <= 1020);
+        assertEquals(15000, engine.getCorrectionUs(), 500);
+    }
+
+    @Test
+    public void slewIsClampedWhenAudioRunsAhead() {
+        audioClockPpm = -5000;
+        long lastUs = Long.MIN_VALUE;
+        for (int i = 0; i < 20 * 50; i++) {
+            readChunk(JITTER_US, 0);
+            long timeUs = engine.getAudioTimeUs(frames);
+            assertTrue("timestamps must be monotonic", timeUs > lastUs);
+            lastUs = timeUs;
+        }
+
+        // slope above the drift limit is not trusted
+        assertEquals(0, engine.getDriftPpm(), 0);
+        // 20 windows of at most 1000ppm
+        assertTrue("correction " + engine.getCorrectionUs(), engine.getCorrectionUs() >= -20 * 1020);
+        assertTrue("offset " + engine.getOffsetUs(), engine.getOffsetUs() < -50000);
+    }
+
+    @Test
+    public void inputLatencyShiftsTimestamps() {
+        // timestamp before the first read is reported so that latency applies from the anchor
+        clock.nowNs = (long) capturedNs + 5000000;
+        engine.onAudioTimestamp(0, 0, (long) capturedNs);
+        capture(3000, 0, 5000);
+
+        assertEquals(5000, engine.getInputLatencyUs());
+        assertEquals(capturedNs / 1000, engine.getAudioTimeUs(frames), 100);
+    }
+
+    private void capture(long durationMs, int maxJitterUs) {
+        capture(durationMs, maxJitterUs, 0);
+    }
+
+    /**
+     * Read chunks with given duration of audio.
+     */
+    private void capture(long durationMs, int maxJitterUs, int latencyUs) {
+        long chunks = durationMs * SAMPLE_RATE / 1000 / CHUNK_FRAMES;
+        for (long i = 0; i < chunks; i++) {
+            readChunk(maxJitterUs, latencyUs);
+        }
+    }
+
+    /**
+     * Read a single chunk delayed by latency and random jitter.
+     * The first read anchors the timeline and is not delayed by jitter so that expected corrections are exact.
+     */
+    private void readChunk(int maxJitterUs, int latencyUs) {
+        frames += CHUNK_FRAMES;
+        capturedNs += CHUNK_FRAMES * 1e9 / SAMPLE_RATE * (1 + audioClockPpm / 1e6);
+        long delayUs = latencyUs + (maxJitterUs > 0 && frames > CHUNK_FRAMES ? random.nextInt(maxJitterUs) : 0);
+        clock.nowNs = (long) capturedNs + delayUs * 1000;
+        engine.onAudioCaptured(frames);
+    }
+
+    /**
+     * Time passes without any frames reaching the app.
+     */
+    private void lose(long durationMs) {
+        capturedNs += durationMs * 1000000.0;
+    }
+
+    private static class FakeClock implements AvTimestampEngine.Clock {
+        long nowNs;
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.iwobanas.screenrecorder;
+
+import com.iwobanas.screenrecorder.NativeProcess.ProcessState;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throughput and latency of hot paths measured on the JVM running the tests.
+ * Results depend on the machine so nothing is asserted, numbers are only reported.
+ * Excluded from regular test runs, remove {@link Ignore} locally to run.
+ */
+@Ignore("benchmarks, run manually")
+public class Benchmarks {
+
+    private static final int WARM_UP_RUNS = 20;
+    private static final long MIN_DURATION_NS = 1000000000L;
+
+    @Test
+    public void resampler() throws Exception {
+        final PolyphaseResampler resampler = new PolyphaseResampler(48000, 44100, 2);
+        final ByteBuffer input = ByteBuffer.allocateDirect(48000 * 4);
+        for (int i = 0; i < 48000 * 2; i++) {
+            input.putShort((short) (i * 31));
+        }
+        final ByteBuffer output = ByteBuffer.allocateDirect(44100 * 4 + 4);
+        measure("48000->44100 stereo resampling", "input frames", 48000, new Operation() {
+            @Override
+            public void run() {
+                input.rewind();
+                output.clear();
+                resampler.process(input, output);
+            }
+        });
+    }
+
+    @Test
+    public void nativeProtocolDecoding() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            stream.write(NativeProtocol.encodeState(ProcessState.RECORDING));
+            stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_FPS, 30000 + i));
+        }
+        final byte[] data = stream.toByteArray();
+        final NativeProtocol.Handler handler = new NativeProtocol.Handler() {
+            @Override
+            public void onState(ProcessState state) {
+            }
+
+            @Override
+            public void onInputParams(int rotateView, int verticalInput, int adjustedRotation) {
+            }
+
+            @Override
+            public void onFps(float fps) {
+            }
+
+            @Override
+            public void onError(int exitValue) {
+            }
+
+            @Override
+            public void onSuVersion(String version) {
+            }
+
+            @Override
+            public void onProtocolAnnounced(int version) {
+            }
+
+            @Override
+            public void onCommandResult(int requestId, int result) {
+            }
+
+            @Override
+            public void onUnexpected(String message) {
+            }
+        };
+        measure("binary protocol decoding", "frames", 2000, new Operation() {
+            @Override
+            public void run() throws Exception {
+                NativeProtocol.Decoder decoder = new NativeProtocol.Decoder(new ByteArrayInputStream(data));
+                decoder.setBinary(true);
+                while (decoder.decode(handler)) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Plain sh starts much faster than su so the difference is the lower bound of what pooling saves.
+     */
+    @Test
+    public void rootShellPool() throws Exception {
+        final RootShellPool pool = new RootShellPool("sh");
+        try {
+            measure("pooled shell command", "commands", 1, new Operation() {
+                @Override
+                public void run() {
+                    pool.execute("true", 5000);
+                }
+            });
+        } finally {
+            pool.close();
+        }
+        measure("command in new shell session", "commands", 1, new Operation() {
+            @Override
+            public void run() {
+                RootShellPool newPool = new RootShellPool("sh");
+                newPool.execute("true", 5000);
+                newPool.close();
+            }
+        });
+    }
+
+    /**
+     * Scans /proc of the machine running the benchmark, extra sleep processes simulate a busy device.
+     */
+    @Test
+    public void processWatcherScan() throws Exception {
+        List<Process> processes = new ArrayList<Process>();
+        try {
+            for (int extra : new int[]{0, 500}) {
+                while (processes.size() < extra) {
+                    processes.add(new ProcessBuilder("sleep", "60").start());
+                }
+                Thread.sleep(200);
+                measure("first scan with " + extra + " extra processes", "scans", 1, new Operation() {
+                    @Override
+                    public void run() {
+                        new ProcessWatcher().findProcess("/system/bin/mediaserver");
+                    }
+                });
+                final ProcessWatcher watcher = new ProcessWatcher();
+                measure("incremental scan with " + extra + " extra processes", "scans", 1, new Operation() {
+                    @Override
+                    public void run() {
+                        watcher.findProcess("/system/bin/mediaserver");
+                    }
+                });
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Run the operation until it's compiled, then repeatedly for at least a second and report the rate.
+     * @param units number of units processed by a single run
+     */
+    private static void measure(String name, String unit, long units, Operation operation) throws Exception {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            operation.run();
+        }
+        long runs = 0;
+        long start = System.nanoTime();
+        long elapsedNs;
+        do {
+            operation.run();
+            runs++;
+            elapsedNs = System.nanoTime() - start;
+        } while (elapsedNs < MIN_DURATION_NS);
+        System.out.println(name + ": " + elapsedNs / runs / 1000 + "us per run, "
+                + Math.round(runs * units * 1e9 / elapsedNs) + " " + unit + "/s");
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,213 @@
+package com.iwobanas.screenrecorder;
+
+import com.iwobanas.screenrecorder.NativeProcess.ProcessState;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Process output is simulated with streams of frames encoded the way the native process encodes them.
+ */
+public class NativeProtocolTest {
+
+    @Test
+    public void framesRoundTrip() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ProcessState state : ProcessState.values()) {
+            stream.write(NativeProtocol.encodeState(state));
+        }
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_FPS, 29970));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_ERROR, -303));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_COMMAND_RESULT, 7, Integer.MIN_VALUE));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_INPUT_PARAMS, 1, 0, 270));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_SU_VERSION, "16 com.\u00e9xample:SUPERSU"));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_TEXT, "fps 12.5"));
+
+        List<String> expected = new ArrayList<String>();
+        for (ProcessState state : ProcessState.values()) {
+            expected.add("state " + state);
+        }
+        expected.addAll(Arrays.asList("fps 29.97", "error -303", "result 7 " + Integer.MIN_VALUE,
+                "input 1 0 270", "su 16 com.\u00e9xample:SUPERSU", "fps 12.5"));
+        assertEquals(expected, decodeAll(stream.toByteArray(), true));
+    }
+
+    @Test
+    public void textLines() throws IOException {
+        String output = "protocol 1\nstate READY\r\nrotateView 1 verticalInput 0 adjustedRotation 90\n"
+                + "fps abc\nerror 302\nsu version 2.46:SUPERSU\ncommand result |3|-1|failed\nstate UNKNOWN";
+        assertEquals(Arrays.asList("protocol 1", "state READY", "input 1 0 90", "fps -1.0", "error 302",
+                "su 2.46:SUPERSU", "result 3 -1", "unexpected"), decodeAll(output.getBytes("UTF-8"), false));
+    }
+
+    @Test
+    public void binaryModeStartsAfterAcknowledgement() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("protocol 1\nstate READY\ncommand result |0|1|ok\n".getBytes("UTF-8"));
+        stream.write(NativeProtocol.encodeState(ProcessState.STARTING));
+        final NativeProtocol.Decoder decoder = new NativeProtocol.Decoder(new ByteArrayInputStream(stream.toByteArray()));
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public void onCommandResult(int requestId, int result) {
+                super.onCommandResult(requestId, result);
+                decoder.setBinary(requestId == NativeProtocol.NEGOTIATE_REQUEST_ID && result == NativeProtocol.VERSION);
+            }
+        };
+        while (decoder.decode(handler)) {
+        }
+        assertEquals(Arrays.asList("protocol 1", "state READY", "result 0 1", "state STARTING"), handler.messages);
+    }
+
+    @Test
+    public void unknownAndShortFramesAreSkipped() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(NativeProtocol.encodeMessage(63, 1, 2));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_INPUT_PARAMS, 1, 2));
+        stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_ERROR, 1));
+        assertEquals(Arrays.asList("unexpected", "unexpected", "error 1"), decodeAll(stream.toByteArray(), true));
+    }
+
+    @Test
+    public void commandFrame() {
+        byte[] frame = NativeProtocol.encodeCommand("start", 5, "a b", "");
+        byte[] expected = {
+                NativeProtocol.VERSION, (byte) NativeProtocol.TYPE_COMMAND, 0, 18,
+                0, 0, 0, 5,
+                5, 's', 't', 'a', 'r', 't',
+                2, 0, 3, 'a', ' ', 'b', 0, 0
+        };
+        assertArrayEquals(expected, frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandTooLong() {
+        NativeProtocol.encodeCommand("start", 1, new String(new char[NativeProtocol.MAX_PAYLOAD_SIZE]));
+    }
+
+    /**
+     * Corrupted stream may be decoded as wrong messages or rejected with an IOException,
+     * but all frames before the first corrupted byte have to be decoded.
+     */
+    @Test
+    public void fuzz() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        List<Integer> frameEnds = new ArrayList<Integer>();
+        for (int i = 0; i < 200; i++) {
+            stream.write(NativeProtocol.encodeState(ProcessState.RECORDING));
+            expected.add("state RECORDING");
+            frameEnds.add(stream.size());
+            stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_FPS, 30000 + i));
+            expected.add("fps " + (30000 + i) / 1000f);
+            frameEnds.add(stream.size());
+            stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_COMMAND_RESULT, i, 0));
+            expected.add("result " + i + " 0");
+            frameEnds.add(stream.size());
+            stream.write(NativeProtocol.encodeMessage(NativeProtocol.TYPE_TEXT, "su version " + i));
+            expected.add("su " + i);
+            frameEnds.add(stream.size());
+        }
+        byte[] valid = stream.toByteArray();
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = valid.clone();
+            int firstCorrupted = data.length;
+            int corruptions = 1 + random.nextInt(8);
+            for (int j = 0; j < corruptions; j++) {
+                int position = random.nextInt(data.length);
+                byte value = (byte) random.nextInt(256);
+                if (data[position] != value) {
+                    data[position] = value;
+                    firstCorrupted = Math.min(firstCorrupted, position);
+                }
+            }
+            if (random.nextBoolean()) {
+                data = Arrays.copyOf(data, random.nextInt(data.length));
+                firstCorrupted = Math.min(firstCorrupted, data.length);
+            }
+            int intact = 0;
+            while (intact < frameEnds.size() && frameEnds.get(intact) <= firstCorrupted) {
+                intact++;
+            }
+
+            NativeProtocol.Decoder decoder = new NativeProtocol.Decoder(new ByteArrayInputStream(data));
+            decoder.setBinary(true);
+            RecordingHandler handler = new RecordingHandler();
+            try {
+                while (decoder.decode(handler)) {
+                }
+            } catch (IOException ignored) {
+                // corrupted header or frame truncated by the end of stream
+            }
+            assertTrue("decoded " + handler.messages.size() + " of " + intact + " intact frames",
+                    handler.messages.size() >= intact);
+            assertEquals(expected.subList(0, intact), handler.messages.subList(0, intact));
+        }
+    }
+
+    private static List<String> decodeAll(byte[] data, boolean binary) throws IOException {
+        NativeProtocol.Decoder decoder = new NativeProtocol.Decoder(new ByteArrayInputStream(data));
+        decoder.setBinary(binary);
+        RecordingHandler handler = new RecordingHandler();
+        while (decoder.decode(handler)) {
+            assertFalse("decoder doesn't make progress", handler.messages.size() > data.length);
+        }
+        return handler.messages;
+    }
+
+    private static class RecordingHandler implements NativeProtocol.Handler {
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void onState(ProcessState state) {
+            messages.add("state " + state);
+        }
+
+        @Override
+        public void onInputParams(int rotateView, int verticalInput, int adjustedRotation) {
+            messages.add("input " + rotateView + " " + verticalInput + " " + adjustedRotation);
+        }
+
+        @Override
+        public void onFps(float fps) {
+            messages.add("fps " + fps);
+        }
+
+        @Override
+        public void onError(int exitValue) {
+            messages.add("error " + exitValue);
+        }
+
+        @Override
+        public void onSuVersion(String version) {
+            messages.add("su " + version);
+        }
+
+        @Override
+        public void onProtocolAnnounced(int version) {
+            messages.add("protocol " + version);
+        }
+
+        @Override
+        public void onCommandResult(int requestId, int result) {
+            messages.add("result " + requestId + " " + result);
+        }
+
+        @Override
+        public void onUnexpected(String message) {
+            messages.add("unexpected");
+        }
+    }
+}
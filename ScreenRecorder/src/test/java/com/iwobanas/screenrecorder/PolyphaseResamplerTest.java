@@ -0,0 +1,175 @@
+package com.iwobanas.screenrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Quality of conversion is measured by fitting a sine of the expected frequency to the output,
+ * whatever doesn't fit is distortion and noise.
+ */
+public class PolyphaseResamplerTest {
+
+    private static final int[][] RATES = {
+            {48000, 44100}, {44100, 48000}, {48000, 16000}, {48000, 11025}, {48000, 8000}, {16000, 48000}
+    };
+    private static final double AMPLITUDE = 16384;
+    // output frames affected by the filter starting from silence
+    private static final int SKIP_FRAMES = 1000;
+
+    @Test
+    public void thdPlusNoise() {
+        for (int[] rates : RATES) {
+            double[] output = resampleSine(rates[0], rates[1], 1, 1000, rates[0]);
+            double[] fit = fitSine(output, 1000.0 / rates[1]);
+            double thdN = 20 * Math.log10(fit[1] / fit[0]);
+            assertTrue(rates[0] + "->" + rates[1] + " THD+N " + thdN + "dB", thdN < -85);
+        }
+    }
+
+    @Test
+    public void passbandRipple() {
+        for (int[] rates : RATES) {
+            double nyquist = Math.min(rates[0], rates[1]) / 2.0;
+            double minGain = Double.MAX_VALUE;
+            double maxGain = 0;
+            for (double frequency = 100; frequency <= 0.8 * nyquist; frequency += 0.05 * nyquist) {
+                double[] output = resampleSine(rates[0], rates[1], 1, frequency, rates[0]);
+                double gain = fitSine(output, frequency / rates[1])[0] / (AMPLITUDE / Math.sqrt(2));
+                minGain = Math.min(minGain, gain);
+                maxGain = Math.max(maxGain, gain);
+            }
+            double rippleDb = 20 * Math.log10(maxGain / minGain);
+            assertTrue(rates[0] + "->" + rates[1] + " ripple " + rippleDb + "dB", rippleDb < 0.2);
+            assertEquals(1, minGain, 0.02);
+        }
+    }
+
+    @Test
+    public void aliasingIsAttenuated() {
+        // 12kHz can't be represented at 16kHz and must not fold back to 4kHz
+        double[] output = resampleSine(48000, 16000, 1, 12000, 48000);
+        double rms = 0;
+        for (int i = SKIP_FRAMES; i < output.length; i++) {
+            rms += output[i] * output[i];
+        }
+        rms = Math.sqrt(rms / (output.length - SKIP_FRAMES));
+        double attenuationDb = 20 * Math.log10(rms / (AMPLITUDE / Math.sqrt(2)));
+        assertTrue("attenuation " + attenuationDb + "dB", attenuationDb < -70);
+    }
+
+    @Test
+    public void channelsAreIndependent() {
+        PolyphaseResampler resampler = new PolyphaseResampler(48000, 44100, 2);
+        ByteBuffer input = ByteBuffer.allocate(48000 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 48000; i++) {
+            input.putShort((short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * 1000 * i / 48000)));
+            input.putShort((short) 0);
+        }
+        input.flip();
+        ByteBuffer output = ByteBuffer.allocate(44100 * 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        resampler.process(input, output);
+        output.flip();
+        int maxRight = 0;
+        while (output.remaining() >= 4) {
+            output.getShort();
+            maxRight = Math.max(maxRight, Math.abs(output.getShort()));
+        }
+        assertEquals(0, maxRight);
+    }
+
+    @Test
+    public void streamingMatchesSingleCall() {
+        byte[] input = new byte[44100 * 4];
+        new Random(1).nextBytes(input);
+        byte[] expected = resampleInChunks(input, new Random(1), input.length);
+        byte[] actual = resampleInChunks(input, new Random(2), 1000);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static double[] resampleSine(int inputRate, int outputRate, int channels, double frequency, int frames) {
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate, channels);
+        ByteBuffer input = ByteBuffer.allocate(frames * 2 * channels).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / inputRate));
+            for (int c = 0; c < channels; c++) {
+                input.putShort(sample);
+            }
+        }
+        input.flip();
+        ByteBuffer output = ByteBuffer.allocate((int) ((long) frames * outputRate / inputRate + 1) * 2 * channels)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        resampler.process(input, output);
+        output.flip();
+        double[] samples = new double[output.remaining() / 2 / channels];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = output.getShort();
+            for (int c = 1; c < channels; c++) {
+                output.getShort();
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Least squares fit of a sine with given frequency skipping the start of the output.
+     * @param cyclesPerSample frequency relative to the output rate
+     * @return RMS of the fitted sine and RMS of the residual
+     */
+    private static double[] fitSine(double[] samples, double cyclesPerSample) {
+        double cc = 0, ss = 0, cs = 0, yc = 0, ys = 0;
+        for (int i = SKIP_FRAMES; i < samples.length; i++) {
+            double c = Math.cos(2 * Math.PI * cyclesPerSample * i);
+            double s = Math.sin(2 * Math.PI * cyclesPerSample * i);
+            cc += c * c;
+            ss += s * s;
+            cs += c * s;
+            yc += samples[i] * c;
+            ys += samples[i] * s;
+        }
+        double det = cc * ss - cs * cs;
+        double a = (yc * ss - ys * cs) / det;
+        double b = (ys * cc - yc * cs) / det;
+        double residual = 0;
+        for (int i = SKIP_FRAMES; i < samples.length; i++) {
+            double e = samples[i] - a * Math.cos(2 * Math.PI * cyclesPerSample * i)
+                    - b * Math.sin(2 * Math.PI * cyclesPerSample * i);
+            residual += e * e;
+        }
+        double amplitude = Math.sqrt(a * a + b * b);
+        return new double[]{amplitude / Math.sqrt(2), Math.sqrt(residual / (samples.length - SKIP_FRAMES))};
+    }
+
+    private static byte[] resampleInChunks(byte[] data, Random random, int maxChunk) {
+        PolyphaseResampler resampler = new PolyphaseResampler(44100, 48000, 2);
+        ByteBuffer input = ByteBuffer.allocate(data.length);
+        input.limit(0);
+        ByteBuffer output = ByteBuffer.allocate(data.length * 2);
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, 1 + random.nextInt(maxChunk));
+            input.compact();
+            input.put(data, offset, length);
+            input.flip();
+            offset += length;
+            // output limited to the chunk size so that processing also stops on full output
+            ByteBuffer slice = output.duplicate();
+            slice.limit(Math.min(output.capacity(), output.position() + length));
+            resampler.process(input, slice);
+            output.position(slice.position());
+        }
+        while (resampler.process(input, output) > 0) {
+            // drain input left over when output was full
+        }
+        output.flip();
+        byte[] result = new byte[output.remaining()];
+        output.get(result);
+        return result;
+    }
+}
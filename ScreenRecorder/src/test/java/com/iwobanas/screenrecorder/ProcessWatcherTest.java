@@ -0,0 +1,48 @@
+package com.iwobanas.screenrecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs against /proc of the machine running the tests, skipped where there is no /proc.
+ */
+public class ProcessWatcherTest {
+
+    private final List<Process> processes = new ArrayList<Process>();
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/proc").isDirectory());
+    }
+
+    @After
+    public void tearDown() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void commandChangedAfterLongGapIsFound() throws Exception {
+        ProcessWatcher watcher = new ProcessWatcher();
+        // shell is seen by the first scan and execs a different command after the command line settle time
+        start("sh", "-c", "sleep 1.5; exec sleep 61.5");
+        Thread.sleep(200);
+        watcher.findProcess("unrelated");
+        Thread.sleep(2000);
+        assertTrue(watcher.findProcess("sleep\u000061.5\u0000") > 0);
+    }
+
+    private void start(String... command) throws IOException {
+        processes.add(new ProcessBuilder(command).start());
+    }
+}
@@ -0,0 +1,56 @@
+package com.iwobanas.screenrecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Plain sh stands in for su so the tests only run where a POSIX shell is available.
+ */
+public class RootShellPoolTest {
+
+    private final RootShellPool pool = new RootShellPool("sh");
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").exists());
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void sessionIsReused() {
+        pool.execute("a=1", 5000);
+        // variable set by the previous command is visible in the same shell
+        assertEquals("1", pool.execute("echo $a", 5000).getOutput().trim());
+        assertEquals(1, pool.getSessions());
+    }
+
+    @Test
+    public void sessionInUseIsDestroyedAfterClose() throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pool.execute("sleep 0.3", 5000);
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        pool.close();
+        assertEquals(0, pool.getSessions());
+        thread.join();
+        assertEquals(0, pool.getSessions());
+
+        // pool is usable after close
+        assertEquals(0, pool.execute("true", 5000).getExitValue());
+        assertEquals(1, pool.getSessions());
+    }
+}
@@ -0,0 +1,121 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic recording of a tone interrupted by silence with dither noise, encoded by a constant bitrate
+ * AAC encoder which outputs each frame three frames after its input.
+ */
+public class SilentFrameReplacerTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_SAMPLES = 1024;
+    private static final long FRAME_US = FRAME_SAMPLES * 1000000L / SAMPLE_RATE;
+    private static final int ENCODER_DELAY_FRAMES = 3;
+    // 128kbps constant bitrate
+    private static final int AAC_FRAME_SIZE = 128000 / 8 * FRAME_SAMPLES / SAMPLE_RATE;
+
+    private final SilentFrameReplacer replacer = new SilentFrameReplacer(SAMPLE_RATE, CHANNELS);
+    private final Random random = new Random(1);
+    private final ByteBuffer pcm = ByteBuffer.allocate(FRAME_SAMPLES * 2 * CHANNELS).order(ByteOrder.LITTLE_ENDIAN);
+    private long inputFrames;
+    private long outputFrames;
+    private long firstReplacedUs = -1;
+    private long lastReplacedUs = -1;
+
+    @Test
+    public void silentFrameSize() {
+        assertEquals(4, SilentFrameReplacer.createSilentFrame(1).capacity());
+        assertEquals(7, SilentFrameReplacer.createSilentFrame(2).capacity());
+    }
+
+    @Test
+    public void bytesSavedOnSilence() {
+        input(3000, 1000);
+        long silenceStartUs = inputFrames * FRAME_US;
+        input(4000, 0);
+        long silenceEndUs = inputFrames * FRAME_US;
+        input(3000, 1000);
+        flush();
+
+        // frames within 500ms after the silence starts and two frames before it ends are kept
+        assertTrue("first " + firstReplacedUs, firstReplacedUs >= silenceStartUs + 500000);
+        assertTrue("last " + lastReplacedUs, lastReplacedUs + 2 * FRAME_US <= silenceEndUs);
+        long expectedFrames = (silenceEndUs - silenceStartUs - 500000) / FRAME_US - 2;
+        assertEquals(expectedFrames, replacer.getReplacedFrames(), 2);
+        assertEquals(replacer.getReplacedFrames() * (AAC_FRAME_SIZE - 7), replacer.getSavedBytes());
+        assertEquals(outputFrames * AAC_FRAME_SIZE, replacer.getTotalBytes());
+    }
+
+    @Test
+    public void shortPauseIsKept() {
+        input(3000, 1000);
+        input(400, 0);
+        input(3000, 1000);
+        flush();
+
+        assertEquals(0, replacer.getReplacedFrames());
+        assertEquals(0, replacer.getSavedBytes());
+    }
+
+    @Test
+    public void quietSoundIsNotSilence() {
+        input(3000, 1000);
+        input(3000, 10);
+        flush();
+
+        assertEquals(0, replacer.getReplacedFrames());
+    }
+
+    /**
+     * Feed sine of given amplitude, or dither noise if amplitude is 0, and collect encoder output.
+     */
+    private void input(long durationMs, int amplitude) {
+        long frames = durationMs * 1000 / FRAME_US;
+        for (long i = 0; i < frames; i++) {
+            pcm.clear();
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                long n = inputFrames * FRAME_SAMPLES + s;
+                short sample = amplitude == 0 ? (short) (random.nextInt(7) - 3)
+                        : (short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * n / SAMPLE_RATE));
+                for (int c = 0; c < CHANNELS; c++) {
+                    pcm.putShort(sample);
+                }
+            }
+            replacer.onInput(pcm, 0, pcm.position(), inputFrames * FRAME_US);
+            inputFrames++;
+            if (inputFrames - outputFrames > ENCODER_DELAY_FRAMES) {
+                output();
+            }
+        }
+    }
+
+    private void flush() {
+        while (outputFrames < inputFrames) {
+            output();
+        }
+    }
+
+    private void output() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = AAC_FRAME_SIZE;
+        info.presentationTimeUs = outputFrames * FRAME_US;
+        outputFrames++;
+        if (replacer.replace(info) != null) {
+            if (firstReplacedUs < 0) {
+                firstReplacedUs = info.presentationTimeUs;
+            }
+            lastReplacedUs = info.presentationTimeUs;
+        }
+    }
+}
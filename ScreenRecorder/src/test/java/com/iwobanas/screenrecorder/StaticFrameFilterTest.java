@@ -0,0 +1,115 @@
+package com.iwobanas.screenrecorder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Synthetic 30fps H.264 stream encoded with temporal layering, every other frame is a non-reference frame.
+ */
+public class StaticFrameFilterTest {
+
+    private static final long FRAME_US = 33333;
+    private static final int MAX_STATIC_FRAME_SIZE = 128;
+    private static final long MAX_FRAME_GAP_US = 1000000;
+    private static final int KEY_FRAME_SIZE = 20000;
+    private static final int FRAME_SIZE = 5000;
+    private static final int STATIC_FRAME_SIZE = 40;
+
+    private final StaticFrameFilter filter = new StaticFrameFilter(MAX_STATIC_FRAME_SIZE, MAX_FRAME_GAP_US);
+    private long frameNumber;
+    private long keptBytes;
+
+    @Test
+    public void bytesSavedOnStaticScreen() {
+        frame(5, KEY_FRAME_SIZE, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        frames(2 * 30, FRAME_SIZE);
+        frames(6 * 30, STATIC_FRAME_SIZE);
+        frames(2 * 30, FRAME_SIZE);
+
+        // non-reference half of the static frames, reference frames keep gaps short
+        assertEquals(90, filter.getDroppedFrames());
+        assertEquals(90 * STATIC_FRAME_SIZE, filter.getDroppedBytes());
+        assertEquals(90, filter.getStaticReferenceFrames());
+        assertEquals(filter.getBytes() - filter.getDroppedBytes(), keptBytes);
+    }
+
+    @Test
+    public void maxFrameGapIsKept() {
+        frame(5, KEY_FRAME_SIZE, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        // all static frames disposable as produced by encoders skipping reference frames on static input
+        long lastKeptUs = 0;
+        long maxGapUs = 0;
+        for (int i = 0; i < 10 * 30; i++) {
+            long timeUs = frameNumber * FRAME_US;
+            if (frame(1, STATIC_FRAME_SIZE, 0, 0)) {
+                maxGapUs = Math.max(maxGapUs, timeUs - lastKeptUs);
+                lastKeptUs = timeUs;
+            }
+        }
+
+        assertTrue("gap " + maxGapUs, maxGapUs <= MAX_FRAME_GAP_US + FRAME_US);
+        assertEquals(0, filter.getStaticReferenceFrames());
+        // about one frame a second kept
+        assertEquals(10, 300 - filter.getDroppedFrames(), 1);
+    }
+
+    @Test
+    public void keyFramesAndEndOfStreamAreKept() {
+        frame(5, KEY_FRAME_SIZE, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertTrue(frame(5, STATIC_FRAME_SIZE, 0, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        assertFalse(frame(1, STATIC_FRAME_SIZE, 0, 0));
+        assertTrue(frame(1, STATIC_FRAME_SIZE, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+    }
+
+    @Test
+    public void disposableAccessUnits() {
+        assertTrue(StaticFrameFilter.isDisposable(accessUnit(1, 0, 40), 0, 40));
+        assertFalse(StaticFrameFilter.isDisposable(accessUnit(1, 2, 40), 0, 40));
+        assertFalse(StaticFrameFilter.isDisposable(accessUnit(5, 3, 40), 0, 40));
+        // SEI alone is not a frame
+        assertFalse(StaticFrameFilter.isDisposable(accessUnit(6, 0, 40), 0, 40));
+    }
+
+    private void frames(int count, int size) {
+        for (int i = 0; i < count; i++) {
+            frame(1, size, frameNumber % 2 == 0 ? 2 : 0, 0);
+        }
+    }
+
+    private void frame(int type, int size, int flags) {
+        frame(type, size, 3, flags);
+    }
+
+    private boolean frame(int type, int size, int refIdc, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = frameNumber++ * FRAME_US;
+        info.flags = flags;
+        boolean kept = filter.accept(accessUnit(type, refIdc, size), info);
+        if (kept) {
+            keptBytes += size;
+        }
+        return kept;
+    }
+
+    /**
+     * Annex B access unit with a single NAL unit.
+     */
+    private static ByteBuffer accessUnit(int type, int refIdc, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.put(new byte[]{0, 0, 0, 1, (byte) (refIdc << 5 | type)});
+        while (data.hasRemaining()) {
+            data.put((byte) 0x55);
+        }
+        data.flip();
+        return data;
+    }
+}